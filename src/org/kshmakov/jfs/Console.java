@@ -1,12 +1,16 @@
 package org.kshmakov.jfs;
 
+import org.kshmakov.jfs.driver.DirectoryCursor;
 import org.kshmakov.jfs.driver.DirectoryDescriptor;
 import org.kshmakov.jfs.driver.FileSystemDriver;
 import org.kshmakov.jfs.driver.JFSException;
+import org.kshmakov.jfs.driver.MountOptions;
+import org.kshmakov.jfs.io.Features;
 import org.kshmakov.jfs.io.FileFormatter;
 import org.kshmakov.jfs.io.JFSBadFileException;
 import org.kshmakov.jfs.io.NameHelper;
 import org.kshmakov.jfs.io.Parameters;
+import org.kshmakov.jfs.io.primitives.DirectoryEntry;
 
 import java.io.IOException;
 import java.io.RandomAccessFile;
@@ -28,11 +32,17 @@ public class Console {
         myUsages.put("cd", "usage: cd directory_name\n   or  cd");
         myUsages.put("create", "usage: create file_name file_size");
         myUsages.put("exit", "usage: exit");
-        myUsages.put("format", "usage: format file_name");
+        myUsages.put("format", "usage: format [-b] [-e] [-i] [-j] [-l] [-w] file_name\n" +
+                "   -b  allocate blocks with bitmap\n" +
+                "   -e  map file blocks with extents\n" +
+                "   -i  index directories by name hash\n" +
+                "   -j  journal metadata updates\n" +
+                "   -l  format lazily in constant time\n" +
+                "   -w  use 64-bit addressing for files over 2 GB");
         myUsages.put("help", "usage: help\n   or  help command");
         myUsages.put("ls", "usage: ls");
         myUsages.put("mkdir", "usage: mkdir directory_name");
-        myUsages.put("mount", "usage: mount file_name");
+        myUsages.put("mount", "usage: mount file_name\n   or  mount -m file_name");
         myUsages.put("rm", "usage: rm file_name\n   or  rm -r directory_name");
         myUsages.put("touch", "usage: touch file_name");
         myUsages.put("umount", "usage: umount");
@@ -69,7 +79,7 @@ public class Console {
         }
 
         try {
-            DirectoryDescriptor newDescriptor = myDriver.getDirectories(myCurrentDir).get(command[1]);
+            DirectoryDescriptor newDescriptor = myDriver.getDirectory(myCurrentDir, command[1]);
             if (newDescriptor == null) {
                 return "no such directory";
             }
@@ -103,16 +113,17 @@ public class Console {
             return "file size is not provided\n" + myUsages.get(command[0]);
         }
 
-        int size;
+        long size;
 
         try {
-            size = Integer.parseInt(command[2]);
+            size = Long.parseLong(command[2]);
         } catch (NumberFormatException e) {
             return "bad size description provided";
         }
 
-        if (size < Parameters.MIN_FS_SIZE || size > Parameters.MAX_FS_SIZE) {
-            String range = "[" + Long.toString(Parameters.MIN_FS_SIZE) + ", " + Long.toString(Parameters.MAX_FS_SIZE) + "]";
+        // files bigger than MAX_FS_SIZE have to be formatted with 64-bit addressing
+        if (size < Parameters.MIN_FS_SIZE || size > Parameters.MAX_WIDE_FS_SIZE) {
+            String range = "[" + Long.toString(Parameters.MIN_FS_SIZE) + ", " + Long.toString(Parameters.MAX_WIDE_FS_SIZE) + "]";
             return  "requested size is not in range " + range;
         }
 
@@ -131,14 +142,42 @@ public class Console {
             return "file name is not provided\n" + myUsages.get(command[0]);
         }
 
+        short features = Parameters.FILE_SYSTEM_VERSION;
+        String fileName = command[command.length - 1];
+
+        for (int i = 1; i < command.length - 1; ++i) {
+            switch (command[i]) {
+                case "-b":
+                    features |= Features.BITMAP_ALLOCATOR;
+                    break;
+                case "-e":
+                    features |= Features.EXTENTS;
+                    break;
+                case "-i":
+                    features |= Features.HASHED_DIRECTORIES;
+                    break;
+                case "-j":
+                    features |= Features.JOURNAL;
+                    break;
+                case "-l":
+                    features |= Features.LAZY_FORMAT;
+                    break;
+                case "-w":
+                    features |= Features.WIDE;
+                    break;
+                default:
+                    return "invalid arguments\n" + myUsages.get(command[0]);
+            }
+        }
+
         try {
-            FileFormatter formatter = new FileFormatter(command[1]);
+            FileFormatter formatter = new FileFormatter(fileName, features);
             formatter.format();
         } catch (JFSException e) {
             return "could not format file, reason: " + e.getMessage();
         }
 
-        return command[1] + " formatted";
+        return fileName + " formatted";
     }
 
     private String showHelp(String[] command) {
@@ -168,8 +207,10 @@ public class Console {
         }
 
         ArrayList<String> listItems = new ArrayList<String>();
-        myDriver.getDirectories(myCurrentDir).forEach((k, v) -> listItems.add("d: " + k));
-        myDriver.getFiles(myCurrentDir).forEach((k,v ) -> listItems.add("f: " + k));
+        DirectoryCursor cursor = myDriver.openDirectory(myCurrentDir);
+        for (DirectoryEntry entry = cursor.next(); entry != null; entry = cursor.next()) {
+            listItems.add((entry.type == Parameters.EntryType.DIRECTORY ? "d: " : "f: ") + entry.name);
+        }
 
         Collections.sort(listItems);
 
@@ -207,14 +248,24 @@ public class Console {
         if (command.length < 2)
             return "file name is not provided\n" + myUsages.get(command[0]);
 
+        MountOptions options = new MountOptions();
+        String fileName = command[1];
+
+        if (command.length == 3 && command[1].equals("-m")) {
+            options.memoryMapped = true;
+            fileName = command[2];
+        } else if (command.length != 2) {
+            return "invalid arguments\n" + myUsages.get(command[0]);
+        }
+
         if (myDriver != null)
             umountFile();
 
         try {
-            myDriver = new FileSystemDriver(command[1]);
+            myDriver = new FileSystemDriver(fileName, options);
             myCurrentDir = myDriver.rootInode();
             myCurrentPath = new ArrayList<String>();
-            myCurrentFile = "@" + command[1] + ":";
+            myCurrentFile = "@" + fileName + ":";
         } catch (JFSException e) {
             return "command could not be executed, reason: " + e.getMessage();
         }
@@ -269,11 +320,21 @@ public class Console {
     }
 
     private String umountFile() {
+        String result = "";
+
+        if (myDriver != null) {
+            try {
+                myDriver.close();
+            } catch (JFSException e) {
+                result = "could not flush file system, reason: " + e.getMessage();
+            }
+        }
+
         myCurrentFile = "";
         myCurrentPath = new ArrayList<String>();
         myDriver = null;
 
-        return "";
+        return result;
     }
 
     public String execute(String[] command) throws Exception {
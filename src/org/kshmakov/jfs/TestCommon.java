@@ -5,17 +5,19 @@ import org.kshmakov.jfs.driver.*;
 import org.kshmakov.jfs.driver.FileDescriptor;
 import org.kshmakov.jfs.driver.FileInputStream;
 import org.kshmakov.jfs.driver.FileOutputStream;
+import org.kshmakov.jfs.io.BlockCache;
 import org.kshmakov.jfs.io.FileAccessor;
 import org.kshmakov.jfs.io.FileFormatter;
 
 import java.io.*;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.Scanner;
 
 public class TestCommon extends RunListener {
     private static final String TEST_JFS_NAME = "temp.jfs";
 
-    public static void createFile(int size) throws IOException {
+    public static void createFile(long size) throws IOException {
         RandomAccessFile file = new RandomAccessFile(TestCommon.TEST_JFS_NAME, "rw");
         file.setLength(size);
     }
@@ -25,6 +27,11 @@ public class TestCommon extends RunListener {
         formatter.format();
     }
 
+    public static void formatFile(short features) throws JFSException {
+        FileFormatter formatter = new FileFormatter(TestCommon.TEST_JFS_NAME, features);
+        formatter.format();
+    }
+
     public static FileAccessor createAccessor(int size) throws IOException, JFSException {
         createFile(size);
         formatFile();
@@ -32,6 +39,37 @@ public class TestCommon extends RunListener {
         return new FileAccessor(TestCommon.TEST_JFS_NAME);
     }
 
+    public static FileAccessor createAccessor(int size, short features) throws IOException, JFSException {
+        createFile(size);
+        formatFile(features);
+
+        return new FileAccessor(TestCommon.TEST_JFS_NAME);
+    }
+
+    public static FileAccessor openAccessor() throws JFSException {
+        return new FileAccessor(TestCommon.TEST_JFS_NAME);
+    }
+
+    public static FileAccessor createMappedAccessor() throws JFSException {
+        return new FileAccessor(TestCommon.TEST_JFS_NAME, true);
+    }
+
+    public static FileAccessor createCachedAccessor(BlockCache cache) throws JFSException {
+        return new FileAccessor(TestCommon.TEST_JFS_NAME, false, cache);
+    }
+
+    public static FileSystemDriver openDriver(MountOptions options) throws JFSException {
+        return new FileSystemDriver(TestCommon.TEST_JFS_NAME, options);
+    }
+
+    public static byte[] readImage() throws IOException {
+        return Files.readAllBytes(new File(TestCommon.TEST_JFS_NAME).toPath());
+    }
+
+    public static void writeImage(byte[] image) throws IOException {
+        Files.write(new File(TestCommon.TEST_JFS_NAME).toPath(), image);
+    }
+
     public static void writelnLinesTo(FileSystemDriver fs, FileDescriptor fd, String[] lines) {
         PrintWriter writer = new PrintWriter(new FileOutputStream(fs, fd));
         for (String line : lines) {
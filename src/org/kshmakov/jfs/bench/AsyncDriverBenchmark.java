@@ -0,0 +1,105 @@
+package org.kshmakov.jfs.bench;
+
+import org.kshmakov.jfs.driver.AsyncFileSystemDriver;
+import org.kshmakov.jfs.driver.DataFrame;
+import org.kshmakov.jfs.driver.FileDescriptor;
+import org.kshmakov.jfs.driver.FileSystemDriver;
+import org.kshmakov.jfs.driver.MountOptions;
+import org.kshmakov.jfs.io.FileFormatter;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the synchronous driver called from a fixed pool of threads with the asynchronous facade
+ * when the given number of requests is issued at once.
+ *
+ * Every request reads or, one in four times, overwrites a small piece of one of the files. Fixed pool
+ * has as many threads as there are cores, the facade runs on its default executor with the default
+ * limit of calls in flight. Usage: [requests] [rounds] [image file name].
+ */
+public class AsyncDriverBenchmark {
+    private static final int FILES = 64;
+    private static final int PIECE = 256;
+
+    public static void main(String[] args) throws Exception {
+        final int requests = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        final int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        final String fileName = args.length > 2 ? args[2] : "bench.jfs";
+
+        try (RandomAccessFile file = new RandomAccessFile(fileName, "rw")) {
+            file.setLength(64 << 20);
+        }
+        new FileFormatter(fileName).format();
+        FileSystemDriver driver = new FileSystemDriver(fileName, new MountOptions());
+
+        FileDescriptor[] files = new FileDescriptor[FILES];
+        for (int i = 0; i < FILES; ++i) {
+            files[i] = driver.tryAddFile(driver.rootInode(), "file" + i);
+            driver.tryWriteIntoFile(files[i], new DataFrame(new byte[16 * PIECE]), 0);
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        AsyncFileSystemDriver async = new AsyncFileSystemDriver(driver);
+
+        System.out.printf("%6s %14s %14s%n", "round", "sync req/s", "async req/s");
+        for (int round = 0; round < rounds; ++round) {
+            long syncNanos = runSync(driver, pool, files, requests);
+            long asyncNanos = runAsync(async, files, requests);
+            System.out.printf("%6d %14d %14d%n", round,
+                    requests * 1_000_000_000L / syncNanos, requests * 1_000_000_000L / asyncNanos);
+        }
+
+        async.close();
+        pool.shutdown();
+        pool.awaitTermination(1, TimeUnit.MINUTES);
+        driver.close();
+        new File(fileName).delete();
+    }
+
+    private static long runSync(FileSystemDriver driver, ExecutorService pool, FileDescriptor[] files, int requests)
+            throws Exception {
+        CompletableFuture<?>[] futures = new CompletableFuture<?>[requests];
+        long start = System.nanoTime();
+
+        for (int i = 0; i < requests; ++i) {
+            final FileDescriptor file = files[i % FILES];
+            final int offset = (i / FILES % 16) * PIECE;
+            final boolean write = (i & 3) == 0;
+            futures[i] = CompletableFuture.runAsync(() -> {
+                try {
+                    if (write) {
+                        driver.tryWriteIntoFile(file, new DataFrame(new byte[PIECE]), offset);
+                    } else {
+                        driver.tryReadFromFile(file, offset, PIECE);
+                    }
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }, pool);
+        }
+
+        CompletableFuture.allOf(futures).get();
+        return System.nanoTime() - start;
+    }
+
+    private static long runAsync(AsyncFileSystemDriver async, FileDescriptor[] files, int requests) throws Exception {
+        CompletableFuture<?>[] futures = new CompletableFuture<?>[requests];
+        long start = System.nanoTime();
+
+        for (int i = 0; i < requests; ++i) {
+            FileDescriptor file = files[i % FILES];
+            int offset = (i / FILES % 16) * PIECE;
+            futures[i] = (i & 3) == 0
+                    ? async.tryWriteIntoFile(file, new DataFrame(new byte[PIECE]), offset)
+                    : async.tryReadFromFile(file, offset, PIECE);
+        }
+
+        CompletableFuture.allOf(futures).get();
+        return System.nanoTime() - start;
+    }
+}
@@ -0,0 +1,86 @@
+package org.kshmakov.jfs.bench;
+
+import org.kshmakov.jfs.io.FileAccessor;
+import org.kshmakov.jfs.io.FileFormatter;
+import org.kshmakov.jfs.io.Parameters;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures throughput of threads reading and writing their own blocks through a single accessor.
+ *
+ * Accessor keeps no shared mutable state, so the throughput is expected to grow with the number
+ * of threads until cores or the device run out. Numbers of threads are powers of two up to the
+ * given maximum. Usage: [max threads] [seconds per run] [mapped] [image file name].
+ */
+public class ConcurrentAccessorBenchmark {
+    private static final int BLOCKS_PER_THREAD = 256;
+
+    public static void main(String[] args) throws Exception {
+        final int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+        final int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        final boolean mapped = args.length > 2 && Boolean.parseBoolean(args[2]);
+        final String fileName = args.length > 3 ? args[3] : "bench.jfs";
+
+        try (RandomAccessFile file = new RandomAccessFile(fileName, "rw")) {
+            file.setLength(Math.max(64 << 20, (long) maxThreads * BLOCKS_PER_THREAD * Parameters.DATA_BLOCK_SIZE * 2));
+        }
+        new FileFormatter(fileName).format();
+        FileAccessor accessor = new FileAccessor(fileName, mapped);
+
+        System.out.printf("%8s %14s %14s%n", "threads", "blocks/s", "blocks/s/thread");
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            long transfers = run(accessor, threads, seconds);
+            System.out.printf("%8d %14d %14d%n", threads, transfers / seconds, transfers / seconds / threads);
+        }
+
+        new File(fileName).delete();
+    }
+
+    private static long run(FileAccessor accessor, int threads, int seconds) throws InterruptedException {
+        final AtomicLong transfers = new AtomicLong();
+        final CountDownLatch start = new CountDownLatch(1);
+        final long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+        Thread[] workers = new Thread[threads];
+
+        for (int i = 0; i < threads; ++i) {
+            final int firstBlock = 1 + i * BLOCKS_PER_THREAD;
+            final Random random = new Random(i);
+            workers[i] = new Thread(() -> {
+                ByteBuffer buffer = ByteBuffer.allocate(Parameters.DATA_BLOCK_SIZE);
+                long done = 0;
+
+                try {
+                    start.await();
+                    while (System.nanoTime() < deadline) {
+                        int blockId = firstBlock + random.nextInt(BLOCKS_PER_THREAD);
+                        buffer.clear();
+                        if ((done & 3) == 0) {
+                            accessor.writeBlock(buffer, blockId);
+                        } else {
+                            accessor.readBlock(blockId, buffer);
+                        }
+                        ++done;
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+
+                transfers.addAndGet(done);
+            });
+            workers[i].start();
+        }
+
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        return transfers.get();
+    }
+}
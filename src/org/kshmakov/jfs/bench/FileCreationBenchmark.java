@@ -0,0 +1,78 @@
+package org.kshmakov.jfs.bench;
+
+import org.kshmakov.jfs.driver.DataFrame;
+import org.kshmakov.jfs.driver.DirectoryDescriptor;
+import org.kshmakov.jfs.driver.FileDescriptor;
+import org.kshmakov.jfs.driver.FileSystemDriver;
+import org.kshmakov.jfs.driver.MountOptions;
+import org.kshmakov.jfs.io.Features;
+import org.kshmakov.jfs.io.FileFormatter;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Measures how fast threads create small files, each thread in its own directory.
+ *
+ * Every run starts with a freshly formatted image. Numbers of threads are powers of two up to
+ * the given maximum. Usage: [max threads] [files per thread] [allocation magazines] [image file name].
+ */
+public class FileCreationBenchmark {
+    public static void main(String[] args) throws Exception {
+        final int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+        final int files = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+        final int magazines = args.length > 2 ? Integer.parseInt(args[2]) : 0;
+        final String fileName = args.length > 3 ? args[3] : "bench.jfs";
+
+        System.out.printf("%8s %14s %14s%n", "threads", "files/s", "files/s/thread");
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            try (RandomAccessFile file = new RandomAccessFile(fileName, "rw")) {
+                file.setLength(Math.max(64L << 20, (long) threads * files * 3 * 4096));
+            }
+            new FileFormatter(fileName, (short) (Features.BITMAP_ALLOCATOR | Features.LAZY_FORMAT)).format();
+
+            MountOptions options = new MountOptions();
+            options.memoryMapped = true;
+            options.allocationMagazines = magazines;
+            FileSystemDriver driver = new FileSystemDriver(fileName, options);
+
+            long nanos = run(driver, threads, files);
+            driver.close();
+
+            long created = (long) threads * files * 1_000_000_000L / nanos;
+            System.out.printf("%8d %14d %14d%n", threads, created, created / threads);
+        }
+
+        new File(fileName).delete();
+    }
+
+    private static long run(FileSystemDriver driver, int threads, int files) throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] workers = new Thread[threads];
+
+        for (int i = 0; i < threads; ++i) {
+            final DirectoryDescriptor dir = driver.tryAddDirectory(driver.rootInode(), "dir" + i);
+            workers[i] = new Thread(() -> {
+                try {
+                    start.await();
+                    for (int j = 0; j < files; ++j) {
+                        FileDescriptor file = driver.tryAddFile(dir, "file" + j);
+                        driver.tryAppendToFile(file, new DataFrame(new byte[100]));
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            });
+            workers[i].start();
+        }
+
+        long startTime = System.nanoTime();
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        return System.nanoTime() - startTime;
+    }
+}
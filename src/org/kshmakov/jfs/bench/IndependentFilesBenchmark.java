@@ -0,0 +1,100 @@
+package org.kshmakov.jfs.bench;
+
+import org.kshmakov.jfs.driver.DataFrame;
+import org.kshmakov.jfs.driver.DirectoryDescriptor;
+import org.kshmakov.jfs.driver.FileDescriptor;
+import org.kshmakov.jfs.driver.FileSystemDriver;
+import org.kshmakov.jfs.driver.MountOptions;
+import org.kshmakov.jfs.io.FileFormatter;
+import org.kshmakov.jfs.io.Parameters;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures throughput of threads, each of which reads and writes its own file.
+ *
+ * Since files are independent, the throughput is expected to grow with the number of threads
+ * until cores run out. Numbers of threads are powers of two up to the given maximum.
+ * Usage: [max threads] [seconds per run] [image file name].
+ */
+public class IndependentFilesBenchmark {
+    private static final int FILE_BLOCKS = 16;
+
+    public static void main(String[] args) throws Exception {
+        final int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+        final int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        final String fileName = args.length > 2 ? args[2] : "bench.jfs";
+
+        try (RandomAccessFile file = new RandomAccessFile(fileName, "rw")) {
+            file.setLength(Math.max(64 << 20, (long) maxThreads * FILE_BLOCKS * Parameters.DATA_BLOCK_SIZE * 4));
+        }
+        new FileFormatter(fileName).format();
+
+        MountOptions options = new MountOptions();
+        options.memoryMapped = true;
+        FileSystemDriver driver = new FileSystemDriver(fileName, options);
+
+        DirectoryDescriptor rootDir = driver.rootInode();
+        FileDescriptor[] files = new FileDescriptor[maxThreads];
+        for (int i = 0; i < maxThreads; ++i) {
+            files[i] = driver.tryAddFile(rootDir, "file" + i);
+            driver.tryWriteIntoFile(files[i], new DataFrame(new byte[FILE_BLOCKS * Parameters.DATA_BLOCK_SIZE]), 0);
+        }
+
+        System.out.printf("%8s %14s %14s%n", "threads", "ops/s", "ops/s/thread");
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            long operations = run(driver, files, threads, seconds);
+            System.out.printf("%8d %14d %14d%n", threads, operations / seconds, operations / seconds / threads);
+        }
+
+        driver.close();
+        new File(fileName).delete();
+    }
+
+    private static long run(FileSystemDriver driver, FileDescriptor[] files, int threads, int seconds)
+            throws InterruptedException {
+        final AtomicLong operations = new AtomicLong();
+        final CountDownLatch start = new CountDownLatch(1);
+        final long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+        Thread[] workers = new Thread[threads];
+
+        for (int i = 0; i < threads; ++i) {
+            final FileDescriptor file = files[i];
+            final Random random = new Random(i);
+            workers[i] = new Thread(() -> {
+                byte[] bytes = new byte[Parameters.DATA_BLOCK_SIZE / 4];
+                long done = 0;
+
+                try {
+                    start.await();
+                    while (System.nanoTime() < deadline) {
+                        int offset = random.nextInt(FILE_BLOCKS * Parameters.DATA_BLOCK_SIZE - bytes.length);
+                        if ((done & 3) == 0) {
+                            random.nextBytes(bytes);
+                            driver.tryWriteIntoFile(file, new DataFrame(bytes), offset);
+                        } else {
+                            driver.tryReadFromFile(file, offset, bytes.length);
+                        }
+                        ++done;
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+
+                operations.addAndGet(done);
+            });
+            workers[i].start();
+        }
+
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        return operations.get();
+    }
+}
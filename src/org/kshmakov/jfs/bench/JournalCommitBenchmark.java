@@ -0,0 +1,78 @@
+package org.kshmakov.jfs.bench;
+
+import org.kshmakov.jfs.driver.DirectoryDescriptor;
+import org.kshmakov.jfs.driver.FileSystemDriver;
+import org.kshmakov.jfs.driver.MountOptions;
+import org.kshmakov.jfs.io.Features;
+import org.kshmakov.jfs.io.FileFormatter;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Measures how fast threads create empty files on journaled image, each thread in its own directory.
+ *
+ * Every operation is durable once it returns, so besides throughput the number of operations
+ * sharing a single journal commit, and thus a single force, is reported. Numbers of threads are
+ * powers of two up to the given maximum. Usage: [max threads] [files per thread] [image file name].
+ */
+public class JournalCommitBenchmark {
+    public static void main(String[] args) throws Exception {
+        final int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : 2 * Runtime.getRuntime().availableProcessors();
+        final int files = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+        final String fileName = args.length > 2 ? args[2] : "bench.jfs";
+
+        System.out.printf("%8s %14s %14s%n", "threads", "files/s", "files/commit");
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            try (RandomAccessFile file = new RandomAccessFile(fileName, "rw")) {
+                file.setLength(64L << 20);
+            }
+            new FileFormatter(fileName, (short) (Features.BITMAP_ALLOCATOR | Features.LAZY_FORMAT | Features.JOURNAL)).format();
+
+            FileSystemDriver driver = new FileSystemDriver(fileName, new MountOptions());
+            DirectoryDescriptor[] dirs = new DirectoryDescriptor[threads];
+            for (int i = 0; i < threads; ++i) {
+                dirs[i] = driver.tryAddDirectory(driver.rootInode(), "dir" + i);
+            }
+
+            final long commits = driver.getJournal().commits();
+            long nanos = run(driver, dirs, files);
+            final double perCommit = (double) threads * files / (driver.getJournal().commits() - commits);
+            driver.close();
+
+            long created = (long) threads * files * 1_000_000_000L / nanos;
+            System.out.printf("%8d %14d %14.1f%n", threads, created, perCommit);
+        }
+
+        new File(fileName).delete();
+    }
+
+    private static long run(FileSystemDriver driver, DirectoryDescriptor[] dirs, int files) throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] workers = new Thread[dirs.length];
+
+        for (int i = 0; i < dirs.length; ++i) {
+            final DirectoryDescriptor dir = dirs[i];
+            workers[i] = new Thread(() -> {
+                try {
+                    start.await();
+                    for (int j = 0; j < files; ++j) {
+                        driver.tryAddFile(dir, "file" + j);
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            });
+            workers[i].start();
+        }
+
+        long startTime = System.nanoTime();
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        return System.nanoTime() - startTime;
+    }
+}
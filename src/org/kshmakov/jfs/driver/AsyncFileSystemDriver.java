@@ -0,0 +1,245 @@
+package org.kshmakov.jfs.driver;
+
+import com.sun.istack.internal.Nullable;
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs calls of {@link FileSystemDriver} on an executor and reports their results with futures.
+ *
+ * At most {@code maxInFlight} calls run or wait in the executor at any moment, further submitters
+ * wait until some of them finish. Calls submitted by stages, which depend on futures returned here and
+ * run when those complete, are queued instead, as the thread completing a future may be the one other
+ * calls wait for; up to {@code maxInFlight} of them are queued, further ones fail with
+ * {@link RejectedExecutionException}. Failures of calls complete futures
+ * exceptionally with the original {@link JFSException}. The driver itself is neither owned nor
+ * closed here.
+ */
+@ThreadSafe
+public final class AsyncFileSystemDriver implements AutoCloseable {
+    public static final int DEFAULT_MAX_IN_FLIGHT = 1024;
+
+    interface Call<T> {
+        T run() throws JFSException;
+    }
+
+    private final class Task<T> implements Runnable {
+        final Call<T> call;
+        final CompletableFuture<T> result = new CompletableFuture<T>();
+
+        Task(Call<T> call) {
+            this.call = call;
+        }
+
+        @Override
+        public void run() {
+            T value = null;
+            Throwable failure = null;
+            try {
+                value = call.run();
+            } catch (Throwable e) {
+                failure = e;
+            }
+
+            // slot is freed before dependent stages run on this thread, as they may submit calls of their own
+            dispatch(release());
+
+            Boolean outer = myCompleting.get();
+            myCompleting.set(Boolean.TRUE);
+            try {
+                if (failure != null) {
+                    result.completeExceptionally(failure);
+                } else {
+                    result.complete(value);
+                }
+            } finally {
+                myCompleting.set(outer);
+            }
+        }
+    }
+
+    private final FileSystemDriver myDriver;
+    private final Executor myExecutor;
+    // executor created here rather than given by the caller, it is shut down on close
+    private final ExecutorService myOwnExecutor;
+    private final int myMaxInFlight;
+    // set while a task completes its future, so that calls submitted by dependent stages are told apart
+    private final ThreadLocal<Boolean> myCompleting = new ThreadLocal<Boolean>();
+
+    private final Object myLock = new Object();
+    @GuardedBy("myLock")
+    private int myInFlight = 0;
+    // calls submitted by dependent stages waiting for a slot, in order of submission
+    @GuardedBy("myLock")
+    private final ArrayDeque<Task<?>> myQueued = new ArrayDeque<Task<?>>();
+
+    /**
+     * Runs calls on virtual threads when the runtime has them, otherwise on a cached pool of daemon threads.
+     */
+    public AsyncFileSystemDriver(FileSystemDriver driver) {
+        this(driver, defaultExecutor(), DEFAULT_MAX_IN_FLIGHT, true);
+    }
+
+    public AsyncFileSystemDriver(FileSystemDriver driver, Executor executor, int maxInFlight) {
+        this(driver, executor, maxInFlight, false);
+    }
+
+    private AsyncFileSystemDriver(FileSystemDriver driver, Executor executor, int maxInFlight, boolean owned) {
+        assert maxInFlight > 0;
+        myDriver = driver;
+        myExecutor = executor;
+        myOwnExecutor = owned ? (ExecutorService) executor : null;
+        myMaxInFlight = maxInFlight;
+    }
+
+    private static ExecutorService defaultExecutor() {
+        // looked up reflectively, so that older runtimes still load this class
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool(runnable -> {
+                Thread thread = new Thread(runnable, "jfs-async");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    // package-private for tests, which need to look inside of calls
+    <T> CompletableFuture<T> submit(Call<T> call) {
+        Task<T> task = new Task<T>(call);
+        boolean interrupted = false;
+
+        synchronized (myLock) {
+            if (myInFlight == myMaxInFlight && myCompleting.get() != null) {
+                if (myQueued.size() == myMaxInFlight) {
+                    task.result.completeExceptionally(new RejectedExecutionException("too many calls are queued"));
+                } else {
+                    myQueued.add(task);
+                }
+                return task.result;
+            }
+
+            // queued calls take freed slots first
+            while (myInFlight == myMaxInFlight) {
+                try {
+                    myLock.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+
+            ++myInFlight;
+        }
+
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        dispatch(task);
+        return task.result;
+    }
+
+    // hands the task, which holds a slot, to the executor along with queued tasks taking over slots of rejected ones
+    private void dispatch(@Nullable Task<?> task) {
+        while (task != null) {
+            try {
+                myExecutor.execute(task);
+                return;
+            } catch (RejectedExecutionException e) {
+                Task<?> rejected = task;
+                task = release();
+                rejected.result.completeExceptionally(e);
+            }
+        }
+    }
+
+    // frees slot of a finished task unless a queued one takes it over, which is returned then
+    @Nullable
+    private Task<?> release() {
+        synchronized (myLock) {
+            Task<?> next = myQueued.poll();
+            if (next == null) {
+                --myInFlight;
+                myLock.notifyAll();
+            }
+
+            return next;
+        }
+    }
+
+    public CompletableFuture<byte[]> tryReadFromFile(FileDescriptor descriptor, int offset, int maxLength) {
+        return submit(() -> myDriver.tryReadFromFile(descriptor, offset, maxLength));
+    }
+
+    public CompletableFuture<Void> tryWriteIntoFile(FileDescriptor descriptor, DataFrame frame, int offset) {
+        return submit(() -> {
+            myDriver.tryWriteIntoFile(descriptor, frame, offset);
+            return null;
+        });
+    }
+
+    public CompletableFuture<Void> tryAppendToFile(FileDescriptor descriptor, DataFrame frame) {
+        return submit(() -> {
+            myDriver.tryAppendToFile(descriptor, frame);
+            return null;
+        });
+    }
+
+    public CompletableFuture<Integer> getFileSize(FileDescriptor descriptor) {
+        return submit(() -> myDriver.getFileSize(descriptor));
+    }
+
+    public CompletableFuture<FileDescriptor> tryAddFile(DirectoryDescriptor descriptor, String name) {
+        return submit(() -> myDriver.tryAddFile(descriptor, name));
+    }
+
+    public CompletableFuture<Map<String, DirectoryDescriptor>> getDirectories(DirectoryDescriptor descriptor) {
+        return submit(() -> myDriver.getDirectories(descriptor));
+    }
+
+    public CompletableFuture<Map<String, FileDescriptor>> getFiles(DirectoryDescriptor descriptor) {
+        return submit(() -> myDriver.getFiles(descriptor));
+    }
+
+    public CompletableFuture<ArrayList<EntryInfo>> listDirectory(DirectoryDescriptor descriptor) {
+        return submit(() -> myDriver.listDirectory(descriptor));
+    }
+
+    /**
+     * Waits for submitted calls to finish and stops the executor if it was created here. Interrupt
+     * stops waiting, the executor is shut down nevertheless and interrupt status is kept.
+     */
+    @Override
+    public void close() {
+        try {
+            synchronized (myLock) {
+                while (myInFlight > 0) {
+                    myLock.wait();
+                }
+            }
+
+            if (myOwnExecutor != null) {
+                myOwnExecutor.shutdown();
+                while (!myOwnExecutor.awaitTermination(1, TimeUnit.SECONDS)) {
+                    // long calls are still running
+                }
+            }
+        } catch (InterruptedException e) {
+            if (myOwnExecutor != null) {
+                myOwnExecutor.shutdown();
+            }
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package org.kshmakov.jfs.driver;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.kshmakov.jfs.TestCommon;
+import org.kshmakov.jfs.io.FileAccessor;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class AsyncFileSystemDriverTest {
+    private FileSystemDriver driver = null;
+
+    @Before
+    public void initialization() throws IOException, JFSException {
+        FileAccessor accessor = TestCommon.createAccessor(1 << 20);
+        driver = new FileSystemDriver(accessor);
+    }
+
+    @Test
+    public void test00() throws Exception {
+        /**
+         * Checks calls made through futures reach the driver and failures keep their cause.
+         */
+        try (AsyncFileSystemDriver async = new AsyncFileSystemDriver(driver)) {
+            FileDescriptor file = async.tryAddFile(driver.rootInode(), "file").get();
+            async.tryWriteIntoFile(file, new DataFrame(new byte[]{1, 2, 3}), 0).get();
+            async.tryAppendToFile(file, new DataFrame(new byte[]{4})).get();
+
+            assertArrayEquals(new byte[]{1, 2, 3, 4}, async.tryReadFromFile(file, 0, 10).get());
+            assertEquals(4, (int) async.getFileSize(file).get());
+            assertEquals(1, async.getFiles(driver.rootInode()).get().size());
+            assertEquals(2, async.getDirectories(driver.rootInode()).get().size());
+            assertEquals(3, async.listDirectory(driver.rootInode()).get().size());
+
+            try {
+                async.tryAddFile(driver.rootInode(), "file").get();
+                fail("name in use must be refused");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof JFSException);
+            }
+        }
+    }
+
+    @Test
+    public void test01() throws Exception {
+        /**
+         * Checks no more than the given number of calls are in flight at once.
+         */
+        final int maxInFlight = 3;
+        FileDescriptor file = driver.tryAddFile(driver.rootInode(), "file");
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+
+        try (AsyncFileSystemDriver async = new AsyncFileSystemDriver(driver, executor, maxInFlight)) {
+            ArrayList<CompletableFuture<Void>> futures = new ArrayList<CompletableFuture<Void>>();
+            for (int i = 0; i < 50; ++i) {
+                final byte value = (byte) i;
+                futures.add(async.submit(() -> {
+                    maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                    try {
+                        Thread.sleep(2);
+                        driver.tryAppendToFile(file, new DataFrame(new byte[]{value}));
+                        return null;
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return null;
+                    } finally {
+                        running.decrementAndGet();
+                    }
+                }));
+            }
+
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).get();
+            assertEquals(50, driver.getFileSize(file));
+            assertTrue(maxRunning.get() <= maxInFlight);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void test02() throws Exception {
+        /**
+         * Checks calls chained from completion of another call on the only executor thread do not wait
+         * for a slot while other submitters take all of them.
+         */
+        FileDescriptor file = driver.tryAddFile(driver.rootInode(), "file");
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+
+        try (AsyncFileSystemDriver async = new AsyncFileSystemDriver(driver, executor, 1)) {
+            ArrayList<CompletableFuture<Void>> futures = new ArrayList<CompletableFuture<Void>>();
+            for (int i = 0; i < 10; ++i) {
+                futures.add(async.tryAddFile(driver.rootInode(), "chained" + i)
+                        .thenCompose(chained -> async.tryAppendToFile(chained, new DataFrame(new byte[]{1}))));
+                futures.add(async.tryAppendToFile(file, new DataFrame(new byte[]{2})));
+            }
+
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).get(10, TimeUnit.SECONDS);
+            assertEquals(10, driver.getFileSize(file));
+            assertEquals(1, driver.getFileSize(driver.getFile(driver.rootInode(), "chained9")));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void test03() throws Exception {
+        /**
+         * Checks submitters wait while all slots are taken, and calls chained from completions
+         * are rejected once as many of them as slots are queued.
+         */
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        CountDownLatch gate = new CountDownLatch(1);
+        AsyncFileSystemDriver.Call<Void> gated = () -> {
+            try {
+                gate.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return null;
+        };
+
+        try (AsyncFileSystemDriver async = new AsyncFileSystemDriver(driver, executor, 1)) {
+            CountDownLatch first = new CountDownLatch(1);
+            CompletableFuture<Void> completed = async.submit(() -> {
+                try {
+                    first.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return null;
+            });
+
+            // freed slot is taken by the first chained call, the second one is queued
+            CompletableFuture<Void> rejected = completed.thenCompose(value -> {
+                async.submit(gated);
+                async.submit(gated);
+                return async.submit(gated);
+            });
+            first.countDown();
+
+            try {
+                rejected.get(10, TimeUnit.SECONDS);
+                fail("call over the queue bound must be rejected");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof RejectedExecutionException);
+            }
+
+            AtomicBoolean submitted = new AtomicBoolean();
+            Thread submitter = new Thread(() -> {
+                async.submit(gated);
+                submitted.set(true);
+            });
+            submitter.start();
+            submitter.join(200);
+            assertFalse(submitted.get());
+
+            gate.countDown();
+            submitter.join();
+            assertTrue(submitted.get());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @After
+    public void cleanUp() {
+        TestCommon.cleanUp();
+    }
+}
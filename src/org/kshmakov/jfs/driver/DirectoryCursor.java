@@ -0,0 +1,51 @@
+package org.kshmakov.jfs.driver;
+
+import com.sun.istack.internal.Nullable;
+import org.kshmakov.jfs.io.Parameters;
+import org.kshmakov.jfs.io.primitives.DirectoryEntry;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Walks entries of a directory one data block at a time.
+ *
+ * Only the current block is kept in memory and its entries are decoded on demand.
+ * Each block is read under the directory lock, but the lock is not held between blocks,
+ * so entries added or removed concurrently may be either seen or missed.
+ */
+public class DirectoryCursor {
+    private final FileSystemDriver fs;
+    private final DirectoryDescriptor dd;
+
+    private final Object myLock = new Object();
+    private ByteBuffer myBlock = null;
+    private int myBlockEnd = 0;
+    private int myBlockIndex = 0;
+    private boolean myFinished = false;
+
+    public DirectoryCursor(FileSystemDriver fs, DirectoryDescriptor dd) {
+        this.fs = fs;
+        this.dd = dd;
+    }
+
+    /**
+     * Returns next entry of the directory, null when all of them have been returned.
+     */
+    @Nullable
+    public DirectoryEntry next() throws JFSException {
+        synchronized (myLock) {
+            while (!myFinished && (myBlock == null || myBlock.position() >= myBlockEnd)) {
+                byte[] bytes = fs.readDirectoryBlock(dd, myBlockIndex++);
+                if (bytes == null) {
+                    myFinished = true;
+                    myBlock = null;
+                } else {
+                    myBlock = ByteBuffer.wrap(bytes);
+                    myBlockEnd = Parameters.DATA_BLOCK_SIZE - myBlock.getShort();
+                }
+            }
+
+            return myFinished ? null : new DirectoryEntry(myBlock);
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package org.kshmakov.jfs.driver;
+
+import com.sun.istack.internal.Nullable;
+import org.kshmakov.jfs.io.Parameters;
+
+/**
+ * Directory entry together with the attributes of its inode.
+ */
+final public class EntryInfo {
+    public final String name;
+    public final Parameters.EntryType type;
+    public final int size;
+    public final int blocksNumber;
+
+    // details are supposed to be inaccessible from outside of the package
+    final int inodeId;
+
+    EntryInfo(String name, Parameters.EntryType type, int size, int blocksNumber, int inodeId) {
+        this.name = name;
+        this.type = type;
+        this.size = size;
+        this.blocksNumber = blocksNumber;
+        this.inodeId = inodeId;
+    }
+
+    @Nullable
+    public DirectoryDescriptor directory() {
+        return type == Parameters.EntryType.DIRECTORY ? new DirectoryDescriptor(inodeId) : null;
+    }
+
+    @Nullable
+    public FileDescriptor file() {
+        return type == Parameters.EntryType.FILE ? new FileDescriptor(inodeId) : null;
+    }
+}
@@ -1,170 +1,247 @@
 package org.kshmakov.jfs.driver;
 
 import com.sun.istack.internal.NotNull;
+import com.sun.istack.internal.Nullable;
 import net.jcip.annotations.GuardedBy;
 import net.jcip.annotations.ThreadSafe;
-import org.kshmakov.jfs.driver.tools.ByteBufferHelper;
 import org.kshmakov.jfs.driver.tools.DriverHelper;
-import org.kshmakov.jfs.driver.tools.EntriesHelper;
 import org.kshmakov.jfs.driver.tools.InodeHelper;
 import org.kshmakov.jfs.io.*;
 import org.kshmakov.jfs.io.primitives.*;
 
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 @ThreadSafe
 public final class FileSystemDriver {
     private final FileAccessor myAccessor;
 
-    private final ReadWriteLock[] myInodesLocks = new ReadWriteLock[16];
+    private final InodeLocks myInodesLocks = new InodeLocks();
+    private static final int OPTIMISTIC_ATTEMPTS = 3;
 
+    private final InodeCache myInodes;
+    private final DentryCache myDentries;
     private final InodesStack myInodesStack;
-    private final BlocksStack myBlocksStack;
+    // removed directories not reclaimed yet, as recorded on disk
+    private final Orphans myOrphans;
+    private final BufferPool myBuffers = new BufferPool(64);
+    private final BlocksAllocator myBlocksAllocator;
+    private final BlockMap myBlockMap;
+    private final boolean myHashedDirectories;
+
+    @Nullable
+    private final Journal myJournal;
+    private final boolean mySynchronousCommit;
+
+    // removed directories, kept until their inodes are allocated again
+    private final Set<Integer> myDetached = ConcurrentHashMap.newKeySet();
+    @Nullable
+    private final ThreadPoolExecutor myReclaimer;
+    private final AtomicReference<JFSException> myReclaimFailure = new AtomicReference<JFSException>();
 
     public FileSystemDriver(String name) throws JFSException {
-        this(new FileAccessor(name));
+        this(name, new MountOptions());
     }
 
-    FileSystemDriver(FileAccessor accessor) throws JFSException {
-        myAccessor = accessor;
-        myInodesStack = new InodesStack(myAccessor);
-        myBlocksStack = new BlocksStack(myAccessor);
-
-        for (int i = 0; i < myInodesLocks.length; ++i) {
-            myInodesLocks[i] = new ReentrantReadWriteLock();
-        }
+    public FileSystemDriver(String name, MountOptions options) throws JFSException {
+        this(new FileAccessor(name, options.memoryMapped, options.cacheSize > 0 ? new BlockCache(options.cacheSize) : null),
+                options);
     }
 
-    @GuardedBy("myInodesLocks")
-    private void appendBlocks(int inodeId, ArrayList<Integer> newBlocksIds) throws JFSException {
-        final int size = myAccessor.readInodeInt(inodeId, InodeOffsets.OBJECT_SIZE);
-
-        final int firstId = InodeHelper.blocksForSize(size);
-        final int lastId = firstId + newBlocksIds.size() - 1;
-        assert lastId < Parameters.DIRECT_POINTERS_NUMBER;
+    FileSystemDriver(FileAccessor accessor) throws JFSException {
+        this(accessor, new MountOptions());
+    }
 
-        for (int directId = firstId; directId <= lastId; ++directId) {
-            int blockId = newBlocksIds.remove(newBlocksIds.size() - 1);
-            myAccessor.writeInodeInt(blockId, inodeId, InodeOffsets.DIRECT_POINTERS[directId]);
+    FileSystemDriver(FileAccessor accessor, MountOptions options) throws JFSException {
+        myAccessor = accessor;
+        myInodes = new InodeCache(myAccessor, options.inodeCacheSize);
+        myDentries = new DentryCache(options.dentryCacheSize);
+        myInodesStack = new InodesStack(myAccessor, myInodes, options.allocationMagazines, options.magazineSize);
+
+        final boolean bitmap = Features.has(myAccessor.features, Features.BITMAP_ALLOCATOR);
+        BlocksAllocator allocator = bitmap ? new BlocksBitmap(myAccessor) : new BlocksStack(myAccessor);
+        myBlocksAllocator = options.allocationMagazines > 0 && options.magazineSize > 0
+                ? new BlockMagazines(allocator, bitmap, options.allocationMagazines, options.magazineSize)
+                : allocator;
+        myOrphans = new Orphans(myAccessor, myBlocksAllocator);
+
+        PointerBlocksCache pointers = new PointerBlocksCache(myAccessor, options.pointerBlocksCacheSize);
+        myBlockMap = Features.has(myAccessor.features, Features.EXTENTS)
+                ? new ExtentBlockMap(pointers, myBlocksAllocator)
+                : new PointerBlockMap(pointers, myBlocksAllocator);
+        myHashedDirectories = Features.has(myAccessor.features, Features.HASHED_DIRECTORIES);
+        myJournal = myAccessor.getJournal();
+        mySynchronousCommit = options.synchronousCommit;
+
+        // single idle-expiring daemon thread, so an abandoned driver does not keep anything alive
+        myReclaimer = options.backgroundReclaim
+                ? new ThreadPoolExecutor(0, 1, 1, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), runnable -> {
+                    Thread thread = new Thread(runnable, "jfs-reclaimer");
+                    thread.setDaemon(true);
+                    return thread;
+                })
+                : null;
+
+        // directories removed before a crash are reclaimed from where it stopped
+        for (int inodeId : myOrphans.list()) {
+            myDetached.add(inodeId);
+            reclaim(new DirectoryEntry(inodeId, Parameters.EntryType.DIRECTORY, "."));
         }
-
-        myAccessor.writeInodeInt((lastId + 1) * Parameters.DATA_BLOCK_SIZE, inodeId, InodeOffsets.OBJECT_SIZE);
-        assert newBlocksIds.isEmpty();
-        // TODO: support doubly and triply indirect
     }
 
     @GuardedBy("myInodesLocks")
-    private ArrayList<Integer> subtractBlocks(int inodeId, int blocksNumber) throws JFSException {
-        final int size = myAccessor.readInodeInt(inodeId, InodeOffsets.OBJECT_SIZE);
-        final int lastId = InodeHelper.blocksForSize(size) - 1;
-        final int firstId = lastId - blocksNumber + 1;
-        assert firstId >= 0 && lastId < Parameters.DIRECT_POINTERS_NUMBER;
+    private ArrayList<Integer> subtractBlocks(AllocatedInode inode, int blocksNumber) throws JFSException {
+        final int blocksHave = InodeHelper.blocksForSize(inode.objectSize);
+        assert blocksNumber <= blocksHave;
 
-        ArrayList<Integer> result = new ArrayList<Integer>(blocksNumber);
-        for (int directId = firstId; directId <= lastId; ++directId) {
-            result.add(myAccessor.readInodeInt(inodeId, InodeOffsets.DIRECT_POINTERS[directId]));
-            myAccessor.writeInodeInt(0, inodeId, InodeOffsets.DIRECT_POINTERS[directId]);
-        }
-
-        myAccessor.writeInodeInt(firstId * Parameters.DATA_BLOCK_SIZE, inodeId, InodeOffsets.OBJECT_SIZE);
+        ArrayList<Integer> result = myBlockMap.truncate(inode, blocksHave, blocksNumber);
+        inode.objectSize = (blocksHave - blocksNumber) * Parameters.DATA_BLOCK_SIZE;
         return result;
-        // TODO: support doubly and triply indirect
     }
 
     @GuardedBy("myInodesLocks")
-    private void growInode(int inodeId, int blocksNumber) throws JFSException {
-        appendBlocks(inodeId, myBlocksStack.pop(blocksNumber));
+    private void growInode(AllocatedInode inode, int blocksNumber) throws JFSException {
+        final int blocksHave = InodeHelper.blocksForSize(inode.objectSize);
+        myBlockMap.grow(inode, blocksHave, blocksNumber);
+        inode.objectSize = (blocksHave + blocksNumber) * Parameters.DATA_BLOCK_SIZE;
     }
 
     @GuardedBy("myInodesLocks")
-    private void truncateInode(int inodeId, int blocksNumber) throws JFSException {
-        myBlocksStack.push(subtractBlocks(inodeId, blocksNumber));
+    private void truncateInode(AllocatedInode inode, int blocksNumber) throws JFSException {
+        myBlocksAllocator.push(subtractBlocks(inode, blocksNumber));
     }
 
     @NotNull
     @GuardedBy("myInodesLocks")
-    private byte[] readFromFile(int inodeId, int offset, int length) throws JFSException {
-        ByteBuffer buffer = ByteBuffer.allocate(length);
+    private byte[] readFromFile(AllocatedInode inode, int offset, int length) throws JFSException {
+        byte[] result = new byte[length];
+        int position = 0;
+        int blockIndex = offset / Parameters.DATA_BLOCK_SIZE;
+        offset %= Parameters.DATA_BLOCK_SIZE;
 
-        for (int directId = 0; directId < Parameters.DIRECT_POINTERS_NUMBER && buffer.hasRemaining(); ++directId) {
-            if (offset >= Parameters.DATA_BLOCK_SIZE) {
-                offset -= Parameters.DATA_BLOCK_SIZE;
-                continue;
+        if (length == 0) {
+            return result;
+        }
+
+        final int[] blockIds = myBlockMap.blockIds(inode, blockIndex,
+                InodeHelper.blocksForSize(offset + length));
+        blockIndex = 0;
+
+        ByteBuffer blockBuffer = myBuffers.acquire();
+
+        try {
+            if (offset > 0 || length < Parameters.DATA_BLOCK_SIZE) {
+                myAccessor.readBlock(blockIds[blockIndex++], blockBuffer);
+
+                position = Math.min(length, Parameters.DATA_BLOCK_SIZE - offset);
+                blockBuffer.position(offset);
+                blockBuffer.get(result, 0, position);
             }
 
-            int blockId = myAccessor.readInodeInt(inodeId, InodeOffsets.DIRECT_POINTERS[directId]);
-            byte[] blockBytes = myAccessor.readBlock(blockId);
-            int maxLength = Math.min(buffer.remaining(), blockBytes.length - offset);
-            buffer.put(blockBytes, offset, maxLength);
-            offset = 0;
-        }
+            // whole blocks go straight into the result, adjacent ones with a single read
+            int wholeBlocks = (length - position) / Parameters.DATA_BLOCK_SIZE;
+            if (wholeBlocks > 0) {
+                int wholeLength = wholeBlocks * Parameters.DATA_BLOCK_SIZE;
+                myAccessor.readBlocks(blockIds, blockIndex, wholeBlocks,
+                        ByteBuffer.wrap(result, position, wholeLength));
+                blockIndex += wholeBlocks;
+                position += wholeLength;
+            }
 
-        // TODO: support doubly and triply indirect
-        assert !buffer.hasRemaining();
+            if (position < length) {
+                blockBuffer.clear();
+                myAccessor.readBlock(blockIds[blockIndex], blockBuffer);
+                blockBuffer.position(0);
+                blockBuffer.get(result, position, length - position);
+            }
+        } finally {
+            myBuffers.release(blockBuffer);
+        }
 
-        return buffer.array();
+        return result;
     }
 
     @GuardedBy("myInodesLocks")
-    private void writeIntoFile(int inodeId, DataFrame frame, int offset) throws JFSException {
-        int size = myAccessor.readInodeInt(inodeId, InodeOffsets.OBJECT_SIZE);
-        if (size < offset + frame.length) {
-            size = offset + frame.length;
-            myAccessor.writeInodeInt(size, inodeId, InodeOffsets.OBJECT_SIZE);
+    private void writeIntoFile(AllocatedInode inode, DataFrame frame, int offset) throws JFSException {
+        inode.objectSize = Math.max(inode.objectSize, offset + frame.length);
+
+        int position = frame.offset;
+        final int end = frame.offset + frame.length;
+        int blockIndex = offset / Parameters.DATA_BLOCK_SIZE;
+        offset %= Parameters.DATA_BLOCK_SIZE;
+
+        if (frame.length == 0) {
+            return;
         }
 
-        ByteBuffer buffer = ByteBuffer.allocate(frame.length);
-        buffer.put(frame.bytes, frame.offset, frame.length);
-        buffer.rewind();
+        final int[] blockIds = myBlockMap.blockIds(inode, blockIndex,
+                InodeHelper.blocksForSize(offset + frame.length));
+        blockIndex = 0;
 
-        for (int directId = 0; directId < Parameters.DIRECT_POINTERS_NUMBER && buffer.hasRemaining(); ++directId) {
-            if (offset >= Parameters.DATA_BLOCK_SIZE) {
-                offset -= Parameters.DATA_BLOCK_SIZE;
-                continue;
-            }
+        ByteBuffer blockBuffer = myBuffers.acquire();
 
-            int blockId = myAccessor.readInodeInt(inodeId, InodeOffsets.DIRECT_POINTERS[directId]);
-            byte[] blockBytes = myAccessor.readBlock(blockId);
-            ByteBuffer blockBuffer = ByteBuffer.wrap(blockBytes, offset, blockBytes.length - offset);
-            offset = 0;
+        try {
+            if (offset > 0 || frame.length < Parameters.DATA_BLOCK_SIZE) {
+                // partially overwritten block keeps the rest of its contents
+                int blockId = blockIds[blockIndex++];
+                myAccessor.readBlock(blockId, blockBuffer);
+
+                int length = Math.min(frame.length, Parameters.DATA_BLOCK_SIZE - offset);
+                blockBuffer.position(offset);
+                blockBuffer.put(frame.bytes, position, length);
+                blockBuffer.clear();
+                myAccessor.writeDataBlock(blockBuffer, blockId);
+                position += length;
+            }
 
-            blockBuffer.put(ByteBufferHelper.advance(buffer, blockBuffer.remaining()));
-            myAccessor.writeBlock(new BlockBase(blockBytes), blockId);
-        }
+            // whole blocks go straight from the frame, adjacent ones with a single write
+            int wholeBlocks = (end - position) / Parameters.DATA_BLOCK_SIZE;
+            if (wholeBlocks > 0) {
+                int wholeLength = wholeBlocks * Parameters.DATA_BLOCK_SIZE;
+                myAccessor.writeDataBlocks(blockIds, blockIndex, wholeBlocks,
+                        ByteBuffer.wrap(frame.bytes, position, wholeLength));
+                blockIndex += wholeBlocks;
+                position += wholeLength;
+            }
 
-//        Runtime runtime = Runtime.getRuntime();
-//        System.gc();
-//        long m1 = runtime.totalMemory() - runtime.freeMemory();
-//        System.out.printf("%d", m1);
-//        System.gc();
-//        long m2 = runtime.totalMemory() - runtime.freeMemory();
-//        System.out.printf(" -> %d", m2 - m1);
-//        System.gc();
-//        long m3 = runtime.totalMemory() - runtime.freeMemory();
-//        System.out.printf(" -> %d\n", m3 - m1);
+            if (position < end) {
+                int blockId = blockIds[blockIndex];
+                blockBuffer.clear();
+                myAccessor.readBlock(blockId, blockBuffer);
 
-        // TODO: support doubly and triply indirect
-        assert !buffer.hasRemaining();
+                blockBuffer.position(0);
+                blockBuffer.put(frame.bytes, position, end - position);
+                blockBuffer.clear();
+                myAccessor.writeDataBlock(blockBuffer, blockId);
+            }
+        } finally {
+            myBuffers.release(blockBuffer);
+        }
     }
 
     @NotNull
     @GuardedBy("myInodesLocks")
-    private byte[] tryReadFromFile(int inodeId, int offset, int maxLength) throws JFSException {
-        final int currentSize = myAccessor.readInodeInt(inodeId, InodeOffsets.OBJECT_SIZE);
-        DriverHelper.refuseIf(currentSize < offset, "requested offset is bigger than file size");
-        maxLength = Math.min(maxLength, currentSize - offset);
-        return readFromFile(inodeId, offset, maxLength);
+    private byte[] tryReadFromFile(AllocatedInode inode, int offset, int maxLength) throws JFSException {
+        DriverHelper.refuseIf(inode.objectSize < offset, "requested offset is bigger than file size");
+        maxLength = Math.min(maxLength, inode.objectSize - offset);
+        return readFromFile(inode, offset, maxLength);
     }
 
     @GuardedBy("myInodesLocks")
-    private void tryWriteIntoFile(int inodeId, DataFrame frame, int offset) throws JFSException {
-        final int currentSize = myAccessor.readInodeInt(inodeId, InodeOffsets.OBJECT_SIZE);
+    private void tryWriteIntoFile(int inodeId, AllocatedInode inode, DataFrame frame, int offset) throws JFSException {
+        final int currentSize = inode.objectSize;
 
         DriverHelper.refuseIf(currentSize < offset, "requested offset is bigger than file size");
         DriverHelper.refuseIf(offset + (long) frame.length > Parameters.MAX_FILE_SIZE, "operation will produce too big file");
@@ -174,272 +251,955 @@ public final class FileSystemDriver {
         final int blocksHave = InodeHelper.blocksForSize(currentSize);
         final int blocksNeed = InodeHelper.blocksForSize(newSize);
 
-        if (blocksNeed > blocksHave) {
-            growInode(inodeId, blocksNeed - blocksHave);
-        }
+        try {
+            if (blocksNeed > blocksHave) {
+                growInode(inode, blocksNeed - blocksHave);
+            }
 
-        myAccessor.writeInodeInt(newSize, inodeId, InodeOffsets.OBJECT_SIZE);
-        writeIntoFile(inodeId, frame, offset);
+            inode.objectSize = currentSize;
+            writeIntoFile(inode, frame, offset);
+        } finally {
+            myInodes.write(inode, inodeId);
+        }
     }
 
     @GuardedBy("myInodesLocks")
     private void tryRewriteFile(int inodeId, DataFrame frame) throws JFSException {
-        final int currentSize = myAccessor.readInodeInt(inodeId, InodeOffsets.OBJECT_SIZE);
+        AllocatedInode inode = myInodes.get(inodeId);
 
         DriverHelper.refuseIf(frame.length > Parameters.MAX_FILE_SIZE, "operation will produce too big file");
 
-        final int blocksHave = InodeHelper.blocksForSize(currentSize);
+        final int blocksHave = InodeHelper.blocksForSize(inode.objectSize);
         final int blocksNeed = InodeHelper.blocksForSize(frame.length);
 
-        if (blocksNeed > blocksHave) {
-            growInode(inodeId, blocksNeed - blocksHave);
-        } else if (blocksNeed < blocksHave) {
-            truncateInode(inodeId, blocksHave - blocksNeed);
+        try {
+            if (blocksNeed > blocksHave) {
+                growInode(inode, blocksNeed - blocksHave);
+            } else if (blocksNeed < blocksHave) {
+                truncateInode(inode, blocksHave - blocksNeed);
+            }
+
+            inode.objectSize = 0;
+            writeIntoFile(inode, frame, 0);
+        } finally {
+            myInodes.write(inode, inodeId);
         }
+    }
 
-        writeIntoFile(inodeId, frame, 0);
+    // ids of the blocks holding entries of directory, first block of hashed directory is its index
+    @GuardedBy("myInodesLocks")
+    private int[] leafBlockIds(AllocatedInode inode) throws JFSException {
+        assert inode.type == Parameters.EntryType.DIRECTORY;
+        final int firstLeaf = myHashedDirectories ? 1 : 0;
+        final int blocksNumber = InodeHelper.blocksForSize(inode.objectSize);
+        return myBlockMap.blockIds(inode, firstLeaf, blocksNumber - firstLeaf);
     }
 
     @NotNull
     @GuardedBy("myInodesLocks")
     private ArrayList<DirectoryEntry> getEntries(int inodeId) throws JFSException {
-        assert (byte) (myAccessor.readInodeInt(inodeId, InodeOffsets.INODE_DESCRIPTION) >> 24) ==
-                Parameters.typeToByte(Parameters.EntryType.DIRECTORY);
-        AllocatedInode inode = new AllocatedInode(myAccessor.readInode(inodeId));
         ArrayList<DirectoryEntry> result = new ArrayList<DirectoryEntry>();
+        // removed directory is listed empty, same as its entries are not found
+        if (myDetached.contains(inodeId)) {
+            return result;
+        }
 
-        for (int blockId : inode.directPointers) {
-            if (blockId != 0) {
-                result.addAll(new DirectoryBlock(myAccessor.readBlock(blockId)).entries);
-            }
+        for (int blockId : leafBlockIds(myInodes.get(inodeId))) {
+            result.addAll(new DirectoryBlock(myAccessor.readBlock(blockId)).entries);
         }
 
-        // TODO: indirect blocks
         return result;
     }
 
     @GuardedBy("myInodesLocks")
-    private void removeFile(int inodeId, ArrayList<DirectoryEntry> siblings, DirectoryEntry entry) throws JFSException {
-        assert entry.type == Parameters.EntryType.FILE;
-        siblings.removeIf(e -> e.equals(entry));
-        tryRewriteFile(inodeId, ByteBufferHelper.toDataFrame(siblings));
-        tryRewriteFile(entry.inodeId, new DataFrame(new byte[0]));
-        myInodesStack.push(entry.inodeId);
+    private void initDirectory(int inodeId, int parentId) throws JFSException {
+        DirectoryBlock leaf = DirectoryBlock.emptyDirectoryBlock(inodeId, parentId);
+        if (!myHashedDirectories) {
+            tryRewriteFile(inodeId, new DataFrame(leaf.toBytes()));
+            return;
+        }
+
+        byte[] bytes = new byte[2 * Parameters.DATA_BLOCK_SIZE];
+        System.arraycopy(new DirectoryIndexBlock(1).toBytes(), 0, bytes, 0, Parameters.DATA_BLOCK_SIZE);
+        System.arraycopy(leaf.toBytes(), 0, bytes, Parameters.DATA_BLOCK_SIZE, Parameters.DATA_BLOCK_SIZE);
+        tryRewriteFile(inodeId, new DataFrame(bytes));
     }
 
+    // id of the leaf block of hashed directory, which is responsible for given name hash
     @GuardedBy("myInodesLocks")
-    private void removeDirectory(int inodeId, ArrayList<DirectoryEntry> siblings, DirectoryEntry entry) throws JFSException {
-        assert entry.type == Parameters.EntryType.DIRECTORY;
-        siblings.removeIf(e -> e.equals(entry));
-        tryRewriteFile(inodeId, ByteBufferHelper.toDataFrame(siblings));
+    private int leafBlockId(AllocatedInode inode, DirectoryIndexBlock index, int hash) throws JFSException {
+        return myBlockMap.blockIds(inode, index.find(hash), 1)[0];
+    }
 
-        ArrayList<DirectoryEntry> entries = new ArrayList<DirectoryEntry>(1);
-        entries.add(entry);
+    @GuardedBy("myInodesLocks")
+    private DirectoryIndexBlock readIndex(AllocatedInode inode) throws JFSException {
+        return new DirectoryIndexBlock(myAccessor.readBlock(myBlockMap.blockIds(inode, 0, 1)[0]));
+    }
 
-        while (!entries.isEmpty()) {
-            DirectoryEntry lastEntry = entries.remove(entries.size() - 1);
-            if (lastEntry.type == Parameters.EntryType.DIRECTORY) {
-                if (lastEntry.name.equals(".") || lastEntry.name.equals("..")) {
-                    continue;
+    @Nullable
+    @GuardedBy("myInodesLocks")
+    private DirectoryEntry findEntry(int inodeId, String name) throws JFSException {
+        return findEntry(inodeId, name, null);
+    }
+
+    // name is encoded on cache miss only, unless the caller has it encoded already
+    @Nullable
+    @GuardedBy("myInodesLocks")
+    private DirectoryEntry findEntry(int inodeId, String name, @Nullable byte[] nameBytes) throws JFSException {
+        // entries of removed directories are not visible, even before they are reclaimed
+        if (myDetached.contains(inodeId)) {
+            return null;
+        }
+
+        Optional<DirectoryEntry> cached = myDentries.get(inodeId, name);
+        if (cached != null) {
+            return cached.orElse(null);
+        }
+
+        DirectoryEntry result = readEntry(inodeId, nameBytes != null ? nameBytes : NameHelper.encode(name));
+        if (result != null) {
+            myDentries.put(inodeId, result);
+        } else {
+            myDentries.putMissing(inodeId, name);
+        }
+
+        return result;
+    }
+
+    @Nullable
+    @GuardedBy("myInodesLocks")
+    private DirectoryEntry readEntry(int inodeId, byte[] nameBytes) throws JFSException {
+        // names are compared encoded, so only the found entry gets decoded
+        AllocatedInode inode = myInodes.get(inodeId);
+
+        if (!myHashedDirectories) {
+            for (int blockId : leafBlockIds(inode)) {
+                DirectoryEntry result = DirectoryBlock.find(myAccessor.readBlock(blockId), nameBytes);
+                if (result != null) {
+                    return result;
                 }
+            }
+
+            return null;
+        }
+
+        // index block and a single leaf block are read
+        assert inode.type == Parameters.EntryType.DIRECTORY;
+        int leafId = leafBlockId(inode, readIndex(inode), NameHelper.hash(nameBytes));
+        return DirectoryBlock.find(myAccessor.readBlock(leafId), nameBytes);
+    }
 
-                entries.addAll(getEntries(lastEntry.inodeId));
+    // appends into the first block with enough room, a new block is added only if there is none
+    @GuardedBy("myInodesLocks")
+    private void insertLinearEntry(int inodeId, DirectoryEntry entry) throws JFSException {
+        AllocatedInode inode = myInodes.get(inodeId);
+        final int blocksNumber = InodeHelper.blocksForSize(inode.objectSize);
+
+        for (int blockId : myBlockMap.blockIds(inode, 0, blocksNumber)) {
+            DirectoryBlock block = new DirectoryBlock(myAccessor.readBlock(blockId));
+            if (block.tryInsert(entry)) {
+                myAccessor.writeBlock(block, blockId);
+                return;
             }
+        }
 
-            tryRewriteFile(lastEntry.inodeId, new DataFrame(new byte[0]));
-            myInodesStack.push(lastEntry.inodeId);
+        try {
+            growInode(inode, 1);
+        } finally {
+            myInodes.write(inode, inodeId);
         }
+
+        DirectoryBlock block = new DirectoryBlock();
+        boolean inserted = block.tryInsert(entry);
+        assert inserted;
+        myAccessor.writeBlock(block, myBlockMap.blockIds(inode, blocksNumber, 1)[0]);
     }
 
-    @NotNull
-    public DirectoryDescriptor rootInode() {
-        return new DirectoryDescriptor(Parameters.ROOT_INODE_ID);
+    // compacts the block which holds the entry, trailing block is released once it gets empty
+    @GuardedBy("myInodesLocks")
+    private void deleteLinearEntry(int inodeId, DirectoryEntry entry) throws JFSException {
+        AllocatedInode inode = myInodes.get(inodeId);
+        final int[] blockIds = myBlockMap.blockIds(inode, 0, InodeHelper.blocksForSize(inode.objectSize));
+
+        for (int i = 0; i < blockIds.length; ++i) {
+            DirectoryBlock block = new DirectoryBlock(myAccessor.readBlock(blockIds[i]));
+            if (!block.remove(entry.name)) {
+                continue;
+            }
+
+            if (block.entries.isEmpty() && i > 0 && i == blockIds.length - 1) {
+                try {
+                    truncateInode(inode, 1);
+                } finally {
+                    myInodes.write(inode, inodeId);
+                }
+            } else {
+                myAccessor.writeBlock(block, blockIds[i]);
+            }
+
+            return;
+        }
+
+        assert false : "entry " + entry.name + " is missing";
     }
 
-    public DirectoryDescriptor tryAddDirectory(DirectoryDescriptor descriptor, String name) throws JFSException {
-        NameHelper.inspect(name);
+    @GuardedBy("myInodesLocks")
+    private void insertEntry(int inodeId, DirectoryEntry entry) throws JFSException {
+        if (myHashedDirectories) {
+            insertHashedEntry(inodeId, entry);
+        } else {
+            insertLinearEntry(inodeId, entry);
+        }
 
-        Lock writeLock = myInodesLocks[descriptor.inodeId % myInodesLocks.length].writeLock();
-        writeLock.lock();
+        myDentries.put(inodeId, entry);
+    }
+
+    @GuardedBy("myInodesLocks")
+    private void insertHashedEntry(int inodeId, DirectoryEntry entry) throws JFSException {
+
+        AllocatedInode inode = myInodes.get(inodeId);
+        DirectoryIndexBlock index = readIndex(inode);
+        final int hash = entry.nameHash();
+        final int leafId = leafBlockId(inode, index, hash);
+
+        DirectoryBlock leaf = new DirectoryBlock(myAccessor.readBlock(leafId));
+        if (leaf.tryInsert(entry)) {
+            myAccessor.writeBlock(leaf, leafId);
+            return;
+        }
+
+        DriverHelper.refuseIf(index.size() == DirectoryIndexBlock.CAPACITY, "directory entries limit exceeded");
+
+        // overflowing leaf is split in halves by hash, upper half moves to a new leaf
+        ArrayList<DirectoryEntry> entries = new ArrayList<DirectoryEntry>(leaf.entries);
+        entries.add(entry);
+        entries.sort(Comparator.comparingInt(DirectoryEntry::nameHash));
+
+        int total = 0;
+        for (DirectoryEntry e : entries) {
+            total += e.size();
+        }
+
+        int split = 0;
+        for (int lowerSize = 0; lowerSize < total / 2; ++split) {
+            lowerSize += entries.get(split).size();
+        }
+
+        // equal hashes have to stay in a single leaf
+        while (split < entries.size() && entries.get(split).nameHash() == entries.get(split - 1).nameHash()) {
+            ++split;
+        }
+
+        DriverHelper.refuseIf(split == entries.size(), "too many names with equal hash in directory");
+
+        DirectoryBlock lower = new DirectoryBlock();
+        DirectoryBlock upper = new DirectoryBlock();
+        for (int i = 0; i < entries.size(); ++i) {
+            DriverHelper.refuseIf(!(i < split ? lower : upper).tryInsert(entries.get(i)), "directory leaf overflow");
+        }
 
+        final int leafBlock = InodeHelper.blocksForSize(inode.objectSize);
         try {
-            ArrayList<DirectoryEntry> entries = getEntries(descriptor.inodeId);
-            DriverHelper.refuseIf(EntriesHelper.find(entries, name) != null, name + " is already in use");
-            int newInodeId = myInodesStack.pop(new AllocatedInode(Parameters.EntryType.DIRECTORY, descriptor.inodeId));
-            DirectoryBlock newDirectory = DirectoryBlock.emptyDirectoryBlock(newInodeId, descriptor.inodeId);
-            tryRewriteFile(newInodeId, new DataFrame(newDirectory.toBytes()));
-            entries.add(new DirectoryEntry(newInodeId, Parameters.EntryType.DIRECTORY, name));
-            tryRewriteFile(descriptor.inodeId, ByteBufferHelper.toDataFrame(entries));
-            return new DirectoryDescriptor(newInodeId);
+            growInode(inode, 1);
         } finally {
-            writeLock.unlock();
+            myInodes.write(inode, inodeId);
         }
+
+        boolean inserted = index.tryInsert(entries.get(split).nameHash(), leafBlock);
+        assert inserted;
+
+        myAccessor.writeBlock(upper, myBlockMap.blockIds(inode, leafBlock, 1)[0]);
+        myAccessor.writeBlock(lower, leafId);
+        myAccessor.writeBlock(index, myBlockMap.blockIds(inode, 0, 1)[0]);
     }
 
-    public void tryRemoveDirectory(DirectoryDescriptor descriptor, String name) throws JFSException {
-        DriverHelper.refuseIf(name.equals(".") || name.equals(".."), "cannot remove system directory");
+    @GuardedBy("myInodesLocks")
+    private void deleteEntry(int inodeId, DirectoryEntry entry) throws JFSException {
+        if (myHashedDirectories) {
+            deleteHashedEntry(inodeId, entry);
+        } else {
+            deleteLinearEntry(inodeId, entry);
+        }
+
+        myDentries.putMissing(inodeId, entry.name);
+    }
+
+    @GuardedBy("myInodesLocks")
+    private void deleteHashedEntry(int inodeId, DirectoryEntry entry) throws JFSException {
+
+        AllocatedInode inode = myInodes.get(inodeId);
+        final int leafId = leafBlockId(inode, readIndex(inode), entry.nameHash());
+
+        DirectoryBlock leaf = new DirectoryBlock(myAccessor.readBlock(leafId));
+        boolean removed = leaf.remove(entry.name);
+        assert removed;
+        myAccessor.writeBlock(leaf, leafId);
+    }
+
+    // detaches all blocks of the inode, which is about to be released, without rewriting it
+    @GuardedBy("myInodesLocks")
+    private void collectBlocks(int inodeId, ArrayList<Integer> blocks) throws JFSException {
+        AllocatedInode inode = myInodes.get(inodeId);
+        blocks.addAll(subtractBlocks(inode, InodeHelper.blocksForSize(inode.objectSize)));
+    }
+
+    @GuardedBy("myInodesLocks")
+    private void removeFile(int inodeId, DirectoryEntry entry) throws JFSException {
+        assert entry.type == Parameters.EntryType.FILE;
+        deleteEntry(inodeId, entry);
+
+        ArrayList<Integer> blocks = new ArrayList<Integer>();
+        collectBlocks(entry.inodeId, blocks);
+        myBlocksAllocator.push(blocks);
+        myInodesStack.push(entry.inodeId);
+    }
+
+    private interface InodeReader<T> {
+        T read() throws JFSException;
+    }
+
+    /**
+     * Runs the reader without taking the inode lock, retrying if a writer of the inode interfered.
+     * Reader may observe inconsistent state and fail, failures count only if the stamp stays valid.
+     * Falls back to the read lock while the inode keeps being modified.
+     */
+    private <T> T readInode(int inodeId, InodeReader<T> reader) throws JFSException {
+        for (int attempt = 0; attempt < OPTIMISTIC_ATTEMPTS; ++attempt) {
+            long stamp = myInodesLocks.optimisticStamp(inodeId);
+            if (stamp < 0) {
+                break;
+            }
 
-        for (ReadWriteLock lock : myInodesLocks) {
-            lock.writeLock().lock();
+            try {
+                T result = reader.read();
+                if (myInodesLocks.validate(inodeId, stamp)) {
+                    return result;
+                }
+            } catch (JFSException | RuntimeException | AssertionError e) {
+                if (myInodesLocks.validate(inodeId, stamp)) {
+                    throw e;
+                }
+            }
         }
 
+        Lock readLock = myInodesLocks.readLock(inodeId);
+        readLock.lock();
+
         try {
-            ArrayList<DirectoryEntry> entries = getEntries(descriptor.inodeId);
-            DirectoryEntry toRemove = EntriesHelper.find(entries, name);
-            DriverHelper.refuseIf(toRemove == null, "no such file or directory");
-            if (toRemove.type == Parameters.EntryType.FILE) {
-                removeFile(descriptor.inodeId, entries, toRemove);
-            } else {
-                removeDirectory(descriptor.inodeId, entries, toRemove);
-            }
+            return reader.read();
         } finally {
-            for (ReadWriteLock lock : myInodesLocks) {
-                lock.writeLock().unlock();
-            }
+            readLock.unlock();
         }
     }
 
-    public FileDescriptor tryAddFile(DirectoryDescriptor descriptor, String name) throws JFSException {
-        NameHelper.inspect(name);
+    private interface Update<T> {
+        T run() throws JFSException;
+    }
 
-        Lock writeLock = myInodesLocks[descriptor.inodeId % myInodesLocks.length].writeLock();
-        writeLock.lock();
+    private <T> T update(Update<T> update) throws JFSException {
+        return update(mySynchronousCommit, update);
+    }
+
+    /**
+     * Runs the update within a journal handle, so that all its changes are committed together.
+     * Handle has to be started before any inode lock is taken, as it may wait for a commit.
+     */
+    private <T> T update(boolean synchronous, Update<T> update) throws JFSException {
+        if (myJournal == null) {
+            return update.run();
+        }
 
+        myJournal.start();
         try {
-            ArrayList<DirectoryEntry> entries = getEntries(descriptor.inodeId);
-            DriverHelper.refuseIf(EntriesHelper.find(entries, name) != null, name + " is already in use");
-            int newInodeId = myInodesStack.pop(new AllocatedInode(Parameters.EntryType.FILE, descriptor.inodeId));
-            tryRewriteFile(newInodeId, new DataFrame(new byte[0]));
-            entries.add(new DirectoryEntry(newInodeId, Parameters.EntryType.FILE, name));
-            tryRewriteFile(descriptor.inodeId, ByteBufferHelper.toDataFrame(entries));
-            return new FileDescriptor(newInodeId);
+            return update.run();
         } finally {
-            writeLock.unlock();
+            myJournal.stop(synchronous);
         }
     }
 
-    public void tryRemoveFile(DirectoryDescriptor descriptor, String name) throws JFSException {
-        Lock writeLock = myInodesLocks[descriptor.inodeId % myInodesLocks.length].writeLock();
+    // frees detached subtree bottom up, the last leaf block of a directory at a time; every step leaves
+    // a smaller subtree behind, so reclaiming is resumed from its root after remount
+    private void reclaimSubtree(DirectoryEntry root) throws JFSException {
+        // directories from the root down to the one being reclaimed
+        ArrayList<DirectoryEntry> path = new ArrayList<DirectoryEntry>();
+        path.add(root);
+
+        // detached subtree is unreachable, so its pieces need not be durable at once
+        while (!path.isEmpty()) {
+            update(false, () -> reclaimLeaf(path));
+        }
+    }
+
+    // releases files of the last leaf of the deepest directory along with the leaf, or descends into
+    // a directory found there; directory with a single leaf left is released as a whole and its entry
+    // is dropped from the parent
+    private Void reclaimLeaf(ArrayList<DirectoryEntry> path) throws JFSException {
+        final DirectoryEntry directory = path.get(path.size() - 1);
+        ArrayList<Integer> inodes = new ArrayList<Integer>();
+        ArrayList<Integer> blocks = new ArrayList<Integer>();
+        boolean released = false;
+        Lock writeLock = myInodesLocks.writeLock(directory.inodeId);
         writeLock.lock();
 
         try {
-            ArrayList<DirectoryEntry> entries = getEntries(descriptor.inodeId);
-            DirectoryEntry toRemove = EntriesHelper.find(entries, name);
-            DriverHelper.refuseIf(toRemove == null, "no such file");
-            DriverHelper.refuseIf(toRemove.type == Parameters.EntryType.DIRECTORY, "is a directory");
-            removeFile(descriptor.inodeId, entries, toRemove);
+            AllocatedInode inode = myInodes.get(directory.inodeId);
+            final int[] leafIds = leafBlockIds(inode);
+
+            for (DirectoryEntry entry : new DirectoryBlock(myAccessor.readBlock(leafIds[leafIds.length - 1])).entries) {
+                if (entry.name.equals(".") || entry.name.equals("..")) {
+                    continue;
+                }
+
+                // marked before its own entries are read, so nothing can be added there unnoticed
+                if (entry.type == Parameters.EntryType.DIRECTORY) {
+                    myDetached.add(entry.inodeId);
+                    path.add(entry);
+                    return null;
+                }
+
+                Lock fileLock = myInodesLocks.writeLock(entry.inodeId);
+                fileLock.lock();
+                try {
+                    collectBlocks(entry.inodeId, blocks);
+                } finally {
+                    fileLock.unlock();
+                }
+                inodes.add(entry.inodeId);
+            }
+
+            if (leafIds.length > 1) {
+                // entries of the leaf go away along with it
+                try {
+                    blocks.addAll(subtractBlocks(inode, 1));
+                } finally {
+                    myInodes.write(inode, directory.inodeId);
+                }
+            } else {
+                // directory is handed out first again, before its files
+                collectBlocks(directory.inodeId, blocks);
+                inodes.add(0, directory.inodeId);
+                released = true;
+            }
         } finally {
             writeLock.unlock();
         }
-    }
 
-    @NotNull
-    public byte[] tryReadFromFile(FileDescriptor descriptor, int offset, int maxLength) throws JFSException {
-        Lock readLock = myInodesLocks[descriptor.inodeId % myInodesLocks.length].readLock();
-        readLock.lock();
+        // parent is locked only once the directory is unlocked, as waiting child first may deadlock
+        // with listing of the parent; the directory is detached, so nothing changes it meanwhile
+        if (released) {
+            path.remove(path.size() - 1);
+            if (path.isEmpty()) {
+                myOrphans.remove(directory.inodeId);
+            } else {
+                deleteReclaimedEntry(path.get(path.size() - 1), directory);
+            }
 
-        try {
-            assert (byte) (myAccessor.readInodeInt(descriptor.inodeId, InodeOffsets.INODE_DESCRIPTION) >> 24) ==
-                    Parameters.typeToByte(Parameters.EntryType.FILE);
-            return tryReadFromFile(descriptor.inodeId, offset, maxLength);
-        } finally {
-            readLock.unlock();
+            myDentries.invalidateDirectories(Collections.singleton(directory.inodeId));
         }
+
+        myBlocksAllocator.push(blocks);
+        myInodesStack.push(inodes);
+        return null;
     }
 
-    public void tryWriteIntoFile(FileDescriptor descriptor, DataFrame frame, int offset) throws JFSException {
-        Lock writeLock = myInodesLocks[descriptor.inodeId % myInodesLocks.length].writeLock();
+    // drops entry of reclaimed directory from the last leaf of its parent, where it was found
+    private void deleteReclaimedEntry(DirectoryEntry parent, DirectoryEntry entry) throws JFSException {
+        Lock writeLock = myInodesLocks.writeLock(parent.inodeId);
         writeLock.lock();
 
         try {
-            assert (byte) (myAccessor.readInodeInt(descriptor.inodeId, InodeOffsets.INODE_DESCRIPTION) >> 24) ==
-                    Parameters.typeToByte(Parameters.EntryType.FILE);
-
-            tryWriteIntoFile(descriptor.inodeId, frame, offset);
+            final int[] leafIds = leafBlockIds(myInodes.get(parent.inodeId));
+            DirectoryBlock leaf = new DirectoryBlock(myAccessor.readBlock(leafIds[leafIds.length - 1]));
+            boolean removed = leaf.remove(entry.name);
+            assert removed;
+            myAccessor.writeBlock(leaf, leafIds[leafIds.length - 1]);
         } finally {
             writeLock.unlock();
         }
     }
 
+    private void reclaim(DirectoryEntry root) throws JFSException {
+        if (myReclaimer == null) {
+            reclaimSubtree(root);
+            return;
+        }
+
+        myReclaimer.execute(() -> {
+            try {
+                reclaimSubtree(root);
+            } catch (JFSException e) {
+                myReclaimFailure.compareAndSet(null, e);
+            }
+        });
+    }
+
+    // removes file under locks of its directory and itself, directory is only detached from its parent
+    // and returned to be reclaimed
+    @Nullable
+    private DirectoryEntry removeEntry(DirectoryDescriptor descriptor, String name, boolean directoryAllowed)
+            throws JFSException {
+        while (true) {
+            Lock parentLock = myInodesLocks.writeLock(descriptor.inodeId);
+            Lock childLock = null;
+            Lock contended = null;
+            DirectoryEntry detached = null;
+            parentLock.lock();
+
+            try {
+                DriverHelper.refuseIf(myDetached.contains(descriptor.inodeId), "directory is removed");
+                DirectoryEntry toRemove = findEntry(descriptor.inodeId, name);
+                DriverHelper.refuseIf(toRemove == null, directoryAllowed ? "no such file or directory" : "no such file");
+
+                if (toRemove.type == Parameters.EntryType.DIRECTORY) {
+                    DriverHelper.refuseIf(!directoryAllowed, "is a directory");
+                    myOrphans.add(toRemove.inodeId);
+                    myDetached.add(toRemove.inodeId);
+                    deleteEntry(descriptor.inodeId, toRemove);
+                    detached = toRemove;
+                } else {
+                    // waiting is fine only in ascending inode ids order
+                    Lock lock = myInodesLocks.writeLock(toRemove.inodeId);
+                    if (lock.tryLock()) {
+                        childLock = lock;
+                    } else if (toRemove.inodeId > descriptor.inodeId) {
+                        lock.lock();
+                        childLock = lock;
+                    } else {
+                        contended = lock;
+                    }
+
+                    if (childLock != null) {
+                        removeFile(descriptor.inodeId, toRemove);
+                        return null;
+                    }
+                }
+            } finally {
+                if (childLock != null) {
+                    childLock.unlock();
+                }
+                parentLock.unlock();
+            }
+
+            if (detached != null) {
+                return detached;
+            }
+
+            contended.lock();
+            contended.unlock();
+        }
+    }
+
+    // walks the path from the root holding read lock of the current directory until the next one is locked
+    @Nullable
+    private DirectoryEntry resolveEntry(String path) throws JFSException {
+        while (true) {
+            DirectoryEntry entry = new DirectoryEntry(Parameters.ROOT_INODE_ID, Parameters.EntryType.DIRECTORY, ".");
+            Lock held = myInodesLocks.readLock(entry.inodeId);
+            Lock contended = null;
+            held.lock();
+
+            try {
+                for (int start = 0; start <= path.length() && contended == null; ) {
+                    int end = path.indexOf(NameHelper.SEPARATOR, start);
+                    end = end == -1 ? path.length() : end;
+
+                    if (end > start) {
+                        if (entry.type != Parameters.EntryType.DIRECTORY) {
+                            return null;
+                        }
+
+                        DirectoryEntry child = findEntry(entry.inodeId, path.substring(start, end));
+                        if (child == null) {
+                            return null;
+                        }
+
+                        // waiting is fine only in ascending inode ids order, which removals follow as well
+                        Lock next = myInodesLocks.readLock(child.inodeId);
+                        if (!next.tryLock()) {
+                            if (child.inodeId < entry.inodeId) {
+                                contended = next;
+                                continue;
+                            }
+
+                            next.lock();
+                        }
+
+                        held.unlock();
+                        held = next;
+                        entry = child;
+                    }
+
+                    start = end + 1;
+                }
+
+                if (contended == null) {
+                    return entry;
+                }
+            } finally {
+                held.unlock();
+            }
+
+            // lets the writer go and starts over
+            contended.lock();
+            contended.unlock();
+        }
+    }
+
+    /**
+     * Waits for removed directories to be reclaimed, returns reserved ids to the free space
+     * and flushes all the changes. Driver must not be used afterwards.
+     */
+    public void close() throws JFSException {
+        if (myReclaimer != null) {
+            myReclaimer.shutdown();
+            try {
+                while (!myReclaimer.awaitTermination(1, TimeUnit.SECONDS)) {
+                    // reclaiming large subtree may take a while
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new JFSException("interrupted while reclaiming removed directories");
+            }
+        }
+
+        JFSException failure = myReclaimFailure.get();
+        if (failure != null) {
+            throw failure;
+        }
+
+        update(false, () -> {
+            myBlocksAllocator.drain();
+            myInodesStack.drain();
+            return null;
+        });
+        flush();
+
+        if (myJournal != null) {
+            myJournal.close();
+        }
+    }
+
+    /**
+     * Commits the journal, if there is one, and writes blocks modified in the block cache back.
+     */
+    public void flush() throws JFSException {
+        if (myJournal != null) {
+            myJournal.commit();
+        }
+        myAccessor.flush();
+    }
+
+    @Nullable
+    public BlockCache getBlockCache() {
+        return myAccessor.getBlockCache();
+    }
+
+    @Nullable
+    public Journal getJournal() {
+        return myJournal;
+    }
+
+    @NotNull
+    public DirectoryDescriptor rootInode() {
+        return new DirectoryDescriptor(Parameters.ROOT_INODE_ID);
+    }
+
+    public DirectoryDescriptor tryAddDirectory(DirectoryDescriptor descriptor, String name) throws JFSException {
+        byte[] nameBytes = NameHelper.toBytes(name);
+
+        return update(() -> {
+            Lock writeLock = myInodesLocks.writeLock(descriptor.inodeId);
+            writeLock.lock();
+
+            try {
+                DriverHelper.refuseIf(myDetached.contains(descriptor.inodeId), "directory is removed");
+                DriverHelper.refuseIf(findEntry(descriptor.inodeId, name, nameBytes) != null, name + " is already in use");
+                int newInodeId = myInodesStack.pop(new AllocatedInode(Parameters.EntryType.DIRECTORY, descriptor.inodeId));
+                myDetached.remove(newInodeId);
+                initDirectory(newInodeId, descriptor.inodeId);
+                insertEntry(descriptor.inodeId, new DirectoryEntry(newInodeId, Parameters.EntryType.DIRECTORY, name, nameBytes));
+                return new DirectoryDescriptor(newInodeId);
+            } finally {
+                writeLock.unlock();
+            }
+        });
+    }
+
+    /**
+     * Removes file or directory with all its contents. Only the parent directory is locked
+     * while the directory is detached, its subtree is freed afterwards an inode at a time,
+     * in background if {@link MountOptions#backgroundReclaim} is set. On journaled volumes
+     * only the detaching is committed synchronously. On volumes with extended header removed
+     * directory is recorded on disk until it is reclaimed, so reclaiming interrupted by a crash
+     * is finished on the next mount.
+     */
+    public void tryRemoveDirectory(DirectoryDescriptor descriptor, String name) throws JFSException {
+        DriverHelper.refuseIf(name.equals(".") || name.equals(".."), "cannot remove system directory");
+        DirectoryEntry detached = update(() -> removeEntry(descriptor, name, true));
+        if (detached != null) {
+            reclaim(detached);
+        }
+    }
+
+    public FileDescriptor tryAddFile(DirectoryDescriptor descriptor, String name) throws JFSException {
+        byte[] nameBytes = NameHelper.toBytes(name);
+
+        return update(() -> {
+            Lock writeLock = myInodesLocks.writeLock(descriptor.inodeId);
+            writeLock.lock();
+
+            try {
+                DriverHelper.refuseIf(myDetached.contains(descriptor.inodeId), "directory is removed");
+                DriverHelper.refuseIf(findEntry(descriptor.inodeId, name, nameBytes) != null, name + " is already in use");
+                int newInodeId = myInodesStack.pop(new AllocatedInode(Parameters.EntryType.FILE, descriptor.inodeId));
+                myDetached.remove(newInodeId);
+                tryRewriteFile(newInodeId, new DataFrame(new byte[0]));
+                insertEntry(descriptor.inodeId, new DirectoryEntry(newInodeId, Parameters.EntryType.FILE, name, nameBytes));
+                return new FileDescriptor(newInodeId);
+            } finally {
+                writeLock.unlock();
+            }
+        });
+    }
+
+    public void tryRemoveFile(DirectoryDescriptor descriptor, String name) throws JFSException {
+        update(() -> removeEntry(descriptor, name, false));
+    }
+
+    @NotNull
+    public byte[] tryReadFromFile(FileDescriptor descriptor, int offset, int maxLength) throws JFSException {
+        return readInode(descriptor.inodeId, () -> {
+            AllocatedInode inode = myInodes.get(descriptor.inodeId);
+            assert inode.type == Parameters.EntryType.FILE;
+            return tryReadFromFile(inode, offset, maxLength);
+        });
+    }
+
+    public void tryWriteIntoFile(FileDescriptor descriptor, DataFrame frame, int offset) throws JFSException {
+        update(() -> {
+            Lock writeLock = myInodesLocks.writeLock(descriptor.inodeId);
+            writeLock.lock();
+
+            try {
+                AllocatedInode inode = myInodes.get(descriptor.inodeId);
+                assert inode.type == Parameters.EntryType.FILE;
+                tryWriteIntoFile(descriptor.inodeId, inode, frame, offset);
+                return null;
+            } finally {
+                writeLock.unlock();
+            }
+        });
+    }
+
     public int getFileSize(FileDescriptor descriptor) throws JFSException {
-        Lock readLock = myInodesLocks[descriptor.inodeId % myInodesLocks.length].readLock();
+        return readInode(descriptor.inodeId, () -> {
+            AllocatedInode inode = myInodes.get(descriptor.inodeId);
+            assert inode.type == Parameters.EntryType.FILE;
+            return inode.objectSize;
+        });
+    }
+
+    public void tryAppendToFile(FileDescriptor descriptor, DataFrame frame) throws JFSException {
+        update(() -> {
+            Lock writeLock = myInodesLocks.writeLock(descriptor.inodeId);
+            writeLock.lock();
+
+            try {
+                AllocatedInode inode = myInodes.get(descriptor.inodeId);
+                assert inode.type == Parameters.EntryType.FILE;
+                tryWriteIntoFile(descriptor.inodeId, inode, frame, inode.objectSize);
+                return null;
+            } finally {
+                writeLock.unlock();
+            }
+        });
+    }
+
+    // bytes of the given leaf block of directory, null if there are no more of them
+    @Nullable
+    byte[] readDirectoryBlock(DirectoryDescriptor descriptor, int blockIndex) throws JFSException {
+        Lock readLock = myInodesLocks.readLock(descriptor.inodeId);
         readLock.lock();
 
         try {
-            assert (byte) (myAccessor.readInodeInt(descriptor.inodeId, InodeOffsets.INODE_DESCRIPTION) >> 24) ==
-                    Parameters.typeToByte(Parameters.EntryType.FILE);
-            return myAccessor.readInodeInt(descriptor.inodeId, InodeOffsets.OBJECT_SIZE);
+            AllocatedInode inode = myInodes.get(descriptor.inodeId);
+            final int firstLeaf = myHashedDirectories ? 1 : 0;
+            if (inode.type != Parameters.EntryType.DIRECTORY || myDetached.contains(descriptor.inodeId)
+                    || firstLeaf + blockIndex >= InodeHelper.blocksForSize(inode.objectSize)) {
+                return null;
+            }
+
+            return myAccessor.readBlock(myBlockMap.blockIds(inode, firstLeaf + blockIndex, 1)[0]);
         } finally {
             readLock.unlock();
         }
     }
 
-    public void tryAppendToFile(FileDescriptor descriptor, DataFrame frame) throws JFSException {
-        Lock writeLock = myInodesLocks[descriptor.inodeId % myInodesLocks.length].writeLock();
-        writeLock.lock();
+    /**
+     * Opens cursor over entries of the directory, which are read lazily block by block.
+     */
+    @NotNull
+    public DirectoryCursor openDirectory(DirectoryDescriptor descriptor) {
+        return new DirectoryCursor(this, descriptor);
+    }
 
-        try {
-            assert (byte) (myAccessor.readInodeInt(descriptor.inodeId, InodeOffsets.INODE_DESCRIPTION) >> 24) ==
-                    Parameters.typeToByte(Parameters.EntryType.FILE);
-            int offset = myAccessor.readInodeInt(descriptor.inodeId, InodeOffsets.OBJECT_SIZE);
+    /**
+     * Lists entries of the directory along with type, size and blocks number of each of them.
+     * Inodes of the entries are read in batches of neighbouring slots.
+     */
+    @NotNull
+    public ArrayList<EntryInfo> listDirectory(DirectoryDescriptor descriptor) throws JFSException {
+        while (true) {
+            Lock parentLock = myInodesLocks.readLock(descriptor.inodeId);
+            ArrayList<Lock> held = new ArrayList<Lock>();
+            Lock contended = null;
+            parentLock.lock();
+
+            try {
+                ArrayList<DirectoryEntry> entries = getEntries(descriptor.inodeId);
+
+                // inodes of the entries are locked in ascending order, same as in removeEntry
+                int[] inodeIds = entries.stream()
+                        .mapToInt(entry -> entry.inodeId)
+                        .filter(inodeId -> inodeId != descriptor.inodeId)
+                        .sorted()
+                        .distinct()
+                        .toArray();
+
+                for (int i = 0; i < inodeIds.length && contended == null; ++i) {
+                    Lock lock = myInodesLocks.readLock(inodeIds[i]);
+                    if (lock.tryLock()) {
+                        held.add(lock);
+                    } else if (inodeIds[i] > descriptor.inodeId) {
+                        lock.lock();
+                        held.add(lock);
+                    } else {
+                        contended = lock;
+                    }
+                }
 
-            tryWriteIntoFile(descriptor.inodeId, frame, offset);
-        } finally {
-            writeLock.unlock();
+                if (contended == null) {
+                    return describeEntries(entries);
+                }
+            } finally {
+                held.forEach(Lock::unlock);
+                parentLock.unlock();
+            }
+
+            contended.lock();
+            contended.unlock();
         }
     }
 
     @NotNull
-    public Map<String, DirectoryDescriptor>  getDirectories(DirectoryDescriptor descriptor) throws JFSException {
-        Lock readLock = myInodesLocks[descriptor.inodeId % myInodesLocks.length].readLock();
-        readLock.lock();
+    @GuardedBy("myInodesLocks")
+    private ArrayList<EntryInfo> describeEntries(ArrayList<DirectoryEntry> entries) throws JFSException {
+        int[] inodeIds = new int[entries.size()];
+        for (int i = 0; i < inodeIds.length; ++i) {
+            inodeIds[i] = entries.get(i).inodeId;
+        }
 
-        try {
+        AllocatedInode[] inodes = myInodes.getAll(inodeIds);
+        ArrayList<EntryInfo> result = new ArrayList<EntryInfo>(inodes.length);
+        for (int i = 0; i < inodes.length; ++i) {
+            DirectoryEntry entry = entries.get(i);
+            int size = inodes[i].objectSize;
+            result.add(new EntryInfo(entry.name, entry.type, size, InodeHelper.blocksForSize(size), entry.inodeId));
+        }
+
+        return result;
+    }
+
+    @NotNull
+    public Map<String, DirectoryDescriptor>  getDirectories(DirectoryDescriptor descriptor) throws JFSException {
+        return readInode(descriptor.inodeId, () -> {
             Map<String, DirectoryDescriptor> result = new HashMap<String, DirectoryDescriptor>();
-            ArrayList<DirectoryEntry> entries = getEntries(descriptor.inodeId);
-            entries.forEach(entry -> {
+            for (DirectoryEntry entry : getEntries(descriptor.inodeId)) {
                 if (entry.type == Parameters.EntryType.DIRECTORY) {
                     result.put(entry.name, new DirectoryDescriptor(entry.inodeId));
                 }
-            });
+            }
 
             return result;
-        } finally {
-            readLock.unlock();
-        }
+        });
     }
 
     @NotNull
     public Map<String, FileDescriptor> getFiles(DirectoryDescriptor descriptor) throws JFSException {
-        Lock readLock = myInodesLocks[descriptor.inodeId % myInodesLocks.length].readLock();
-        readLock.lock();
-
-        try {
+        return readInode(descriptor.inodeId, () -> {
             Map<String, FileDescriptor> result = new HashMap<String, FileDescriptor>();
-            ArrayList<DirectoryEntry> entries = getEntries(descriptor.inodeId);
-            entries.forEach(entry -> {
+            for (DirectoryEntry entry : getEntries(descriptor.inodeId)) {
                 if (entry.type == Parameters.EntryType.FILE) {
                     result.put(entry.name, new FileDescriptor(entry.inodeId));
                 }
-            });
+            }
 
             return result;
+        });
+    }
+
+    @Nullable
+    public DirectoryDescriptor getDirectory(DirectoryDescriptor descriptor, String name) throws JFSException {
+        Lock readLock = myInodesLocks.readLock(descriptor.inodeId);
+        readLock.lock();
+
+        try {
+            DirectoryEntry entry = findEntry(descriptor.inodeId, name);
+            return entry != null && entry.type == Parameters.EntryType.DIRECTORY
+                    ? new DirectoryDescriptor(entry.inodeId)
+                    : null;
         } finally {
             readLock.unlock();
         }
     }
 
-    @NotNull
-    public DirectoryDescriptor getParentDirectory(DirectoryDescriptor descriptor) throws JFSException {
-        Lock readLock = myInodesLocks[descriptor.inodeId % myInodesLocks.length].readLock();
+    @Nullable
+    public FileDescriptor getFile(DirectoryDescriptor descriptor, String name) throws JFSException {
+        Lock readLock = myInodesLocks.readLock(descriptor.inodeId);
         readLock.lock();
 
         try {
+            DirectoryEntry entry = findEntry(descriptor.inodeId, name);
+            return entry != null && entry.type == Parameters.EntryType.FILE
+                    ? new FileDescriptor(entry.inodeId)
+                    : null;
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * Finds directory by path of names separated with {@link NameHelper#SEPARATOR}, starting from the root.
+     * Returns null if some name on the path is missing or is not a directory.
+     */
+    @Nullable
+    public DirectoryDescriptor resolve(String path) throws JFSException {
+        DirectoryEntry entry = resolveEntry(path);
+        return entry != null && entry.type == Parameters.EntryType.DIRECTORY
+                ? new DirectoryDescriptor(entry.inodeId)
+                : null;
+    }
+
+    /**
+     * Finds file by path of names separated with {@link NameHelper#SEPARATOR}, starting from the root.
+     * Returns null if some name on the path is missing or is of a wrong type.
+     */
+    @Nullable
+    public FileDescriptor resolveFile(String path) throws JFSException {
+        DirectoryEntry entry = resolveEntry(path);
+        return entry != null && entry.type == Parameters.EntryType.FILE
+                ? new FileDescriptor(entry.inodeId)
+                : null;
+    }
 
-            assert Parameters.typeToByte(Parameters.EntryType.DIRECTORY) ==
-                    (byte) (myAccessor.readInodeInt(descriptor.inodeId, InodeOffsets.INODE_DESCRIPTION) >> 24);
+    @NotNull
+    public DirectoryDescriptor getParentDirectory(DirectoryDescriptor descriptor) throws JFSException {
+        Lock readLock = myInodesLocks.readLock(descriptor.inodeId);
+        readLock.lock();
 
-            AllocatedInode inode = new AllocatedInode(myAccessor.readInode(descriptor.inodeId));
+        try {
+            AllocatedInode inode = myInodes.get(descriptor.inodeId);
+            assert inode.type == Parameters.EntryType.DIRECTORY;
             return new DirectoryDescriptor(inode.parentId);
         } finally {
             readLock.unlock();
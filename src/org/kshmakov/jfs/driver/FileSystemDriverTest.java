@@ -4,12 +4,18 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.kshmakov.jfs.TestCommon;
+import org.kshmakov.jfs.io.Features;
 import org.kshmakov.jfs.io.FileAccessor;
 import org.kshmakov.jfs.io.HeaderOffsets;
 import org.kshmakov.jfs.io.Parameters;
+import org.kshmakov.jfs.io.primitives.DirectoryEntry;
 
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static org.junit.Assert.*;
 
@@ -192,7 +198,7 @@ public class FileSystemDriverTest {
 
         String fileName = "file.txt";
 
-        int bufferSize = Parameters.MAX_FILE_SIZE;
+        int bufferSize = Parameters.DIRECT_POINTERS_NUMBER * Parameters.DATA_BLOCK_SIZE;
         byte[] bytes = new byte[bufferSize];
 
         for (int i = 0; i < bufferSize; ++i) {
@@ -230,6 +236,640 @@ public class FileSystemDriverTest {
         assertEquals(aDir, driver.getParentDirectory(bDir));
     }
 
+    @Test
+    public void test11() throws IOException, JFSException {
+        /**
+         * Checks memory mapped accessor agrees with plain channel accessor.
+         */
+        FileAccessor mappedAccessor = TestCommon.createMappedAccessor();
+        FileSystemDriver mappedDriver = new FileSystemDriver(mappedAccessor);
+
+        DirectoryDescriptor aDir = mappedDriver.tryAddDirectory(mappedDriver.rootInode(), "a");
+        FileDescriptor file = mappedDriver.tryAddFile(aDir, "file.txt");
+
+        String[] input = new String[]{"First_line.", "Second_line.", "Bazinga!"};
+        TestCommon.writelnLinesTo(mappedDriver, file, input);
+
+        assertEquals(28, accessor.readHeaderInt(HeaderOffsets.TOTAL_UNALLOCATED_INODES));
+        assertEquals(45, mappedAccessor.readHeaderInt(HeaderOffsets.TOTAL_UNALLOCATED_BLOCKS));
+
+        DirectoryDescriptor plainDir = driver.getDirectories(driver.rootInode()).get("a");
+        assertEquals(aDir, plainDir);
+        assertArrayEquals(input, TestCommon.readLinesFrom(driver, driver.getFiles(plainDir).get("file.txt")));
+    }
+
+    @Test
+    public void test12() throws IOException, JFSException {
+        /**
+         * Checks unaligned overwrites keep the rest of touched blocks.
+         */
+        FileDescriptor file = driver.tryAddFile(driver.rootInode(), "file.txt");
+
+        byte[] expected = new byte[3 * Parameters.DATA_BLOCK_SIZE + 100];
+        for (int i = 0; i < expected.length; ++i) {
+            expected[i] = (byte) (i % 101);
+        }
+
+        driver.tryWriteIntoFile(file, new DataFrame(expected), 0);
+
+        byte[] patch = new byte[Parameters.DATA_BLOCK_SIZE + 10];
+        for (int i = 0; i < patch.length; ++i) {
+            patch[i] = (byte) (i % 7);
+        }
+
+        int offset = Parameters.DATA_BLOCK_SIZE - 5;
+        driver.tryWriteIntoFile(file, new DataFrame(patch, 3, patch.length - 3), offset);
+        System.arraycopy(patch, 3, expected, offset, patch.length - 3);
+
+        assertEquals(expected.length, driver.getFileSize(file));
+        assertArrayEquals(expected, driver.tryReadFromFile(file, 0, expected.length));
+
+        byte[] middle = driver.tryReadFromFile(file, 17, Parameters.DATA_BLOCK_SIZE);
+        for (int i = 0; i < middle.length; ++i) {
+            assertEquals(expected[17 + i], middle[i]);
+        }
+    }
+
+    @Test
+    public void test13() throws IOException, JFSException {
+        /**
+         * Checks driver over bitmap allocator returns every block it takes.
+         */
+        accessor = TestCommon.createAccessor(200000, Features.BITMAP_ALLOCATOR);
+        driver = new FileSystemDriver(accessor);
+        assertEquals(46, accessor.readHeaderInt(HeaderOffsets.TOTAL_UNALLOCATED_BLOCKS));
+
+        DirectoryDescriptor aDir = driver.tryAddDirectory(driver.rootInode(), "a");
+        FileDescriptor file = driver.tryAddFile(aDir, "file.txt");
+
+        byte[] bytes = new byte[5 * Parameters.DATA_BLOCK_SIZE];
+        for (int i = 0; i < bytes.length; ++i) {
+            bytes[i] = (byte) (i % 100);
+        }
+
+        driver.tryWriteIntoFile(file, new DataFrame(bytes), 0);
+        assertEquals(40, accessor.readHeaderInt(HeaderOffsets.TOTAL_UNALLOCATED_BLOCKS));
+        assertArrayEquals(bytes, driver.tryReadFromFile(file, 0, bytes.length));
+
+        driver.tryRemoveDirectory(driver.rootInode(), "a");
+        assertEquals(30, accessor.readHeaderInt(HeaderOffsets.TOTAL_UNALLOCATED_INODES));
+        assertEquals(46, accessor.readHeaderInt(HeaderOffsets.TOTAL_UNALLOCATED_BLOCKS));
+    }
+
+    @Test
+    public void test14() throws IOException, JFSException {
+        /**
+         * Checks files beyond direct pointers go through singly and doubly indirect blocks.
+         */
+        accessor = TestCommon.createAccessor(16 << 20);
+        driver = new FileSystemDriver(accessor);
+        final int unallocatedBlocks = accessor.readHeaderInt(HeaderOffsets.TOTAL_UNALLOCATED_BLOCKS);
+
+        FileDescriptor file = driver.tryAddFile(driver.rootInode(), "big.bin");
+
+        // direct, singly indirect and two blocks below doubly indirect one
+        final int blocksNumber = Parameters.DIRECT_POINTERS_NUMBER + Parameters.POINTERS_PER_BLOCK + 1500;
+        byte[] bytes = new byte[blocksNumber * Parameters.DATA_BLOCK_SIZE];
+        for (int i = 0; i < bytes.length; ++i) {
+            bytes[i] = (byte) (i % 101);
+        }
+
+        int half = bytes.length / 2 + 17;
+        driver.tryWriteIntoFile(file, new DataFrame(Arrays.copyOf(bytes, half)), 0);
+        driver.tryAppendToFile(file, new DataFrame(Arrays.copyOfRange(bytes, half, bytes.length)));
+
+        assertEquals(bytes.length, driver.getFileSize(file));
+        assertEquals(unallocatedBlocks - blocksNumber - 4, accessor.readHeaderInt(HeaderOffsets.TOTAL_UNALLOCATED_BLOCKS));
+        assertArrayEquals(bytes, driver.tryReadFromFile(file, 0, bytes.length));
+
+        int offset = (Parameters.DIRECT_POINTERS_NUMBER + Parameters.POINTERS_PER_BLOCK) * Parameters.DATA_BLOCK_SIZE - 100;
+        assertArrayEquals(Arrays.copyOfRange(bytes, offset, offset + 200), driver.tryReadFromFile(file, offset, 200));
+
+        driver.tryRemoveFile(driver.rootInode(), "big.bin");
+        assertEquals(unallocatedBlocks, accessor.readHeaderInt(HeaderOffsets.TOTAL_UNALLOCATED_BLOCKS));
+    }
+
+    @Test
+    public void test15() throws IOException, JFSException {
+        /**
+         * Checks extent mapped files grow, shrink and release every block.
+         */
+        accessor = TestCommon.createAccessor(16 << 20, (short) (Features.BITMAP_ALLOCATOR | Features.EXTENTS));
+        driver = new FileSystemDriver(accessor);
+        final int unallocatedBlocks = accessor.readHeaderInt(HeaderOffsets.TOTAL_UNALLOCATED_BLOCKS);
+
+        DirectoryDescriptor dir = driver.tryAddDirectory(driver.rootInode(), "logs");
+        FileDescriptor first = driver.tryAddFile(dir, "first.log");
+        FileDescriptor second = driver.tryAddFile(dir, "second.log");
+
+        // interleaved appends fragment both files
+        byte[] chunk = new byte[3 * Parameters.DATA_BLOCK_SIZE + 5];
+        for (int i = 0; i < chunk.length; ++i) {
+            chunk[i] = (byte) (i % 97);
+        }
+
+        for (int repetition = 0; repetition < 10; ++repetition) {
+            driver.tryAppendToFile(first, new DataFrame(chunk));
+            driver.tryAppendToFile(second, new DataFrame(chunk));
+        }
+
+        byte[] bytes = driver.tryReadFromFile(second, 0, 10 * chunk.length);
+        for (int i = 0; i < bytes.length; ++i) {
+            assertEquals((byte) ((i % chunk.length) % 97), bytes[i]);
+        }
+
+        for (int i = 0; i < 200; ++i) {
+            driver.tryAddFile(dir, "file" + i);
+        }
+
+        assertEquals(202, driver.getFiles(dir).size());
+        driver.tryRemoveFile(dir, "first.log");
+        assertEquals(201, driver.getFiles(dir).size());
+
+        driver.tryRemoveDirectory(driver.rootInode(), "logs");
+        assertEquals(unallocatedBlocks, accessor.readHeaderInt(HeaderOffsets.TOTAL_UNALLOCATED_BLOCKS));
+    }
+
+    @Test
+    public void test16() throws IOException, JFSException {
+        /**
+         * Checks lazily formatted volume hands out never used ids past stale contents and reuses released ones.
+         */
+        byte[] garbage = new byte[200000];
+        Arrays.fill(garbage, (byte) 0x5A);
+        TestCommon.createFile(garbage.length);
+        try (RandomAccessFile file = new RandomAccessFile("temp.jfs", "rw")) {
+            file.write(garbage);
+        }
+
+        TestCommon.formatFile(Features.LAZY_FORMAT);
+        accessor = TestCommon.openAccessor();
+        driver = new FileSystemDriver(accessor);
+        final int unallocatedInodes = accessor.readHeaderInt(HeaderOffsets.TOTAL_UNALLOCATED_INODES);
+        final int unallocatedBlocks = accessor.readHeaderInt(HeaderOffsets.TOTAL_UNALLOCATED_BLOCKS);
+
+        for (int repetition = 0; repetition < 3; ++repetition) {
+            DirectoryDescriptor dir = driver.tryAddDirectory(driver.rootInode(), "dir");
+            for (int i = 0; i < unallocatedInodes - 1; ++i) {
+                FileDescriptor file = driver.tryAddFile(dir, "file" + i);
+                driver.tryWriteIntoFile(file, new DataFrame(new byte[]{(byte) i}), 0);
+            }
+
+            assertEquals(0, accessor.readHeaderInt(HeaderOffsets.TOTAL_UNALLOCATED_INODES));
+            assertEquals(unallocatedInodes + 1, accessor.readHeaderInt(HeaderOffsets.INODES_HIGH_WATER_MARK));
+            assertEquals(unallocatedInodes - 1, driver.getFiles(dir).size());
+            assertArrayEquals(new byte[]{7}, driver.tryReadFromFile(driver.getFiles(dir).get("file7"), 0, 1));
+
+            driver.tryRemoveDirectory(driver.rootInode(), "dir");
+            assertEquals(unallocatedInodes, accessor.readHeaderInt(HeaderOffsets.TOTAL_UNALLOCATED_INODES));
+            assertEquals(unallocatedBlocks, accessor.readHeaderInt(HeaderOffsets.TOTAL_UNALLOCATED_BLOCKS));
+        }
+    }
+
+    @Test
+    public void test17() throws IOException, JFSException {
+        /**
+         * Checks hashed directories split leaves and keep every name reachable.
+         */
+        TestCommon.createFile(64 << 20);
+        TestCommon.formatFile((short) (Features.HASHED_DIRECTORIES | Features.LAZY_FORMAT | Features.BITMAP_ALLOCATOR));
+        accessor = TestCommon.openAccessor();
+        driver = new FileSystemDriver(accessor);
+        final int unallocatedBlocks = accessor.readHeaderInt(HeaderOffsets.TOTAL_UNALLOCATED_BLOCKS);
+
+        DirectoryDescriptor dir = driver.tryAddDirectory(driver.rootInode(), "dir");
+        for (int i = 0; i < 5000; ++i) {
+            driver.tryAddFile(dir, "file" + i);
+        }
+
+        Map<String, FileDescriptor> files = driver.getFiles(dir);
+        assertEquals(5000, files.size());
+        assertEquals(2, driver.getDirectories(dir).size());
+
+        for (int i = 0; i < 5000; i += 2) {
+            driver.tryRemoveFile(dir, "file" + i);
+        }
+
+        for (int i = 0; i < 5000; ++i) {
+            try {
+                driver.tryAddFile(dir, "file" + i);
+                assertEquals(0, i % 2);
+            } catch (JFSException e) {
+                assertEquals(1, i % 2);
+            }
+        }
+
+        assertEquals(5000, driver.getFiles(dir).size());
+        assertEquals(files.get("file1").inodeId, driver.getFiles(dir).get("file1").inodeId);
+
+        driver.tryRemoveDirectory(driver.rootInode(), "dir");
+        assertEquals(unallocatedBlocks, accessor.readHeaderInt(HeaderOffsets.TOTAL_UNALLOCATED_BLOCKS));
+        assertTrue(driver.getFiles(driver.rootInode()).isEmpty());
+    }
+
+    @Test
+    public void test18() throws IOException, JFSException {
+        /**
+         * Checks directory entries are inserted into free room of existing blocks and emptied trailing block is released.
+         */
+        accessor = TestCommon.createAccessor(1 << 20);
+        driver = new FileSystemDriver(accessor);
+        DirectoryDescriptor rootDir = driver.rootInode();
+        final int unallocatedBlocks = accessor.readHeaderInt(HeaderOffsets.TOTAL_UNALLOCATED_BLOCKS);
+
+        // names of 100 bytes fill a block with 38 entries besides "." and ".."
+        String prefix = new String(new char[96]).replace('\0', 'x');
+        for (int i = 0; i < 38; ++i) {
+            driver.tryAddFile(rootDir, prefix + String.format("%04d", i));
+        }
+
+        assertEquals(unallocatedBlocks, accessor.readHeaderInt(HeaderOffsets.TOTAL_UNALLOCATED_BLOCKS));
+
+        driver.tryAddFile(rootDir, prefix + "0038");
+        assertEquals(unallocatedBlocks - 1, accessor.readHeaderInt(HeaderOffsets.TOTAL_UNALLOCATED_BLOCKS));
+
+        // freed room in the first block is reused
+        driver.tryRemoveFile(rootDir, prefix + "0005");
+        driver.tryAddFile(rootDir, prefix + "0039");
+        assertEquals(unallocatedBlocks - 1, accessor.readHeaderInt(HeaderOffsets.TOTAL_UNALLOCATED_BLOCKS));
+
+        driver.tryRemoveFile(rootDir, prefix + "0038");
+        assertEquals(unallocatedBlocks, accessor.readHeaderInt(HeaderOffsets.TOTAL_UNALLOCATED_BLOCKS));
+        assertEquals(38, driver.getFiles(rootDir).size());
+        assertNotNull(driver.getFiles(rootDir).get(prefix + "0039"));
+    }
+
+    @Test
+    public void test19() throws IOException, JFSException {
+        /**
+         * Checks single name lookups stay coherent with additions and removals.
+         */
+        DirectoryDescriptor rootDir = driver.rootInode();
+        assertNull(driver.getFile(rootDir, "file.txt"));
+        assertNull(driver.getDirectory(rootDir, "dir"));
+
+        FileDescriptor file = driver.tryAddFile(rootDir, "file.txt");
+        DirectoryDescriptor dir = driver.tryAddDirectory(rootDir, "dir");
+        driver.tryAddFile(dir, "inner.txt");
+
+        assertEquals(file.inodeId, driver.getFile(rootDir, "file.txt").inodeId);
+        assertEquals(dir.inodeId, driver.getDirectory(rootDir, "dir").inodeId);
+        assertEquals(rootDir.inodeId, driver.getDirectory(dir, "..").inodeId);
+        assertNull(driver.getDirectory(rootDir, "file.txt"));
+        assertNull(driver.getFile(rootDir, "dir"));
+        assertNotNull(driver.getFile(dir, "inner.txt"));
+
+        driver.tryRemoveFile(rootDir, "file.txt");
+        assertNull(driver.getFile(rootDir, "file.txt"));
+
+        // released inode of the directory is reused by the next one
+        driver.tryRemoveDirectory(rootDir, "dir");
+        assertNull(driver.getDirectory(rootDir, "dir"));
+        DirectoryDescriptor otherDir = driver.tryAddDirectory(rootDir, "other");
+        assertEquals(dir.inodeId, otherDir.inodeId);
+        assertNull(driver.getFile(otherDir, "inner.txt"));
+    }
+
+    @Test
+    public void test20() throws IOException, JFSException {
+        /**
+         * Checks whole paths are resolved in a single call.
+         */
+        DirectoryDescriptor a = driver.tryAddDirectory(driver.rootInode(), "a");
+        DirectoryDescriptor b = driver.tryAddDirectory(a, "b");
+        FileDescriptor file = driver.tryAddFile(b, "file");
+
+        assertEquals(Parameters.ROOT_INODE_ID, driver.resolve("").inodeId);
+        assertEquals(Parameters.ROOT_INODE_ID, driver.resolve("/").inodeId);
+        assertEquals(b.inodeId, driver.resolve("/a/b").inodeId);
+        assertEquals(b.inodeId, driver.resolve("a//b/").inodeId);
+        assertEquals(a.inodeId, driver.resolve("a/b/..").inodeId);
+        assertEquals(file.inodeId, driver.resolveFile("a/./b/file").inodeId);
+
+        assertNull(driver.resolve("a/b/file"));
+        assertNull(driver.resolveFile("a/b"));
+        assertNull(driver.resolve("a/c"));
+        assertNull(driver.resolveFile("a/b/file/x"));
+    }
+
+    @Test
+    public void test21() throws Exception {
+        /**
+         * Checks path resolution keeps going while directories on the path are added and removed.
+         */
+        accessor = TestCommon.createAccessor(1 << 20);
+        driver = new FileSystemDriver(accessor);
+        DirectoryDescriptor rootDir = driver.rootInode();
+        driver.tryAddFile(driver.tryAddDirectory(driver.tryAddDirectory(rootDir, "stable"), "inner"), "file");
+
+        AtomicReference<Exception> failure = new AtomicReference<Exception>();
+        Thread resolver = new Thread(() -> {
+            try {
+                for (int i = 0; i < 2000; ++i) {
+                    assertNotNull(driver.resolveFile("stable/inner/file"));
+                    driver.resolve("volatile/inner");
+                }
+            } catch (Exception e) {
+                failure.set(e);
+            }
+        });
+
+        resolver.start();
+        for (int i = 0; i < 200; ++i) {
+            driver.tryAddDirectory(driver.tryAddDirectory(rootDir, "volatile"), "inner");
+            driver.tryRemoveDirectory(rootDir, "volatile");
+        }
+
+        resolver.join();
+        assertNull(failure.get());
+    }
+
+    @Test
+    public void test22() throws IOException, JFSException {
+        /**
+         * Checks directory cursor returns every entry of multi-block plain and hashed directories.
+         */
+        short[] featureSets = {0, (short) (Features.HASHED_DIRECTORIES | Features.BITMAP_ALLOCATOR)};
+        for (short features : featureSets) {
+            accessor = TestCommon.createAccessor(4 << 20, features);
+            driver = new FileSystemDriver(accessor);
+            DirectoryDescriptor rootDir = driver.rootInode();
+
+            final int filesNumber = 300;
+            for (int i = 0; i < filesNumber; ++i) {
+                driver.tryAddFile(rootDir, "file_with_long_enough_name_" + i);
+            }
+            driver.tryAddDirectory(rootDir, "dir");
+
+            Map<String, FileDescriptor> files = driver.getFiles(rootDir);
+            Map<String, DirectoryDescriptor> directories = driver.getDirectories(rootDir);
+            assertEquals(filesNumber, files.size());
+
+            int filesSeen = 0;
+            int directoriesSeen = 0;
+            DirectoryCursor cursor = driver.openDirectory(rootDir);
+            for (DirectoryEntry entry = cursor.next(); entry != null; entry = cursor.next()) {
+                if (entry.type == Parameters.EntryType.FILE) {
+                    assertEquals(files.get(entry.name).inodeId, entry.inodeId);
+                    ++filesSeen;
+                } else {
+                    assertEquals(directories.get(entry.name).inodeId, entry.inodeId);
+                    ++directoriesSeen;
+                }
+            }
+
+            assertEquals(filesNumber, filesSeen);
+            assertEquals(directories.size(), directoriesSeen);
+            assertNull(cursor.next());
+        }
+    }
+
+    @Test
+    public void test23() throws IOException, JFSException {
+        /**
+         * Checks directory listing reports the same sizes as separate requests do.
+         */
+        accessor = TestCommon.createAccessor(4 << 20);
+        driver = new FileSystemDriver(accessor);
+        DirectoryDescriptor rootDir = driver.rootInode();
+
+        final int filesNumber = 100;
+        for (int i = 0; i < filesNumber; ++i) {
+            FileDescriptor file = driver.tryAddFile(rootDir, "file" + i);
+            driver.tryAppendToFile(file, new DataFrame(new byte[i * 97]));
+            if (i % 10 == 0) {
+                driver.tryAddDirectory(rootDir, "dir" + i);
+            }
+        }
+
+        // new driver starts with empty inode cache, so all inodes are read in batches
+        driver = new FileSystemDriver(accessor);
+        ArrayList<EntryInfo> infos = driver.listDirectory(rootDir);
+        assertEquals(filesNumber + filesNumber / 10 + 2, infos.size());
+
+        for (EntryInfo info : infos) {
+            if (info.type == Parameters.EntryType.FILE) {
+                assertNull(info.directory());
+                assertEquals(driver.getFileSize(info.file()), info.size);
+                assertEquals((info.size + Parameters.DATA_BLOCK_SIZE - 1) / Parameters.DATA_BLOCK_SIZE, info.blocksNumber);
+            } else {
+                assertNull(info.file());
+                assertEquals(driver.getDirectories(rootDir).get(info.name), info.directory());
+                assertTrue(info.size > 0);
+            }
+        }
+    }
+
+    @Test
+    public void test24() throws IOException, JFSException {
+        /**
+         * Checks lookups tell apart names of the same encoded length and survive invalid names.
+         */
+        accessor = TestCommon.createAccessor(1 << 20);
+        driver = new FileSystemDriver(accessor);
+        DirectoryDescriptor rootDir = driver.rootInode();
+
+        FileDescriptor latin = driver.tryAddFile(rootDir, "file_ab");
+        FileDescriptor cyrillic = driver.tryAddFile(rootDir, "file_\u0444");
+        DirectoryDescriptor dir = driver.tryAddDirectory(rootDir, "\u0434\u0438\u0440");
+
+        assertEquals(latin.inodeId, driver.getFile(rootDir, "file_ab").inodeId);
+        assertEquals(cyrillic.inodeId, driver.getFile(rootDir, "file_\u0444").inodeId);
+        assertEquals(dir.inodeId, driver.resolve("/\u0434\u0438\u0440").inodeId);
+        assertNull(driver.getFile(rootDir, "file_ac"));
+        assertNull(driver.getFile(rootDir, "file_\u0445"));
+        assertNull(driver.getFile(rootDir, "file_a"));
+        assertNull(driver.getDirectory(rootDir, "a/b"));
+    }
+
+    @Test
+    public void test25() throws Exception {
+        /**
+         * Checks removed tree is reclaimed in background while the rest of file system is in use.
+         */
+        accessor = TestCommon.createAccessor(4 << 20);
+        MountOptions options = new MountOptions();
+        options.backgroundReclaim = true;
+        driver = new FileSystemDriver(accessor, options);
+        DirectoryDescriptor rootDir = driver.rootInode();
+
+        final int unallocatedInodes = accessor.readHeaderInt(HeaderOffsets.TOTAL_UNALLOCATED_INODES);
+        final int unallocatedBlocks = accessor.readHeaderInt(HeaderOffsets.TOTAL_UNALLOCATED_BLOCKS);
+
+        DirectoryDescriptor tree = driver.tryAddDirectory(rootDir, "tree");
+        for (int i = 0; i < 10; ++i) {
+            DirectoryDescriptor dir = driver.tryAddDirectory(tree, "dir" + i);
+            for (int j = 0; j < 20; ++j) {
+                FileDescriptor file = driver.tryAddFile(dir, "file" + j);
+                driver.tryAppendToFile(file, new DataFrame(new byte[Parameters.DATA_BLOCK_SIZE + j]));
+            }
+        }
+
+        DirectoryDescriptor inner = driver.getDirectory(tree, "dir3");
+        driver.tryRemoveDirectory(rootDir, "tree");
+        assertNull(driver.resolve("tree"));
+        assertNull(driver.getFile(tree, "dir0"));
+
+        try {
+            driver.tryAddFile(tree, "late");
+            fail("removed directory must not accept new entries");
+        } catch (JFSException e) {
+            // expected
+        }
+
+        FileDescriptor other = driver.tryAddFile(driver.tryAddDirectory(rootDir, "other"), "file");
+        driver.tryAppendToFile(other, new DataFrame(new byte[]{1, 2, 3}));
+        assertArrayEquals(new byte[]{1, 2, 3}, driver.tryReadFromFile(other, 0, 3));
+        driver.tryRemoveDirectory(rootDir, "other");
+        assertNotNull(inner);
+
+        driver.close();
+        assertEquals(unallocatedInodes, accessor.readHeaderInt(HeaderOffsets.TOTAL_UNALLOCATED_INODES));
+        assertEquals(unallocatedBlocks, accessor.readHeaderInt(HeaderOffsets.TOTAL_UNALLOCATED_BLOCKS));
+    }
+
+    @Test
+    public void test26() throws Exception {
+        /**
+         * Checks reads without locks never return data of a half-done write.
+         */
+        accessor = TestCommon.createAccessor(4 << 20);
+        driver = new FileSystemDriver(accessor);
+        FileDescriptor file = driver.tryAddFile(driver.rootInode(), "file");
+        final int length = 3 * Parameters.DATA_BLOCK_SIZE + 100;
+        driver.tryWriteIntoFile(file, new DataFrame(new byte[length]), 0);
+
+        AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Thread[] readers = new Thread[3];
+        for (int i = 0; i < readers.length; ++i) {
+            readers[i] = new Thread(() -> {
+                try {
+                    for (int j = 0; j < 2000; ++j) {
+                        byte[] bytes = driver.tryReadFromFile(file, 0, Integer.MAX_VALUE);
+                        assertEquals(length, bytes.length);
+                        for (byte b : bytes) {
+                            assertEquals(bytes[0], b);
+                        }
+                    }
+                } catch (Throwable e) {
+                    failure.set(e);
+                }
+            });
+            readers[i].start();
+        }
+
+        for (int i = 1; i <= 300; ++i) {
+            byte[] bytes = new byte[length];
+            Arrays.fill(bytes, (byte) i);
+            driver.tryWriteIntoFile(file, new DataFrame(bytes), 0);
+        }
+
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        assertNull(failure.get());
+    }
+
+    @Test
+    public void test27() throws Exception {
+        /**
+         * Checks files created by several threads with allocation magazines leave exact counters on close.
+         */
+        accessor = TestCommon.createAccessor(4 << 20, Features.BITMAP_ALLOCATOR);
+        MountOptions options = new MountOptions();
+        options.allocationMagazines = 4;
+        options.magazineSize = 8;
+        driver = new FileSystemDriver(accessor, options);
+
+        final int unallocatedInodes = accessor.readHeaderInt(HeaderOffsets.TOTAL_UNALLOCATED_INODES);
+        final int unallocatedBlocks = accessor.readHeaderInt(HeaderOffsets.TOTAL_UNALLOCATED_BLOCKS);
+        final int threads = 4;
+        final int filesNumber = 30;
+
+        AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; ++t) {
+            final String name = "dir" + t;
+            workers[t] = new Thread(() -> {
+                try {
+                    DirectoryDescriptor dir = driver.tryAddDirectory(driver.rootInode(), name);
+                    for (int i = 0; i < filesNumber; ++i) {
+                        FileDescriptor file = driver.tryAddFile(dir, "file" + i);
+                        driver.tryAppendToFile(file, new DataFrame(new byte[Parameters.DATA_BLOCK_SIZE]));
+                    }
+                } catch (Throwable e) {
+                    failure.set(e);
+                }
+            });
+            workers[t].start();
+        }
+
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        assertNull(failure.get());
+
+        int usedBlocks = 0;
+        for (int t = 0; t < threads; ++t) {
+            DirectoryDescriptor dir = driver.getDirectory(driver.rootInode(), "dir" + t);
+            assertEquals(filesNumber, driver.getFiles(dir).size());
+            usedBlocks += 1 + filesNumber;
+        }
+
+        driver.close();
+
+        // directories of 30 entries still fit in a single block
+        assertEquals(unallocatedInodes - threads * (filesNumber + 1), accessor.readHeaderInt(HeaderOffsets.TOTAL_UNALLOCATED_INODES));
+        assertEquals(unallocatedBlocks - usedBlocks, accessor.readHeaderInt(HeaderOffsets.TOTAL_UNALLOCATED_BLOCKS));
+    }
+
+    @Test(timeout = 60000)
+    public void test28() throws Exception {
+        /**
+         * Checks listing a directory while its tree is removed does not deadlock,
+         * and removed directory is listed empty.
+         */
+        accessor = TestCommon.createAccessor(4 << 20);
+        driver = new FileSystemDriver(accessor);
+        DirectoryDescriptor rootDir = driver.rootInode();
+
+        AtomicReference<DirectoryDescriptor> listed = new AtomicReference<DirectoryDescriptor>();
+        AtomicReference<Exception> failure = new AtomicReference<Exception>();
+        Thread lister = new Thread(() -> {
+            try {
+                while (!Thread.currentThread().isInterrupted()) {
+                    DirectoryDescriptor dir = listed.get();
+                    if (dir != null) {
+                        driver.listDirectory(dir);
+                    }
+                }
+            } catch (Exception e) {
+                failure.set(e);
+            }
+        });
+
+        lister.setDaemon(true);
+        lister.start();
+        for (int i = 0; i < 200; ++i) {
+            DirectoryDescriptor removed = driver.tryAddDirectory(rootDir, "removed");
+            DirectoryDescriptor inner = driver.tryAddDirectory(removed, "inner");
+            for (int j = 0; j < 4; ++j) {
+                driver.tryAddFile(inner, "file" + j);
+            }
+            listed.set(removed);
+            driver.tryRemoveDirectory(rootDir, "removed");
+
+            assertTrue(driver.listDirectory(inner).isEmpty());
+            assertTrue(driver.getFiles(inner).isEmpty());
+            assertTrue(driver.getDirectories(removed).isEmpty());
+            assertNull(driver.openDirectory(inner).next());
+        }
+
+        lister.interrupt();
+        lister.join();
+        assertNull(failure.get());
+    }
+
     @After
     public void cleanUp() {
         TestCommon.cleanUp();
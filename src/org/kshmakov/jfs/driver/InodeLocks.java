@@ -0,0 +1,177 @@
+package org.kshmakov.jfs.driver;
+
+import net.jcip.annotations.ThreadSafe;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Read-write locks of individual inodes.
+ *
+ * Lock of an inode exists only while some thread holds it or waits for it: each lock
+ * attempt retains a reference to the table entry, which is dropped with the last release.
+ * Locks of several inodes are to be waited for in ascending order of inode ids.
+ *
+ * Readers may also go without a lock: they take a stamp of the inode version before reading
+ * and {@link #validate(int, long)} it afterwards. Versions live in a fixed table of padded slots
+ * shared by inodes with equal ids modulo its size, each slot counts write locks being held
+ * in the low bits and released write locks in the high ones.
+ */
+@ThreadSafe
+final class InodeLocks {
+    private static final class Entry {
+        final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        // modified only inside of map's atomic operations on the entry
+        int references = 0;
+    }
+
+    private static final int VERSION_SLOTS = 1024;
+    // slots are spread over separate cache lines
+    private static final int SLOT_STRIDE = 8;
+    private static final int WRITERS_BITS = 20;
+    private static final long WRITERS_MASK = (1L << WRITERS_BITS) - 1;
+
+    // validate() of any stamped lock issues the load fence, which keeps optimistic reads before the version check
+    private static final StampedLock FENCE = new StampedLock();
+
+    private final ConcurrentHashMap<Integer, Entry> myEntries = new ConcurrentHashMap<Integer, Entry>();
+    private final AtomicLongArray myVersions = new AtomicLongArray(VERSION_SLOTS * SLOT_STRIDE);
+
+    Lock readLock(int inodeId) {
+        return new InodeLock(inodeId, false);
+    }
+
+    Lock writeLock(int inodeId) {
+        return new InodeLock(inodeId, true);
+    }
+
+    /**
+     * Returns stamp for reading inode without a lock, negative if the inode is being modified.
+     */
+    long optimisticStamp(int inodeId) {
+        long version = myVersions.get(slot(inodeId));
+        return (version & WRITERS_MASK) == 0 ? version : -1;
+    }
+
+    /**
+     * Tells whether the inode stayed unmodified since the stamp was taken.
+     */
+    boolean validate(int inodeId, long stamp) {
+        FENCE.validate(0L);
+        return stamp >= 0 && myVersions.get(slot(inodeId)) == stamp;
+    }
+
+    private static int slot(int inodeId) {
+        return (inodeId & (VERSION_SLOTS - 1)) * SLOT_STRIDE;
+    }
+
+    private void beginWrite(int inodeId) {
+        myVersions.getAndIncrement(slot(inodeId));
+    }
+
+    private void endWrite(int inodeId) {
+        myVersions.getAndAdd(slot(inodeId), (1L << WRITERS_BITS) - 1);
+    }
+
+    // number of inodes which locks are currently held or waited for
+    int size() {
+        return myEntries.size();
+    }
+
+    private Entry retain(int inodeId) {
+        return myEntries.compute(inodeId, (id, entry) -> {
+            Entry result = entry != null ? entry : new Entry();
+            ++result.references;
+            return result;
+        });
+    }
+
+    private void release(int inodeId) {
+        myEntries.computeIfPresent(inodeId, (id, entry) -> --entry.references == 0 ? null : entry);
+    }
+
+    private final class InodeLock implements Lock {
+        private final int myInodeId;
+        private final boolean myWrite;
+
+        InodeLock(int inodeId, boolean write) {
+            myInodeId = inodeId;
+            myWrite = write;
+        }
+
+        private Lock lockOf(Entry entry) {
+            return myWrite ? entry.lock.writeLock() : entry.lock.readLock();
+        }
+
+        private void onLocked() {
+            if (myWrite) {
+                beginWrite(myInodeId);
+            }
+        }
+
+        @Override
+        public void lock() {
+            lockOf(retain(myInodeId)).lock();
+            onLocked();
+        }
+
+        @Override
+        public void lockInterruptibly() throws InterruptedException {
+            try {
+                lockOf(retain(myInodeId)).lockInterruptibly();
+            } catch (InterruptedException e) {
+                release(myInodeId);
+                throw e;
+            }
+            onLocked();
+        }
+
+        @Override
+        public boolean tryLock() {
+            if (lockOf(retain(myInodeId)).tryLock()) {
+                onLocked();
+                return true;
+            }
+
+            release(myInodeId);
+            return false;
+        }
+
+        @Override
+        public boolean tryLock(long time, TimeUnit unit) throws InterruptedException {
+            boolean locked = false;
+            try {
+                locked = lockOf(retain(myInodeId)).tryLock(time, unit);
+                if (locked) {
+                    onLocked();
+                }
+                return locked;
+            } finally {
+                if (!locked) {
+                    release(myInodeId);
+                }
+            }
+        }
+
+        @Override
+        public void unlock() {
+            if (myWrite) {
+                endWrite(myInodeId);
+            }
+
+            // entry is retained by the caller, so it is still in the table
+            lockOf(myEntries.get(myInodeId)).unlock();
+            release(myInodeId);
+        }
+
+        @Override
+        public Condition newCondition() {
+            throw new UnsupportedOperationException("conditions are not supported by inode locks");
+        }
+    }
+}
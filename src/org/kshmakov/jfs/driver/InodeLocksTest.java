@@ -0,0 +1,90 @@
+package org.kshmakov.jfs.driver;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Lock;
+
+import static org.junit.Assert.*;
+
+public class InodeLocksTest {
+    private static boolean tryLockFromOtherThread(Lock lock) throws InterruptedException {
+        AtomicBoolean result = new AtomicBoolean();
+        Thread thread = new Thread(() -> {
+            if (lock.tryLock()) {
+                result.set(true);
+                lock.unlock();
+            }
+        });
+
+        thread.start();
+        thread.join();
+        return result.get();
+    }
+
+    @Test
+    public void test00() {
+        /**
+         * Checks locks are reentrant and leave nothing behind once released.
+         */
+        InodeLocks locks = new InodeLocks();
+        Lock writeLock = locks.writeLock(5);
+        Lock readLock = locks.readLock(5);
+
+        writeLock.lock();
+        readLock.lock();
+        assertTrue(locks.writeLock(5).tryLock());
+        assertEquals(1, locks.size());
+
+        locks.writeLock(5).unlock();
+        readLock.unlock();
+        writeLock.unlock();
+        assertEquals(0, locks.size());
+    }
+
+    @Test
+    public void test01() throws InterruptedException {
+        /**
+         * Checks only locks of the same inode exclude each other.
+         */
+        InodeLocks locks = new InodeLocks();
+        Lock writeLock = locks.writeLock(1);
+        writeLock.lock();
+
+        assertFalse(tryLockFromOtherThread(locks.readLock(1)));
+        assertTrue(tryLockFromOtherThread(locks.writeLock(17)));
+        assertTrue(tryLockFromOtherThread(locks.writeLock(2)));
+        assertEquals(1, locks.size());
+
+        writeLock.unlock();
+        assertTrue(tryLockFromOtherThread(locks.writeLock(1)));
+        assertEquals(0, locks.size());
+    }
+
+    @Test
+    public void test02() {
+        /**
+         * Checks optimistic stamps are invalidated by write locks only.
+         */
+        InodeLocks locks = new InodeLocks();
+        long stamp = locks.optimisticStamp(3);
+        assertTrue(stamp >= 0);
+
+        Lock readLock = locks.readLock(3);
+        readLock.lock();
+        readLock.unlock();
+        assertTrue(locks.validate(3, stamp));
+
+        Lock writeLock = locks.writeLock(3);
+        writeLock.lock();
+        assertTrue(locks.optimisticStamp(3) < 0);
+        assertFalse(locks.validate(3, stamp));
+        assertFalse(locks.validate(3, locks.optimisticStamp(3)));
+
+        writeLock.unlock();
+        assertFalse(locks.validate(3, stamp));
+        long newStamp = locks.optimisticStamp(3);
+        assertTrue(newStamp >= 0);
+        assertTrue(locks.validate(3, newStamp));
+    }
+}
@@ -0,0 +1,33 @@
+package org.kshmakov.jfs.driver;
+
+// defaults reproduce plain unbuffered channel access
+public final class MountOptions {
+    // map the whole underlying file into memory instead of issuing a syscall per access
+    public boolean memoryMapped = false;
+
+    // memory budget in bytes for the write-back block cache, 0 disables caching
+    public long cacheSize = 0;
+
+    // number of decoded inodes kept in memory
+    public int inodeCacheSize = 1024;
+
+    // number of directory name lookups kept in memory, missing names included
+    public int dentryCacheSize = 4096;
+
+    // number of decoded indirect pointer blocks kept in memory
+    public int pointerBlocksCacheSize = 256;
+
+    // free contents of removed directories in a background thread instead of the removing one
+    public boolean backgroundReclaim = false;
+
+    // number of per-thread stocks of reserved block and inode ids, 0 allocates from the shared lists only;
+    // reserved ids are returned on close, so header counters are exact only after it
+    public int allocationMagazines = 0;
+
+    // number of ids reserved by a single stock at once
+    public int magazineSize = 32;
+
+    // on journaled volumes every modifying call returns once its changes are committed, concurrent calls
+    // share a commit; otherwise changes are committed in groups by flush, close or once enough pile up
+    public boolean synchronousCommit = true;
+}
@@ -0,0 +1,152 @@
+package org.kshmakov.jfs.io;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+import org.kshmakov.jfs.driver.JFSException;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+
+/**
+ * Write-back cache of data blocks with CLOCK eviction.
+ *
+ * Blocks are kept in a fixed number of slots derived from the memory budget.
+ * Modified blocks reach the underlying file on eviction or on {@link #flush()}.
+ */
+@ThreadSafe
+public class BlockCache {
+    private final Object myLock = new Object();
+
+    @GuardedBy("myLock")
+    private final HashMap<Integer, Integer> mySlots = new HashMap<Integer, Integer>();
+    @GuardedBy("myLock")
+    private final int[] myIds;
+    @GuardedBy("myLock")
+    private final byte[][] myBlocks;
+    @GuardedBy("myLock")
+    private final boolean[] myReferenced;
+    @GuardedBy("myLock")
+    private final boolean[] myDirty;
+    @GuardedBy("myLock")
+    private int myHand = 0;
+
+    @GuardedBy("myLock")
+    private long myHits = 0;
+    @GuardedBy("myLock")
+    private long myMisses = 0;
+
+    public BlockCache(long budget) {
+        int capacity = (int) Math.max(1, Math.min(Integer.MAX_VALUE, budget / Parameters.DATA_BLOCK_SIZE));
+        myIds = new int[capacity];
+        myBlocks = new byte[capacity][];
+        myReferenced = new boolean[capacity];
+        myDirty = new boolean[capacity];
+    }
+
+    public int capacity() {
+        return myIds.length;
+    }
+
+    public long hits() {
+        synchronized (myLock) {
+            return myHits;
+        }
+    }
+
+    public long misses() {
+        synchronized (myLock) {
+            return myMisses;
+        }
+    }
+
+    void read(FileAccessorBase accessor, int blockId, ByteBuffer destination) throws JFSException {
+        assert destination.remaining() == Parameters.DATA_BLOCK_SIZE;
+        synchronized (myLock) {
+            destination.put(myBlocks[slot(accessor, blockId, true)]);
+        }
+    }
+
+    int readInt(FileAccessorBase accessor, int blockId) throws JFSException {
+        synchronized (myLock) {
+            return FileAccessorBase.newBuffer(myBlocks[slot(accessor, blockId, true)]).getInt(0);
+        }
+    }
+
+    void write(FileAccessorBase accessor, int blockId, ByteBuffer source) throws JFSException {
+        assert source.remaining() == Parameters.DATA_BLOCK_SIZE;
+        synchronized (myLock) {
+            int slot = slot(accessor, blockId, false);
+            source.get(myBlocks[slot]);
+            myDirty[slot] = true;
+        }
+    }
+
+    void writeInt(FileAccessorBase accessor, int number, int blockId) throws JFSException {
+        synchronized (myLock) {
+            int slot = slot(accessor, blockId, true);
+            FileAccessorBase.newBuffer(myBlocks[slot]).putInt(0, number);
+            myDirty[slot] = true;
+        }
+    }
+
+    void flush(FileAccessorBase accessor) throws JFSException {
+        synchronized (myLock) {
+            for (int slot = 0; slot < myIds.length; ++slot) {
+                if (myDirty[slot]) {
+                    accessor.storeBlock(FileAccessorBase.newBuffer(myBlocks[slot]), myIds[slot]);
+                    myDirty[slot] = false;
+                }
+            }
+        }
+    }
+
+    @GuardedBy("myLock")
+    private int slot(FileAccessorBase accessor, int blockId, boolean load) throws JFSException {
+        Integer cached = mySlots.get(blockId);
+        if (cached != null) {
+            ++myHits;
+            myReferenced[cached] = true;
+            return cached;
+        }
+
+        ++myMisses;
+        int slot = evict(accessor);
+
+        if (myBlocks[slot] == null) {
+            myBlocks[slot] = new byte[Parameters.DATA_BLOCK_SIZE];
+        }
+
+        if (load) {
+            accessor.loadBlock(FileAccessorBase.newBuffer(myBlocks[slot]), blockId);
+        }
+
+        myIds[slot] = blockId;
+        myReferenced[slot] = true;
+        mySlots.put(blockId, slot);
+        return slot;
+    }
+
+    @GuardedBy("myLock")
+    private int evict(FileAccessorBase accessor) throws JFSException {
+        while (myIds[myHand] != 0 && myReferenced[myHand]) {
+            myReferenced[myHand] = false;
+            myHand = (myHand + 1) % myIds.length;
+        }
+
+        int victim = myHand;
+        myHand = (myHand + 1) % myIds.length;
+
+        if (myIds[victim] != 0) {
+            if (myDirty[victim]) {
+                ByteBuffer buffer = FileAccessorBase.newBuffer(myBlocks[victim]);
+                accessor.storeBlock(buffer, myIds[victim]);
+                myDirty[victim] = false;
+            }
+
+            mySlots.remove(myIds[victim]);
+            myIds[victim] = 0;
+        }
+
+        return victim;
+    }
+}
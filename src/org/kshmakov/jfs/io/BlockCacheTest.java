@@ -0,0 +1,80 @@
+package org.kshmakov.jfs.io;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.kshmakov.jfs.TestCommon;
+import org.kshmakov.jfs.driver.JFSException;
+import org.kshmakov.jfs.io.primitives.BlockBase;
+
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class BlockCacheTest {
+    private FileAccessor accessor = null;
+
+    @Before
+    public void initialization() throws IOException, JFSException {
+        accessor = TestCommon.createAccessor(200000);
+    }
+
+    private static byte[] filledBlock(int value) {
+        byte[] bytes = new byte[Parameters.DATA_BLOCK_SIZE];
+        for (int i = 0; i < bytes.length; ++i) {
+            bytes[i] = (byte) (value + i);
+        }
+        return bytes;
+    }
+
+    @Test
+    public void test00() throws IOException, JFSException {
+        /**
+         * Checks written blocks stay in cache until flush.
+         */
+        BlockCache cache = new BlockCache(4 * Parameters.DATA_BLOCK_SIZE);
+        FileAccessor cachedAccessor = TestCommon.createCachedAccessor(cache);
+        assertEquals(4, cache.capacity());
+
+        byte[] before = accessor.readBlock(2);
+        cachedAccessor.writeBlock(new BlockBase(filledBlock(7)), 2);
+
+        assertArrayEquals(filledBlock(7), cachedAccessor.readBlock(2));
+        assertArrayEquals(before, accessor.readBlock(2));
+        assertEquals(1, cache.hits());
+        assertEquals(1, cache.misses());
+
+        cachedAccessor.flush();
+        assertArrayEquals(filledBlock(7), accessor.readBlock(2));
+    }
+
+    @Test
+    public void test01() throws IOException, JFSException {
+        /**
+         * Checks eviction writes dirty blocks back.
+         */
+        BlockCache cache = new BlockCache(2 * Parameters.DATA_BLOCK_SIZE);
+        FileAccessor cachedAccessor = TestCommon.createCachedAccessor(cache);
+
+        for (int blockId = 2; blockId <= 10; ++blockId) {
+            cachedAccessor.writeBlock(new BlockBase(filledBlock(blockId)), blockId);
+        }
+
+        for (int blockId = 2; blockId <= 8; ++blockId) {
+            assertArrayEquals(filledBlock(blockId), accessor.readBlock(blockId));
+        }
+
+        cachedAccessor.writeBlockInt(42, 3);
+        assertEquals(42, cachedAccessor.readBlockInt(3));
+        assertNotEquals(42, accessor.readBlockInt(3));
+
+        cachedAccessor.flush();
+        assertEquals(42, accessor.readBlockInt(3));
+        assertArrayEquals(filledBlock(10), accessor.readBlock(10));
+    }
+
+    @After
+    public void cleanUp() {
+        TestCommon.cleanUp();
+    }
+}
@@ -0,0 +1,64 @@
+package org.kshmakov.jfs.io;
+
+import net.jcip.annotations.ThreadSafe;
+import org.kshmakov.jfs.driver.JFSException;
+
+import java.util.ArrayList;
+
+/**
+ * Serves small allocations from per-thread magazines, so that concurrent threads rarely meet
+ * on the lock of the underlying allocator. Bigger allocations and ones which prefer
+ * a neighbour that the magazine cannot continue go to the underlying allocator directly.
+ */
+@ThreadSafe
+public class BlockMagazines implements BlocksAllocator {
+    private final BlocksAllocator myAllocator;
+    private final Magazines myMagazines;
+    // neighbour preference is worth keeping only for allocators which can honour it
+    private final boolean myPlacementAware;
+
+    public BlockMagazines(BlocksAllocator allocator, boolean placementAware, int slots, int capacity) {
+        myAllocator = allocator;
+        myPlacementAware = placementAware;
+        myMagazines = new Magazines(new Magazines.Source() {
+            @Override
+            public ArrayList<Integer> reserve(int amount) throws JFSException {
+                return myAllocator.pop(amount);
+            }
+
+            @Override
+            public void giveBack(ArrayList<Integer> ids) throws JFSException {
+                myAllocator.push(ids);
+            }
+        }, slots, capacity);
+    }
+
+    @Override
+    public ArrayList<Integer> pop(int amount, int neighbourId) throws JFSException {
+        if (amount <= myMagazines.capacity) {
+            int expectedFirst = myPlacementAware && neighbourId != 0 ? neighbourId + 1 : 0;
+            ArrayList<Integer> result = myMagazines.take(amount, expectedFirst);
+            if (result != null) {
+                return result;
+            }
+        }
+
+        try {
+            return myAllocator.pop(amount, neighbourId);
+        } catch (JFSException e) {
+            // blocks may be stuck in magazines of other threads
+            myMagazines.drain();
+            return myAllocator.pop(amount, neighbourId);
+        }
+    }
+
+    @Override
+    public void push(ArrayList<Integer> ids) throws JFSException {
+        myAllocator.push(ids);
+    }
+
+    @Override
+    public void drain() throws JFSException {
+        myMagazines.drain();
+    }
+}
@@ -0,0 +1,17 @@
+package org.kshmakov.jfs.io;
+
+import org.kshmakov.jfs.driver.JFSException;
+import org.kshmakov.jfs.io.primitives.AllocatedInode;
+
+import java.util.ArrayList;
+
+// translates logical block indices of an inode into data block ids, callers hold the lock of the inode
+public interface BlockMap {
+    int[] blockIds(AllocatedInode inode, int from, int count) throws JFSException;
+
+    // allocates {@code blocksAdd} data blocks and attaches them after first {@code blocksHave} ones
+    void grow(AllocatedInode inode, int blocksHave, int blocksAdd) throws JFSException;
+
+    // detaches last {@code count} data blocks, returns them together with mapping blocks which are not needed anymore
+    ArrayList<Integer> truncate(AllocatedInode inode, int blocksHave, int count) throws JFSException;
+}
@@ -0,0 +1,25 @@
+package org.kshmakov.jfs.io;
+
+import org.kshmakov.jfs.driver.JFSException;
+
+import java.util.ArrayList;
+
+public interface BlocksAllocator {
+    /**
+     * Allocates {@code amount} blocks, preferably forming a run right after {@code neighbourId}.
+     * Zero neighbour means there is no preference.
+     */
+    ArrayList<Integer> pop(int amount, int neighbourId) throws JFSException;
+
+    void push(ArrayList<Integer> ids) throws JFSException;
+
+    default ArrayList<Integer> pop(int amount) throws JFSException {
+        return pop(amount, 0);
+    }
+
+    /**
+     * Returns blocks reserved for future allocations, if any, to the free space.
+     */
+    default void drain() throws JFSException {
+    }
+}
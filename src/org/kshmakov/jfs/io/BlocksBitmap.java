@@ -0,0 +1,210 @@
+package org.kshmakov.jfs.io;
+
+import com.sun.istack.internal.Nullable;
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+import org.kshmakov.jfs.driver.JFSException;
+import org.kshmakov.jfs.driver.tools.DriverHelper;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/**
+ * Keeps allocation state of data blocks as a bitmap stored in the leading data blocks.
+ *
+ * Bit for block {@code id} is bit {@code 7 - (id - 1) % 8} of byte {@code (id - 1) / 8},
+ * set bits denote allocated blocks. Bitmap blocks are allocated themselves.
+ *
+ * On journaled volumes pushed blocks are cleared on disk right away but stay pending until
+ * the transaction freeing them is committed: until then the old owner is still linked after
+ * a crash, so data written in place into them by a new owner would corrupt it.
+ */
+@ThreadSafe
+public class BlocksBitmap implements BlocksAllocator {
+    public static final int BITS_PER_BLOCK = Parameters.DATA_BLOCK_SIZE * 8;
+
+    private final FileAccessor myAccessor;
+    @Nullable
+    private final Journal myJournal;
+    private final int myTotalBlocks;
+
+    private final Object myLock = new Object();
+
+    @GuardedBy("myLock")
+    private final byte[] myBits;
+    // freed blocks not committed yet, null for volumes without journal
+    @GuardedBy("myLock")
+    @Nullable
+    private final byte[] myPending;
+    @GuardedBy("myLock")
+    private int myPendingBlocks = 0;
+    @GuardedBy("myLock")
+    private int myUnallocatedBlocks;
+    @GuardedBy("myLock")
+    private int myCursor = 1;
+
+    public static int bitmapBlocks(int totalBlocks) {
+        // rounded up without overflow for volumes close to the wide size limit
+        return totalBlocks / BITS_PER_BLOCK + (totalBlocks % BITS_PER_BLOCK != 0 ? 1 : 0);
+    }
+
+    public BlocksBitmap(FileAccessor accessor) throws JFSException {
+        myAccessor = accessor;
+        myJournal = accessor.getJournal();
+        myTotalBlocks = accessor.readHeaderInt(HeaderOffsets.TOTAL_BLOCKS);
+        myUnallocatedBlocks = accessor.readHeaderInt(HeaderOffsets.TOTAL_UNALLOCATED_BLOCKS);
+
+        int[] bitmapIds = new int[bitmapBlocks(myTotalBlocks)];
+        for (int i = 0; i < bitmapIds.length; ++i) {
+            bitmapIds[i] = i + 1;
+        }
+
+        myBits = new byte[bitmapIds.length * Parameters.DATA_BLOCK_SIZE];
+        accessor.readBlocks(bitmapIds, 0, bitmapIds.length, ByteBuffer.wrap(myBits));
+        myPending = myJournal != null ? new byte[myBits.length] : null;
+    }
+
+    // allocated or pending bits of the byte containing given block
+    @GuardedBy("myLock")
+    private int takenBits(int blockId) {
+        int index = (blockId - 1) >>> 3;
+        return myPending == null ? myBits[index] & 0xFF : (myBits[index] | myPending[index]) & 0xFF;
+    }
+
+    @GuardedBy("myLock")
+    private boolean isAllocated(int blockId) {
+        return (takenBits(blockId) & (0x80 >>> ((blockId - 1) & 7))) != 0;
+    }
+
+    @GuardedBy("myLock")
+    private void setAllocated(int blockId, boolean allocated) {
+        if (allocated) {
+            myBits[(blockId - 1) >>> 3] |= 0x80 >>> ((blockId - 1) & 7);
+        } else {
+            myBits[(blockId - 1) >>> 3] &= ~(0x80 >>> ((blockId - 1) & 7));
+        }
+    }
+
+    // returns first id of a free run of given length inside [fromId, toId], 0 if there is none
+    @GuardedBy("myLock")
+    private int findRun(int length, int fromId, int toId) {
+        int runLength = 0;
+
+        for (int blockId = fromId; blockId <= toId; ++blockId) {
+            if (((blockId - 1) & 7) == 0 && takenBits(blockId) == 0xFF) {
+                runLength = 0;
+                blockId += 7;
+                continue;
+            }
+
+            runLength = isAllocated(blockId) ? 0 : runLength + 1;
+            if (runLength == length) {
+                return blockId - length + 1;
+            }
+        }
+
+        return 0;
+    }
+
+    @GuardedBy("myLock")
+    private void take(int blockId, ArrayList<Integer> result) {
+        setAllocated(blockId, true);
+        result.add(blockId);
+        myCursor = blockId < myTotalBlocks ? blockId + 1 : 1;
+    }
+
+    @Override
+    public ArrayList<Integer> pop(int amount, int neighbourId) throws JFSException {
+        synchronized (myLock) {
+            DriverHelper.refuseIf(myUnallocatedBlocks - myPendingBlocks < amount, "not enough unallocated blocks for requested operation");
+            ArrayList<Integer> result = new ArrayList<Integer>(amount);
+
+            if (neighbourId > 0) {
+                for (int blockId = neighbourId + 1; blockId <= myTotalBlocks && result.size() < amount; ++blockId) {
+                    if (isAllocated(blockId)) {
+                        break;
+                    }
+                    take(blockId, result);
+                }
+            }
+
+            int left = amount - result.size();
+            if (left > 0) {
+                int runId = findRun(left, myCursor, myTotalBlocks);
+                if (runId == 0) {
+                    runId = findRun(left, 1, Math.min(myTotalBlocks, myCursor + left - 1));
+                }
+
+                if (runId != 0) {
+                    for (int blockId = runId; blockId < runId + left; ++blockId) {
+                        take(blockId, result);
+                    }
+                }
+            }
+
+            // too fragmented for a single run, any free blocks will do
+            for (int blockId = myCursor; result.size() < amount; blockId = blockId % myTotalBlocks + 1) {
+                if (!isAllocated(blockId)) {
+                    take(blockId, result);
+                }
+            }
+
+            myUnallocatedBlocks -= amount;
+            persist(result);
+            return result;
+        }
+    }
+
+    @Override
+    public void push(ArrayList<Integer> ids) throws JFSException {
+        synchronized (myLock) {
+            for (int blockId : ids) {
+                assert isAllocated(blockId);
+                setAllocated(blockId, false);
+                if (myPending != null) {
+                    myPending[(blockId - 1) >>> 3] |= 0x80 >>> ((blockId - 1) & 7);
+                }
+            }
+
+            myUnallocatedBlocks += ids.size();
+            myPendingBlocks += myPending != null ? ids.size() : 0;
+            persist(ids);
+        }
+
+        if (myJournal != null && !ids.isEmpty()) {
+            ArrayList<Integer> released = new ArrayList<Integer>(ids);
+            myJournal.afterCommit(() -> release(released));
+        }
+    }
+
+    private void release(ArrayList<Integer> ids) {
+        synchronized (myLock) {
+            for (int blockId : ids) {
+                myPending[(blockId - 1) >>> 3] &= ~(0x80 >>> ((blockId - 1) & 7));
+            }
+            myPendingBlocks -= ids.size();
+        }
+    }
+
+    @GuardedBy("myLock")
+    private void persist(ArrayList<Integer> changedIds) throws JFSException {
+        if (changedIds.isEmpty()) {
+            return;
+        }
+
+        int firstBitmapId = Integer.MAX_VALUE;
+        int lastBitmapId = 0;
+        for (int blockId : changedIds) {
+            int bitmapId = (blockId - 1) / BITS_PER_BLOCK + 1;
+            firstBitmapId = Math.min(firstBitmapId, bitmapId);
+            lastBitmapId = Math.max(lastBitmapId, bitmapId);
+        }
+
+        for (int bitmapId = firstBitmapId; bitmapId <= lastBitmapId; ++bitmapId) {
+            int offset = (bitmapId - 1) * Parameters.DATA_BLOCK_SIZE;
+            myAccessor.writeBlock(ByteBuffer.wrap(myBits, offset, Parameters.DATA_BLOCK_SIZE), bitmapId);
+        }
+
+        myAccessor.writeHeaderInt(myUnallocatedBlocks, HeaderOffsets.TOTAL_UNALLOCATED_BLOCKS);
+    }
+}
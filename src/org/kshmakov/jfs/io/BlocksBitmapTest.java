@@ -0,0 +1,114 @@
+package org.kshmakov.jfs.io;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.kshmakov.jfs.TestCommon;
+import org.kshmakov.jfs.driver.JFSException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class BlocksBitmapTest {
+    private FileAccessor accessor = null;
+    private BlocksBitmap bitmap = null;
+
+    @Before
+    public void initialization() throws IOException, JFSException {
+        accessor = TestCommon.createAccessor(200000, Features.BITMAP_ALLOCATOR);
+        bitmap = new BlocksBitmap(accessor);
+    }
+
+    private static ArrayList<Integer> ids(Integer... ids) {
+        return new ArrayList<Integer>(Arrays.asList(ids));
+    }
+
+    @Test
+    public void test00() throws IOException, JFSException {
+        /**
+         * Checks formatting reserves bitmap and root directory blocks.
+         */
+        assertEquals(Features.BITMAP_ALLOCATOR, accessor.readHeaderInt(HeaderOffsets.VERSION_AND_BLOCK_SIZE) >>> 16);
+        assertEquals(48, accessor.readHeaderInt(HeaderOffsets.TOTAL_BLOCKS));
+        assertEquals(46, accessor.readHeaderInt(HeaderOffsets.TOTAL_UNALLOCATED_BLOCKS));
+        assertEquals(0, accessor.readHeaderInt(HeaderOffsets.FIRST_UNALLOCATED_BLOCK_ID));
+
+        assertEquals(ids(3, 4, 5, 6, 7), bitmap.pop(5));
+        assertEquals(41, accessor.readHeaderInt(HeaderOffsets.TOTAL_UNALLOCATED_BLOCKS));
+    }
+
+    @Test
+    public void test01() throws IOException, JFSException {
+        /**
+         * Checks runs are placed next to the neighbour block when possible.
+         */
+        assertEquals(ids(3, 4), bitmap.pop(2));
+        assertEquals(ids(5, 6), bitmap.pop(2));
+        assertEquals(ids(7, 8, 9), bitmap.pop(3, 4 + 2));
+
+        bitmap.push(ids(4, 5));
+        assertEquals(ids(4, 5), bitmap.pop(2, 3));
+
+        bitmap.push(ids(9));
+        assertEquals(ids(9, 10, 11), bitmap.pop(3, 8));
+        assertEquals(ids(12, 13), bitmap.pop(2, 3));
+    }
+
+    @Test
+    public void test02() throws IOException, JFSException {
+        /**
+         * Checks allocation falls back to scattered blocks when no run is long enough.
+         */
+        ArrayList<Integer> all = bitmap.pop(46);
+        assertEquals(46, all.size());
+        assertEquals(0, accessor.readHeaderInt(HeaderOffsets.TOTAL_UNALLOCATED_BLOCKS));
+
+        bitmap.push(ids(10, 20, 21, 30));
+        ArrayList<Integer> scattered = bitmap.pop(3);
+        scattered.sort(null);
+        assertEquals(3, scattered.size());
+        assertTrue(Arrays.asList(10, 20, 21, 30).containsAll(scattered));
+
+        assertEquals(1, accessor.readHeaderInt(HeaderOffsets.TOTAL_UNALLOCATED_BLOCKS));
+    }
+
+    @Test
+    public void test03() throws IOException, JFSException {
+        /**
+         * Checks bitmap state survives remount.
+         */
+        bitmap.pop(10);
+        bitmap.push(ids(5, 6));
+
+        BlocksBitmap remounted = new BlocksBitmap(TestCommon.openAccessor());
+        assertEquals(ids(5, 6, 13), remounted.pop(3, 4));
+    }
+
+    @Test(expected = JFSException.class)
+    public void test04() throws IOException, JFSException {
+        bitmap.pop(47);
+    }
+
+    @Test
+    public void test05() {
+        /**
+         * Checks bitmap size is rounded up for any number of blocks up to the largest one.
+         */
+        final int bits = BlocksBitmap.BITS_PER_BLOCK;
+        assertEquals(0, BlocksBitmap.bitmapBlocks(0));
+        assertEquals(1, BlocksBitmap.bitmapBlocks(1));
+        assertEquals(1, BlocksBitmap.bitmapBlocks(bits));
+        assertEquals(2, BlocksBitmap.bitmapBlocks(bits + 1));
+        assertEquals(Integer.MAX_VALUE / bits, BlocksBitmap.bitmapBlocks(Integer.MAX_VALUE - bits + 1));
+        assertEquals(Integer.MAX_VALUE / bits + 1, BlocksBitmap.bitmapBlocks(Integer.MAX_VALUE - bits + 2));
+        assertEquals(Integer.MAX_VALUE / bits + 1, BlocksBitmap.bitmapBlocks(Integer.MAX_VALUE));
+    }
+
+    @After
+    public void cleanUp() {
+        TestCommon.cleanUp();
+    }
+}
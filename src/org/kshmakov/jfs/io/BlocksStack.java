@@ -8,10 +8,13 @@ import org.kshmakov.jfs.driver.tools.DriverHelper;
 import java.util.ArrayList;
 
 @ThreadSafe
-public class BlocksStack {
+public class BlocksStack implements BlocksAllocator {
     private FileAccessor myAccessor;
     private int myUnallocatedBlocks;
     private int myFirstUnallocatedId;
+    // blocks past the mark are unallocated without being linked, lazily formatted volumes only
+    private int myHighWaterMark;
+    private final boolean myLazy;
 
     private final Object myLock = new Object();
 
@@ -19,41 +22,71 @@ public class BlocksStack {
         myAccessor = accessor;
         myUnallocatedBlocks = myAccessor.readHeaderInt(HeaderOffsets.TOTAL_UNALLOCATED_BLOCKS);
         myFirstUnallocatedId = myAccessor.readHeaderInt(HeaderOffsets.FIRST_UNALLOCATED_BLOCK_ID);
+        myLazy = Features.has(accessor.features, Features.LAZY_FORMAT);
+        myHighWaterMark = myLazy
+                ? accessor.readHeaderInt(HeaderOffsets.BLOCKS_HIGH_WATER_MARK)
+                : accessor.getTotalBlocks();
     }
 
-    @GuardedBy("myLock")
-    private int popOne() throws JFSException {
-        final int resultId = myFirstUnallocatedId;
-        myFirstUnallocatedId = myAccessor.readBlockInt(resultId);
-        myAccessor.writeHeaderInt(myFirstUnallocatedId, HeaderOffsets.FIRST_UNALLOCATED_BLOCK_ID);
-        myAccessor.writeHeaderInt(--myUnallocatedBlocks, HeaderOffsets.TOTAL_UNALLOCATED_BLOCKS);
-        return resultId;
-    }
-
-    @GuardedBy("myLock")
-    private void pushOne(int blockId) throws JFSException {
-        myAccessor.writeBlockInt(myFirstUnallocatedId, blockId);
-        myAccessor.writeHeaderInt(blockId, HeaderOffsets.FIRST_UNALLOCATED_BLOCK_ID);
-        myAccessor.writeHeaderInt(++myUnallocatedBlocks, HeaderOffsets.TOTAL_UNALLOCATED_BLOCKS);
-        myFirstUnallocatedId = blockId;
-    }
-
-    public ArrayList<Integer> pop(int amount) throws JFSException {
+    @Override
+    public ArrayList<Integer> pop(int amount, int neighbourId) throws JFSException {
         synchronized (myLock) {
             DriverHelper.refuseIf(myUnallocatedBlocks < amount, "not enough unallocated blocks for requested operation");
             ArrayList<Integer> result = new ArrayList<Integer>(amount);
-            while (amount-- > 0) {
-                result.add(popOne());
+
+            // walks the list in memory, header is updated once per batch
+            int firstId = myFirstUnallocatedId;
+            int highWaterMark = myHighWaterMark;
+            for (int i = 0; i < amount; ++i) {
+                if (firstId != 0) {
+                    result.add(firstId);
+                    firstId = myAccessor.readBlockInt(firstId);
+                } else {
+                    result.add(++highWaterMark);
+                }
             }
+
+            updateHeader(firstId, myUnallocatedBlocks - amount);
+            updateHighWaterMark(highWaterMark);
             return result;
         }
     }
 
+    @Override
     public void push(ArrayList<Integer> ids) throws JFSException {
         synchronized (myLock) {
-            for (int id : ids) {
-                pushOne(id);
+            if (ids.isEmpty()) {
+                return;
+            }
+
+            // links pushed blocks to each other in order, so that the batch is popped back the same way
+            int nextId = myFirstUnallocatedId;
+            for (int i = ids.size() - 1; i >= 0; --i) {
+                myAccessor.writeBlockInt(nextId, ids.get(i));
+                nextId = ids.get(i);
             }
+
+            updateHeader(nextId, myUnallocatedBlocks + ids.size());
+        }
+    }
+
+    @GuardedBy("myLock")
+    private void updateHeader(int firstUnallocatedId, int unallocatedBlocks) throws JFSException {
+        if (firstUnallocatedId != myFirstUnallocatedId) {
+            myAccessor.writeHeaderInt(firstUnallocatedId, HeaderOffsets.FIRST_UNALLOCATED_BLOCK_ID);
+            myFirstUnallocatedId = firstUnallocatedId;
+        }
+
+        myAccessor.writeHeaderInt(unallocatedBlocks, HeaderOffsets.TOTAL_UNALLOCATED_BLOCKS);
+        myUnallocatedBlocks = unallocatedBlocks;
+    }
+
+    @GuardedBy("myLock")
+    private void updateHighWaterMark(int highWaterMark) throws JFSException {
+        if (highWaterMark != myHighWaterMark) {
+            assert myLazy;
+            myAccessor.writeHeaderInt(highWaterMark, HeaderOffsets.BLOCKS_HIGH_WATER_MARK);
+            myHighWaterMark = highWaterMark;
         }
     }
 }
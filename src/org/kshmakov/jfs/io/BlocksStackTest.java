@@ -0,0 +1,79 @@
+package org.kshmakov.jfs.io;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.kshmakov.jfs.TestCommon;
+import org.kshmakov.jfs.driver.JFSException;
+import org.kshmakov.jfs.io.primitives.InodeBase;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class BlocksStackTest {
+    private FileAccessor accessor = null;
+
+    @Before
+    public void initialization() throws IOException, JFSException {
+        accessor = TestCommon.createAccessor(200000);
+    }
+
+    private static ArrayList<Integer> ids(Integer... ids) {
+        return new ArrayList<Integer>(Arrays.asList(ids));
+    }
+
+    @Test
+    public void test00() throws IOException, JFSException {
+        /**
+         * Checks blocks are popped and pushed back in batches.
+         */
+        BlocksStack stack = new BlocksStack(accessor);
+
+        assertEquals(ids(2, 3, 4), stack.pop(3));
+        assertEquals(5, accessor.readHeaderInt(HeaderOffsets.FIRST_UNALLOCATED_BLOCK_ID));
+        assertEquals(44, accessor.readHeaderInt(HeaderOffsets.TOTAL_UNALLOCATED_BLOCKS));
+
+        stack.push(ids(4, 2));
+        assertEquals(4, accessor.readHeaderInt(HeaderOffsets.FIRST_UNALLOCATED_BLOCK_ID));
+        assertEquals(46, accessor.readHeaderInt(HeaderOffsets.TOTAL_UNALLOCATED_BLOCKS));
+
+        assertEquals(ids(4, 2, 5, 6), new BlocksStack(accessor).pop(4));
+        assertEquals(7, accessor.readHeaderInt(HeaderOffsets.FIRST_UNALLOCATED_BLOCK_ID));
+    }
+
+    @Test
+    public void test01() throws IOException, JFSException {
+        /**
+         * Checks inodes are popped and pushed back in batches.
+         */
+        InodesStack stack = new InodesStack(accessor, new InodeCache(accessor, 16));
+
+        ArrayList<InodeBase> inodes = new ArrayList<InodeBase>();
+        for (int i = 0; i < 5; ++i) {
+            inodes.add(new InodeBase(0));
+        }
+
+        assertEquals(ids(2, 3, 4, 5, 6), stack.pop(inodes));
+        assertEquals(7, accessor.readHeaderInt(HeaderOffsets.FIRST_UNALLOCATED_INODE_ID));
+        assertEquals(25, accessor.readHeaderInt(HeaderOffsets.TOTAL_UNALLOCATED_INODES));
+
+        stack.push(ids(6, 3, 5));
+        assertEquals(6, accessor.readHeaderInt(HeaderOffsets.FIRST_UNALLOCATED_INODE_ID));
+        assertEquals(28, accessor.readHeaderInt(HeaderOffsets.TOTAL_UNALLOCATED_INODES));
+        assertEquals(6, stack.pop(new InodeBase(0)));
+        assertEquals(3, stack.pop(new InodeBase(0)));
+    }
+
+    @Test(expected = JFSException.class)
+    public void test02() throws IOException, JFSException {
+        new BlocksStack(accessor).pop(48);
+    }
+
+    @After
+    public void cleanUp() {
+        TestCommon.cleanUp();
+    }
+}
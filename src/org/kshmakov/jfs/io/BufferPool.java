@@ -0,0 +1,48 @@
+package org.kshmakov.jfs.io;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Recycles direct block-sized buffers, so that block I/O does not allocate in steady state.
+ */
+@ThreadSafe
+public class BufferPool {
+    private final Object myLock = new Object();
+
+    @GuardedBy("myLock")
+    private final ByteBuffer[] myBuffers;
+    @GuardedBy("myLock")
+    private int mySize = 0;
+
+    public BufferPool(int capacity) {
+        myBuffers = new ByteBuffer[capacity];
+    }
+
+    public ByteBuffer acquire() {
+        synchronized (myLock) {
+            if (mySize > 0) {
+                ByteBuffer buffer = myBuffers[--mySize];
+                myBuffers[mySize] = null;
+                buffer.clear();
+                return buffer;
+            }
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocateDirect(Parameters.DATA_BLOCK_SIZE);
+        buffer.order(ByteOrder.BIG_ENDIAN);
+        return buffer;
+    }
+
+    public void release(ByteBuffer buffer) {
+        assert buffer.isDirect() && buffer.capacity() == Parameters.DATA_BLOCK_SIZE;
+        synchronized (myLock) {
+            if (mySize < myBuffers.length) {
+                myBuffers[mySize++] = buffer;
+            }
+        }
+    }
+}
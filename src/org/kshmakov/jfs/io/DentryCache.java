@@ -0,0 +1,122 @@
+package org.kshmakov.jfs.io;
+
+import com.sun.istack.internal.Nullable;
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+import org.kshmakov.jfs.io.primitives.DirectoryEntry;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Keeps results of name lookups in directories, including names which are known to be missing.
+ *
+ * Callers update it while holding the lock of the parent directory,
+ * right after the directory itself is modified.
+ */
+@ThreadSafe
+public class DentryCache {
+    private final Object myLock = new Object();
+
+    @GuardedBy("myLock")
+    private final LinkedHashMap<Key, Optional<DirectoryEntry>> myEntries;
+    // cached names of every directory, so that invalidation does not walk the whole cache
+    @GuardedBy("myLock")
+    private final HashMap<Integer, HashSet<Key>> myKeysByParent = new HashMap<Integer, HashSet<Key>>();
+
+    public DentryCache(final int capacity) {
+        myEntries = new LinkedHashMap<Key, Optional<DirectoryEntry>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Optional<DirectoryEntry>> eldest) {
+                if (size() <= capacity) {
+                    return false;
+                }
+
+                unindex(eldest.getKey());
+                return true;
+            }
+        };
+    }
+
+    // null if nothing is known about the name, empty if the name is known to be missing
+    @Nullable
+    public Optional<DirectoryEntry> get(int parentId, String name) {
+        synchronized (myLock) {
+            return myEntries.get(new Key(parentId, name));
+        }
+    }
+
+    public void put(int parentId, DirectoryEntry entry) {
+        synchronized (myLock) {
+            put(new Key(parentId, entry.name), Optional.of(entry));
+        }
+    }
+
+    public void putMissing(int parentId, String name) {
+        synchronized (myLock) {
+            put(new Key(parentId, name), Optional.empty());
+        }
+    }
+
+    @GuardedBy("myLock")
+    private void put(Key key, Optional<DirectoryEntry> value) {
+        if (myEntries.put(key, value) == null) {
+            myKeysByParent.computeIfAbsent(key.parentId, id -> new HashSet<Key>()).add(key);
+        }
+    }
+
+    @GuardedBy("myLock")
+    private void unindex(Key key) {
+        HashSet<Key> keys = myKeysByParent.get(key.parentId);
+        keys.remove(key);
+        if (keys.isEmpty()) {
+            myKeysByParent.remove(key.parentId);
+        }
+    }
+
+    // drops everything known about released directories, their inode ids are about to be reused;
+    // takes time proportional to the number of names cached for them
+    public void invalidateDirectories(Collection<Integer> parentIds) {
+        synchronized (myLock) {
+            for (int parentId : parentIds) {
+                HashSet<Key> keys = myKeysByParent.remove(parentId);
+                if (keys == null) {
+                    continue;
+                }
+
+                for (Key key : keys) {
+                    myEntries.remove(key);
+                }
+            }
+        }
+    }
+
+    private static final class Key {
+        final int parentId;
+        final String name;
+
+        Key(int parentId, String name) {
+            this.parentId = parentId;
+            this.name = name;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Key)) {
+                return false;
+            }
+
+            Key key = (Key) other;
+            return parentId == key.parentId && name.equals(key.name);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * parentId + name.hashCode();
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package org.kshmakov.jfs.io;
+
+import org.junit.Test;
+import org.kshmakov.jfs.driver.JFSException;
+import org.kshmakov.jfs.io.primitives.DirectoryEntry;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class DentryCacheTest {
+    @Test
+    public void test00() throws JFSException {
+        /**
+         * Checks invalidation drops names of given directories only, including ones cached again after eviction.
+         */
+        DentryCache cache = new DentryCache(4);
+        cache.put(1, new DirectoryEntry(10, Parameters.EntryType.FILE, "a"));
+        cache.putMissing(1, "b");
+        cache.put(2, new DirectoryEntry(20, Parameters.EntryType.FILE, "a"));
+        cache.put(3, new DirectoryEntry(30, Parameters.EntryType.FILE, "a"));
+
+        // evicts the least recently used name of the first directory
+        cache.put(4, new DirectoryEntry(40, Parameters.EntryType.FILE, "a"));
+        assertNull(cache.get(1, "a"));
+        cache.put(1, new DirectoryEntry(11, Parameters.EntryType.FILE, "a"));
+
+        cache.invalidateDirectories(Arrays.asList(1, 3));
+        assertNull(cache.get(1, "a"));
+        assertNull(cache.get(1, "b"));
+        assertNull(cache.get(3, "a"));
+        assertEquals(20, cache.get(2, "a").get().inodeId);
+        assertEquals(40, cache.get(4, "a").get().inodeId);
+
+        cache.invalidateDirectories(Collections.singleton(2));
+        assertNull(cache.get(2, "a"));
+        assertNotNull(cache.get(4, "a"));
+    }
+}
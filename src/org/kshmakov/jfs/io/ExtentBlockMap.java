@@ -0,0 +1,144 @@
+package org.kshmakov.jfs.io;
+
+import org.kshmakov.jfs.driver.JFSException;
+import org.kshmakov.jfs.driver.tools.DriverHelper;
+import org.kshmakov.jfs.io.primitives.AllocatedInode;
+
+import java.util.ArrayList;
+
+/**
+ * Maps logical block indices of an inode through extents, runs of adjacent data blocks.
+ *
+ * Pointer fields of the inode are reinterpreted: direct pointers hold up to six
+ * {@code (first block id, length)} pairs, singly indirect pointer refers to an overflow block
+ * with further pairs and doubly indirect pointer holds the number of extents.
+ */
+public class ExtentBlockMap implements BlockMap {
+    public static final int INLINE_EXTENTS = Parameters.DIRECT_POINTERS_NUMBER / 2;
+    public static final int MAX_EXTENTS = INLINE_EXTENTS + Parameters.POINTERS_PER_BLOCK / 2;
+
+    private final PointerBlocksCache myPointers;
+    private final BlocksAllocator myAllocator;
+
+    public ExtentBlockMap(PointerBlocksCache pointers, BlocksAllocator allocator) {
+        myPointers = pointers;
+        myAllocator = allocator;
+    }
+
+    // sets up mapping of a freshly allocated inode to a single run of blocks
+    public static void initialize(AllocatedInode inode, int firstBlockId, int length) {
+        inode.directPointers[0] = firstBlockId;
+        inode.directPointers[1] = length;
+        inode.singlyIndirectPointer = 0;
+        inode.doublyIndirectPointer = 1;
+    }
+
+    // returns flat copy of {first id, length} pairs
+    private int[] extents(AllocatedInode inode, int reserve) throws JFSException {
+        final int count = inode.doublyIndirectPointer;
+        int[] result = new int[2 * (count + reserve)];
+        System.arraycopy(inode.directPointers, 0, result, 0, 2 * Math.min(count, INLINE_EXTENTS));
+
+        if (count > INLINE_EXTENTS) {
+            int[] overflow = myPointers.get(inode.singlyIndirectPointer);
+            System.arraycopy(overflow, 0, result, 2 * INLINE_EXTENTS, 2 * (count - INLINE_EXTENTS));
+        }
+
+        return result;
+    }
+
+    private void store(AllocatedInode inode, int[] extents, int count) throws JFSException {
+        for (int i = 0; i < Parameters.DIRECT_POINTERS_NUMBER; ++i) {
+            inode.directPointers[i] = i < 2 * count ? extents[i] : 0;
+        }
+
+        if (count > INLINE_EXTENTS) {
+            int[] overflow = new int[Parameters.POINTERS_PER_BLOCK];
+            System.arraycopy(extents, 2 * INLINE_EXTENTS, overflow, 0, 2 * (count - INLINE_EXTENTS));
+            myPointers.write(overflow, inode.singlyIndirectPointer);
+        }
+
+        inode.doublyIndirectPointer = count;
+    }
+
+    @Override
+    public int[] blockIds(AllocatedInode inode, int from, int count) throws JFSException {
+        int[] result = new int[count];
+        int[] extents = extents(inode, 0);
+
+        int position = 0;
+        int extentStart = 0;
+        for (int e = 0; e < extents.length && position < count; e += 2) {
+            int extentEnd = extentStart + extents[e + 1];
+            for (int index = Math.max(from + position, extentStart); index < extentEnd && position < count; ++index) {
+                result[position++] = extents[e] + index - extentStart;
+            }
+
+            extentStart = extentEnd;
+        }
+
+        assert position == count;
+        return result;
+    }
+
+    @Override
+    public void grow(AllocatedInode inode, int blocksHave, int blocksAdd) throws JFSException {
+        int count = inode.doublyIndirectPointer;
+        int[] extents = extents(inode, blocksAdd);
+        final int lastBlockId = count > 0 ? extents[2 * count - 2] + extents[2 * count - 1] - 1 : 0;
+
+        ArrayList<Integer> ids = myAllocator.pop(blocksAdd, lastBlockId);
+        for (int blockId : ids) {
+            if (count > 0 && extents[2 * count - 2] + extents[2 * count - 1] == blockId) {
+                ++extents[2 * count - 1];
+            } else {
+                extents[2 * count] = blockId;
+                extents[2 * count + 1] = 1;
+                ++count;
+            }
+        }
+
+        try {
+            DriverHelper.refuseIf(count > MAX_EXTENTS, "file is too fragmented");
+            if (count > INLINE_EXTENTS && inode.singlyIndirectPointer == 0) {
+                inode.singlyIndirectPointer = myAllocator.pop(1).get(0);
+            }
+        } catch (JFSException e) {
+            myAllocator.push(ids);
+            throw e;
+        }
+
+        store(inode, extents, count);
+    }
+
+    @Override
+    public ArrayList<Integer> truncate(AllocatedInode inode, int blocksHave, int blocksNumber) throws JFSException {
+        int count = inode.doublyIndirectPointer;
+        int[] extents = extents(inode, 0);
+        ArrayList<Integer> result = new ArrayList<Integer>(blocksNumber + 1);
+
+        for (int left = blocksNumber; left > 0; ) {
+            int last = 2 * count - 2;
+            int taken = Math.min(left, extents[last + 1]);
+            extents[last + 1] -= taken;
+
+            for (int blockId = extents[last] + extents[last + 1]; taken-- > 0; ++blockId) {
+                result.add(blockId);
+                --left;
+            }
+
+            if (extents[last + 1] == 0) {
+                --count;
+            }
+        }
+
+        if (count <= INLINE_EXTENTS && inode.singlyIndirectPointer != 0) {
+            myPointers.invalidate(inode.singlyIndirectPointer);
+            result.add(inode.singlyIndirectPointer);
+            inode.singlyIndirectPointer = 0;
+        }
+
+        store(inode, extents, count);
+        return result;
+    }
+}
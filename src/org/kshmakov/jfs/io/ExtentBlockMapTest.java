@@ -0,0 +1,81 @@
+package org.kshmakov.jfs.io;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.kshmakov.jfs.TestCommon;
+import org.kshmakov.jfs.driver.JFSException;
+import org.kshmakov.jfs.io.primitives.AllocatedInode;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class ExtentBlockMapTest {
+    private FileAccessor accessor = null;
+    private BlocksStack blocks = null;
+
+    @Before
+    public void initialization() throws IOException, JFSException {
+        accessor = TestCommon.createAccessor(200000);
+        blocks = new BlocksStack(accessor);
+    }
+
+    private static ArrayList<Integer> ids(Integer... ids) {
+        return new ArrayList<Integer>(Arrays.asList(ids));
+    }
+
+    @Test
+    public void test00() throws IOException, JFSException {
+        /**
+         * Checks adjacent blocks extend the last extent instead of adding a new one.
+         */
+        ExtentBlockMap map = new ExtentBlockMap(new PointerBlocksCache(accessor, 4), blocks);
+        AllocatedInode inode = new AllocatedInode(Parameters.EntryType.FILE, 1);
+
+        map.grow(inode, 0, 3);
+        map.grow(inode, 3, 2);
+        assertEquals(1, inode.doublyIndirectPointer);
+        assertArrayEquals(new int[]{2, 3, 4, 5, 6}, map.blockIds(inode, 0, 5));
+
+        assertEquals(ids(5, 6), map.truncate(inode, 5, 2));
+        assertArrayEquals(new int[]{3, 4}, map.blockIds(inode, 1, 2));
+    }
+
+    @Test
+    public void test01() throws IOException, JFSException {
+        /**
+         * Checks extents beyond inline ones go to overflow block, which is released with them.
+         */
+        ExtentBlockMap map = new ExtentBlockMap(new PointerBlocksCache(accessor, 4), blocks);
+        AllocatedInode inode = new AllocatedInode(Parameters.EntryType.FILE, 1);
+
+        // every other block is taken away, so that each one forms its own extent
+        int[] expected = new int[ExtentBlockMap.INLINE_EXTENTS + 2];
+        for (int i = 0; i < expected.length; ++i) {
+            map.grow(inode, i, 1);
+            expected[i] = map.blockIds(inode, i, 1)[0];
+            blocks.pop(1);
+        }
+
+        assertEquals(expected.length, inode.doublyIndirectPointer);
+        assertNotEquals(0, inode.singlyIndirectPointer);
+        assertArrayEquals(expected, map.blockIds(inode, 0, expected.length));
+
+        // fresh cache has to see the same extents on disk
+        ExtentBlockMap reread = new ExtentBlockMap(new PointerBlocksCache(accessor, 4), blocks);
+        assertArrayEquals(expected, reread.blockIds(inode, 0, expected.length));
+
+        int overflowId = inode.singlyIndirectPointer;
+        ArrayList<Integer> released = map.truncate(inode, expected.length, 2);
+        assertEquals(ids(expected[expected.length - 1], expected[expected.length - 2], overflowId), released);
+        assertEquals(0, inode.singlyIndirectPointer);
+    }
+
+    @After
+    public void cleanUp() {
+        TestCommon.cleanUp();
+    }
+}
@@ -0,0 +1,28 @@
+package org.kshmakov.jfs.io;
+
+// bits of the file system version field, each one turns an optional on-disk structure on
+public interface Features {
+    short BITMAP_ALLOCATOR = 0x0001;
+    short EXTENTS = 0x0002;
+    short LAZY_FORMAT = 0x0004;
+    short WIDE = 0x0008;
+    short HASHED_DIRECTORIES = 0x0010;
+    short JOURNAL = 0x0020;
+
+    short SUPPORTED = BITMAP_ALLOCATOR | EXTENTS | LAZY_FORMAT | WIDE | HASHED_DIRECTORIES | JOURNAL;
+
+    // features which need fields of extended header
+    short EXTENDED_HEADER = LAZY_FORMAT | JOURNAL;
+
+    static boolean has(short features, short feature) {
+        return (features & feature) != 0;
+    }
+
+    static long maxSize(short features) {
+        return has(features, WIDE) ? Parameters.MAX_WIDE_FS_SIZE : Parameters.MAX_FS_SIZE;
+    }
+
+    static short headerSize(short features) {
+        return has(features, EXTENDED_HEADER) ? Parameters.EXTENDED_HEADER_SIZE : Parameters.HEADER_SIZE;
+    }
+}
@@ -1,9 +1,9 @@
 package org.kshmakov.jfs.io;
 
-import net.jcip.annotations.NotThreadSafe;
+import net.jcip.annotations.ThreadSafe;
 import org.kshmakov.jfs.driver.JFSException;
 
-@NotThreadSafe
+@ThreadSafe
 public class FileAccessor extends FileAccessorBase {
 
     @Override
@@ -16,6 +16,14 @@ public class FileAccessor extends FileAccessorBase {
         return readHeaderInt(HeaderOffsets.TOTAL_BLOCKS);
     }
 
+    public FileAccessor(String fileName, boolean mapped, BlockCache cache) throws JFSException {
+        super(fileName, mapped, cache);
+    }
+
+    public FileAccessor(String fileName, boolean mapped) throws JFSException {
+        super(fileName, mapped, null);
+    }
+
     public FileAccessor(String fileName) throws JFSException {
         super(fileName);
 
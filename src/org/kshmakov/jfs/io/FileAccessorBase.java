@@ -1,6 +1,7 @@
 package org.kshmakov.jfs.io;
 
-import net.jcip.annotations.NotThreadSafe;
+import com.sun.istack.internal.Nullable;
+import net.jcip.annotations.ThreadSafe;
 import org.kshmakov.jfs.driver.JFSException;
 import org.kshmakov.jfs.io.primitives.BlockBase;
 import org.kshmakov.jfs.io.primitives.InodeBase;
@@ -10,18 +11,57 @@ import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 
-@NotThreadSafe
+/**
+ * Positional access to the file system image, safe for concurrent use.
+ *
+ * Every transfer addresses the file by absolute position: channel I/O is positional only and
+ * the mapping is accessed through views confined to the calling thread, so concurrent callers
+ * share no mutable state here. Consistency of concurrent transfers of the same bytes is up to
+ * the callers. As with any {@link FileChannel}, interrupting a thread in the middle of channel
+ * I/O closes the channel for everybody.
+ *
+ * On journaled volumes writes of header, inode table and metadata blocks go to the {@link Journal}
+ * instead of the file, and reads see its images first. Blocks of file contents are written with
+ * {@link #writeDataBlock} and {@link #writeDataBlocks}, which bypass the journal.
+ */
+@ThreadSafe
 abstract public class FileAccessorBase {
     protected final FileChannel myChannel;
     protected final RandomAccessFile myFile;
 
     public final long fileSize;
 
+    // optional on-disk structures in use, see Features
+    public final short features;
+
+    // header size depends on features
+    protected final short myHeaderSize;
+
+    // whole underlying file mapped into memory by segments, null when plain channel I/O is used
+    protected final MappedByteBuffer[] myMapping;
+
+    // shared write-back cache for data blocks, null when blocks go straight to the file
+    protected final BlockCache myCache;
+
     protected final int myTotalInodes;
     protected final int myTotalBlocks;
 
+    // images of modified metadata not yet stored in place, null when the volume has no journal
+    @Nullable
+    protected final Journal myJournal;
+
+    // single mapping is addressed by int, so that bigger files are mapped piecewise
+    private static final long MAPPING_SEGMENT_SIZE = 1L << 30;
+
+    // scratch buffer for single int transfers, confined to the calling thread
+    private final ThreadLocal<ByteBuffer> myIntBuffer = ThreadLocal.withInitial(() -> newBuffer(4));
+
+    // own views of the mapping segments for every thread, so positions and limits are never shared
+    private final ThreadLocal<ByteBuffer[]> myViews = ThreadLocal.withInitial(this::mappingViews);
+
     abstract protected int getTotalInodes() throws JFSBadFileException;
 
     abstract protected int getTotalBlocks() throws JFSBadFileException;
@@ -39,18 +79,58 @@ abstract public class FileAccessorBase {
     }
 
     protected FileAccessorBase(String fileName) throws JFSBadFileException {
+        this(fileName, false, null);
+    }
+
+    protected FileAccessorBase(String fileName, boolean mapped, BlockCache cache) throws JFSBadFileException {
+        this(fileName, mapped, cache, null);
+    }
+
+    // features are read from the header unless file is about to be formatted with given ones
+    protected FileAccessorBase(String fileName, short features) throws JFSBadFileException {
+        this(fileName, false, null, features);
+    }
+
+    private FileAccessorBase(String fileName, boolean mapped, BlockCache cache, Short features)
+            throws JFSBadFileException {
+        myCache = cache;
+
         try {
             myFile = new RandomAccessFile(fileName, "rw");
             myChannel = myFile.getChannel();
             fileSize = myChannel.size();
 
-            if (fileSize < Parameters.MIN_FS_SIZE || fileSize > Parameters.MAX_FS_SIZE) {
-                String range = "[" + Long.toString(Parameters.MIN_FS_SIZE) + ", " + Long.toString(Parameters.MAX_FS_SIZE) + "]";
+            if (fileSize < Parameters.MIN_FS_SIZE) {
+                throw new JFSBadFileException("file size of " + fileName + " is less than " + Parameters.MIN_FS_SIZE);
+            }
+
+            if (features != null) {
+                this.features = features;
+            } else {
+                ByteBuffer buffer = newBuffer(4);
+                myChannel.read(buffer, HeaderOffsets.VERSION_AND_BLOCK_SIZE);
+                this.features = (short) (buffer.getInt(0) >>> 16);
+            }
+
+            if ((this.features & ~Features.SUPPORTED) != 0) {
+                throw new JFSBadFileException("file " + fileName + " uses unsupported file system features");
+            }
+
+            // bigger volumes need 64-bit addressing, which older versions refuse by the feature bit
+            if (fileSize > Features.maxSize(this.features)) {
+                String range = "[" + Long.toString(Parameters.MIN_FS_SIZE) + ", " + Long.toString(Features.maxSize(this.features)) + "]";
                 throw new JFSBadFileException("file size of " + fileName + " is not in range " + range);
             }
 
+            myMapping = mapped ? map() : null;
+
+            myHeaderSize = Features.headerSize(this.features);
+
             myTotalInodes = getTotalInodes();
             myTotalBlocks = getTotalBlocks();
+
+            // formatter writes the file as is, journal is replayed once the volume is opened
+            myJournal = features == null && Features.has(this.features, Features.JOURNAL) ? new Journal(this) : null;
         } catch (FileNotFoundException e) {
             throw new JFSBadFileException("file " + fileName + " not found");
         } catch (IOException e) {
@@ -58,46 +138,159 @@ abstract public class FileAccessorBase {
         }
     }
 
+    private MappedByteBuffer[] map() throws IOException {
+        MappedByteBuffer[] result = new MappedByteBuffer[(int) ((fileSize - 1) / MAPPING_SEGMENT_SIZE + 1)];
+        for (int i = 0; i < result.length; ++i) {
+            long position = i * MAPPING_SEGMENT_SIZE;
+            result[i] = myChannel.map(FileChannel.MapMode.READ_WRITE, position,
+                    Math.min(MAPPING_SEGMENT_SIZE, fileSize - position));
+        }
+
+        return result;
+    }
+
+    private ByteBuffer[] mappingViews() {
+        ByteBuffer[] views = new ByteBuffer[myMapping.length];
+        for (int i = 0; i < views.length; ++i) {
+            views[i] = myMapping[i].duplicate();
+        }
+
+        return views;
+    }
+
     public int readHeaderInt(byte inHeaderOffset) throws JFSBadFileException {
-        return readInt(inHeaderOffset);
+        return readMetadataInt(inHeaderOffset);
     }
 
-    public void writeHeaderInt(int number, byte inHeaderOffset) throws JFSBadFileException {
-        writeInt(number, inHeaderOffset);
+    public void writeHeaderInt(int number, byte inHeaderOffset) throws JFSException {
+        writeMetadataInt(number, inHeaderOffset);
     }
 
     public int readInodeInt(int inodeId, byte inInodeOffset) throws JFSException {
-        return readInt(inodeOffset(inodeId) + inInodeOffset);
+        return readMetadataInt(inodeOffset(inodeId) + inInodeOffset);
     }
 
     public void writeInodeInt(int number, int inodeId, byte inInodeOffset) throws JFSException {
-        writeInt(number, inodeOffset(inodeId) + inInodeOffset);
+        writeMetadataInt(number, inodeOffset(inodeId) + inInodeOffset);
     }
 
     public int readBlockInt(int blockId) throws JFSException {
-        return readInt(blockOffset(blockId));
+        final long position = blockOffset(blockId);
+        ByteBuffer buffer = myIntBuffer.get();
+        if (readJournaled(position, buffer)) {
+            return buffer.getInt(0);
+        }
+
+        // checkpoints store blocks through the cache, so it is consulted on journaled volumes too
+        if (myCache != null) {
+            return myCache.readInt(this, blockId);
+        }
+
+        return readInt(position);
     }
 
     public void writeBlockInt(int number, int blockId) throws JFSException {
-        writeInt(number, blockOffset(blockId));
+        final long position = blockOffset(blockId);
+        if (myCache != null && myJournal == null) {
+            myCache.writeInt(this, number, blockId);
+            return;
+        }
+
+        writeMetadataInt(number, position);
     }
 
     public byte[] readBlock(int blockId) throws JFSException {
+        ByteBuffer buffer = newBuffer(Parameters.DATA_BLOCK_SIZE);
+        readBlock(blockId, buffer);
+        return buffer.array();
+    }
+
+    /**
+     * Fills remaining space of the buffer, which has to be exactly one block, with block contents.
+     */
+    public void readBlock(int blockId, ByteBuffer buffer) throws JFSException {
+        if (myJournal != null && myJournal.read(blockOffset(blockId), buffer)) {
+            return;
+        }
+
+        if (myCache != null) {
+            blockOffset(blockId);
+            myCache.read(this, blockId, buffer);
+        } else {
+            loadBlock(buffer, blockId);
+        }
+    }
+
+    public void writeBlock(BlockBase block, int blockId) throws JFSException {
+        writeBlock(ByteBuffer.wrap(block.toBytes()), blockId);
+    }
+
+    /**
+     * Writes remaining contents of the buffer, which has to be exactly one block, into block.
+     */
+    public void writeBlock(ByteBuffer buffer, int blockId) throws JFSException {
+        writeBlock(buffer, blockId, true);
+    }
+
+    /**
+     * Same as {@link #writeBlock(ByteBuffer, int)} for a block of file contents, which is not journaled.
+     */
+    public void writeDataBlock(ByteBuffer buffer, int blockId) throws JFSException {
+        writeBlock(buffer, blockId, false);
+    }
+
+    /**
+     * Reads {@code count} blocks listed in {@code blockIds} starting from {@code from} one after another
+     * into the buffer. Runs of adjacent block ids are transferred with a single positional read.
+     */
+    public void readBlocks(int[] blockIds, int from, int count, ByteBuffer buffer) throws JFSException {
+        transferBlocks(blockIds, from, count, buffer, false, false);
+    }
+
+    /**
+     * Writes {@code count} blocks listed in {@code blockIds} starting from {@code from} from the buffer.
+     * Runs of adjacent block ids are transferred with a single positional write.
+     */
+    public void writeBlocks(int[] blockIds, int from, int count, ByteBuffer buffer) throws JFSException {
+        transferBlocks(blockIds, from, count, buffer, true, true);
+    }
+
+    /**
+     * Same as {@link #writeBlocks} for blocks of file contents, which are not journaled.
+     */
+    public void writeDataBlocks(int[] blockIds, int from, int count, ByteBuffer buffer) throws JFSException {
+        transferBlocks(blockIds, from, count, buffer, true, false);
+    }
+
+    @Nullable
+    public BlockCache getBlockCache() {
+        return myCache;
+    }
+
+    @Nullable
+    public Journal getJournal() {
+        return myJournal;
+    }
+
+    public void flush() throws JFSException {
+        if (myCache != null) {
+            myCache.flush(this);
+        }
+    }
+
+    void loadBlock(ByteBuffer buffer, int blockId) throws JFSException {
+        assert buffer.remaining() == Parameters.DATA_BLOCK_SIZE;
         try {
-            ByteBuffer buffer = newBuffer(Parameters.DATA_BLOCK_SIZE);
-            myChannel.read(buffer, blockOffset(blockId));
-            return buffer.array();
+            read(buffer, blockOffset(blockId));
         } catch (IOException e) {
             throw new JFSBadFileException("could not read buffer from file: " + e.getMessage());
         }
     }
 
-    public void writeBlock(BlockBase block, int blockId) throws JFSException {
+    void storeBlock(ByteBuffer buffer, int blockId) throws JFSException {
+        assert buffer.remaining() == Parameters.DATA_BLOCK_SIZE;
         try {
-            ByteBuffer buffer = ByteBuffer.wrap(block.toBytes());
-            assert blockOffset(blockId) + buffer.capacity() <= fileSize;
-            int result = myChannel.write(buffer, blockOffset(blockId));
-            assert result == buffer.capacity();
+            write(buffer, blockOffset(blockId));
         } catch (IOException e) {
             throw new JFSBadFileException("could not write buffer to file: " + e.getMessage());
         }
@@ -106,7 +299,22 @@ abstract public class FileAccessorBase {
     public ByteBuffer readInode(int inodeId) throws JFSException {
         try {
             ByteBuffer buffer = newBuffer(Parameters.INODE_SIZE);
-            myChannel.read(buffer, inodeOffset(inodeId));
+            readMetadata(buffer, inodeOffset(inodeId));
+            buffer.rewind();
+            return buffer;
+        } catch (IOException e) {
+            throw new JFSBadFileException("could not read buffer from file: " + e.getMessage());
+        }
+    }
+
+    // reads consecutive inodes [firstId; firstId + count) with a single positional read
+    public ByteBuffer readInodes(int firstId, int count) throws JFSException {
+        assert count > 0;
+        inodeOffset(firstId + count - 1);
+
+        try {
+            ByteBuffer buffer = newBuffer(count * Parameters.INODE_SIZE);
+            readMetadata(buffer, inodeOffset(firstId));
             buffer.rewind();
             return buffer;
         } catch (IOException e) {
@@ -120,39 +328,293 @@ abstract public class FileAccessorBase {
             buffer.flip();
             buffer.limit(buffer.capacity());
             assert inodeOffset(blockId) + buffer.capacity() <= fileSize;
-            int result = myChannel.write(buffer, inodeOffset(blockId));
-            assert result == buffer.capacity();
+            if (myJournal != null) {
+                myJournal.write(inodeOffset(blockId), buffer);
+                return;
+            }
+
+            write(buffer, inodeOffset(blockId));
+        } catch (IOException e) {
+            throw new JFSBadFileException("could not write buffer to file: " + e.getMessage());
+        }
+    }
+
+    // metadata goes through the journal if there is one, file contents only into blocks it keeps track of
+    private void writeBlock(ByteBuffer buffer, int blockId, boolean metadata) throws JFSException {
+        final long position = blockOffset(blockId);
+        if (myJournal != null && (metadata || myJournal.tracks(position))) {
+            myJournal.write(position, buffer);
+            return;
+        }
+
+        if (myCache != null) {
+            myCache.write(this, blockId, buffer);
+            return;
+        }
+
+        storeBlock(buffer, blockId);
+    }
+
+    private void transferBlocks(int[] blockIds, int from, int count, ByteBuffer buffer, boolean write,
+                                boolean metadata) throws JFSException {
+        assert buffer.remaining() == count * Parameters.DATA_BLOCK_SIZE;
+        final int end = from + count;
+        final int limit = buffer.limit();
+
+        try {
+            // cached and journaled blocks have to be served one by one to stay coherent with the cache and journal
+            int runStart = from;
+            while (runStart < end) {
+                long position = blockOffset(blockIds[runStart]);
+                buffer.limit(buffer.position() + Parameters.DATA_BLOCK_SIZE);
+                if (transferJournaled(position, buffer, write, metadata)) {
+                    ++runStart;
+                    continue;
+                }
+
+                int runEnd = runStart + 1;
+                while (myCache == null && runEnd < end && blockIds[runEnd] == blockIds[runEnd - 1] + 1
+                        && !journaled(blockOffset(blockIds[runEnd]), write, metadata)) {
+                    ++runEnd;
+                }
+
+                buffer.limit(buffer.position() + (runEnd - runStart) * Parameters.DATA_BLOCK_SIZE);
+
+                if (myCache != null && write) {
+                    myCache.write(this, blockIds[runStart], buffer);
+                } else if (myCache != null) {
+                    myCache.read(this, blockIds[runStart], buffer);
+                } else if (write) {
+                    write(buffer, position);
+                } else {
+                    read(buffer, position);
+                }
+
+                runStart = runEnd;
+            }
+        } catch (IOException e) {
+            throw new JFSBadFileException("could not transfer blocks: " + e.getMessage());
+        } finally {
+            buffer.limit(limit);
+        }
+    }
+
+    private boolean journaled(long position, boolean write, boolean metadata) {
+        if (myJournal == null) {
+            return false;
+        }
+
+        return write ? metadata || myJournal.tracks(position) : myJournal.holds(position);
+    }
+
+    // transfers a single block through the journal if it is concerned
+    private boolean transferJournaled(long position, ByteBuffer buffer, boolean write, boolean metadata)
+            throws JFSException {
+        if (myJournal == null) {
+            return false;
+        }
+
+        if (!write) {
+            return myJournal.read(position, buffer);
+        }
+
+        if (!metadata && !myJournal.tracks(position)) {
+            return false;
+        }
+
+        myJournal.write(position, buffer);
+        return true;
+    }
+
+    private int readMetadataInt(long position) throws JFSBadFileException {
+        ByteBuffer buffer = myIntBuffer.get();
+        return readJournaled(position, buffer) ? buffer.getInt(0) : readInt(position);
+    }
+
+    // fills the whole buffer from the journal if it holds the unit
+    private boolean readJournaled(long position, ByteBuffer buffer) {
+        if (myJournal == null) {
+            return false;
+        }
+
+        buffer.clear();
+        return myJournal.read(position, buffer);
+    }
+
+    private void writeMetadataInt(int number, long position) throws JFSException {
+        if (myJournal == null) {
+            writeInt(number, position);
+            return;
+        }
+
+        ByteBuffer buffer = myIntBuffer.get();
+        buffer.clear();
+        buffer.putInt(0, number);
+        myJournal.write(position, buffer);
+    }
+
+    // reads header or inode table, pieces held by the journal are taken from there
+    private void readMetadata(ByteBuffer buffer, long position) throws IOException {
+        if (myJournal == null) {
+            read(buffer, position);
+            return;
+        }
+
+        final int limit = buffer.limit();
+        while (buffer.hasRemaining()) {
+            int length = (int) Math.min(buffer.remaining(), myJournal.unitEnd(position) - position);
+            buffer.limit(buffer.position() + length);
+            if (!myJournal.read(position, buffer)) {
+                read(buffer, position);
+            }
+            buffer.limit(limit);
+            position += length;
+        }
+    }
+
+    // bytes as they are stored in place, whole data blocks go through the block cache
+    void readStored(ByteBuffer buffer, long position) throws JFSException {
+        if (myCache != null && position >= dataOffset()) {
+            myCache.read(this, blockId(position), buffer);
+            return;
+        }
+
+        try {
+            read(buffer, position);
+        } catch (IOException e) {
+            throw new JFSBadFileException("could not read buffer from file: " + e.getMessage());
+        }
+    }
+
+    void writeStored(ByteBuffer buffer, long position) throws JFSException {
+        if (myCache != null && position >= dataOffset()) {
+            myCache.write(this, blockId(position), buffer);
+            return;
+        }
+
+        try {
+            write(buffer, position);
         } catch (IOException e) {
             throw new JFSBadFileException("could not write buffer to file: " + e.getMessage());
         }
     }
 
-    private int readInt(long position) throws JFSBadFileException {
+    // makes everything written so far durable, block cache included
+    void force() throws JFSException {
+        flush();
+        forceFile();
+    }
+
+    void forceFile() throws JFSBadFileException {
+        try {
+            if (myMapping != null) {
+                for (MappedByteBuffer segment : myMapping) {
+                    segment.force();
+                }
+            } else {
+                myChannel.force(false);
+            }
+        } catch (IOException e) {
+            throw new JFSBadFileException("could not force changes to file: " + e.getMessage());
+        }
+    }
+
+    long dataOffset() {
+        return myHeaderSize + myTotalInodes * (long) Parameters.INODE_SIZE;
+    }
+
+    private int blockId(long position) {
+        return (int) ((position - dataOffset()) / Parameters.DATA_BLOCK_SIZE) + 1;
+    }
+
+    int readInt(long position) throws JFSBadFileException {
         try {
             assert position + 4 <= fileSize;
-            ByteBuffer buffer = newBuffer(4);
-            myChannel.read(buffer, position);
-            buffer.rewind();
-            return buffer.getInt();
+            int inSegment = (int) (position % MAPPING_SEGMENT_SIZE);
+            if (myMapping != null && inSegment <= MAPPING_SEGMENT_SIZE - 4) {
+                ByteBuffer view = myViews.get()[(int) (position / MAPPING_SEGMENT_SIZE)];
+                view.clear();
+                return view.getInt(inSegment);
+            }
+
+            ByteBuffer buffer = myIntBuffer.get();
+            buffer.clear();
+            read(buffer, position);
+            return buffer.getInt(0);
         } catch (IOException e) {
             throw new JFSBadFileException("could not read int from file: " + e.getMessage());
         }
     }
 
-    private void writeInt(int number, long position) throws JFSBadFileException {
+    void writeInt(int number, long position) throws JFSBadFileException {
         try {
-            ByteBuffer buffer = newBuffer(4);
-            buffer.putInt(number);
-            buffer.flip();
-            buffer.limit(4);
             assert position + 4 <= fileSize;
-            int result = myChannel.write(buffer, position);
-            assert result == 4;
+            int inSegment = (int) (position % MAPPING_SEGMENT_SIZE);
+            if (myMapping != null && inSegment <= MAPPING_SEGMENT_SIZE - 4) {
+                ByteBuffer view = myViews.get()[(int) (position / MAPPING_SEGMENT_SIZE)];
+                view.clear();
+                view.putInt(inSegment, number);
+                return;
+            }
+
+            ByteBuffer buffer = myIntBuffer.get();
+            buffer.clear();
+            buffer.putInt(0, number);
+            write(buffer, position);
         } catch (IOException e) {
             throw new JFSBadFileException("could not write int to file: " + e.getMessage());
         }
     }
 
+    void read(ByteBuffer buffer, long position) throws IOException {
+        if (myMapping != null) {
+            while (buffer.hasRemaining()) {
+                ByteBuffer view = segmentView(position, buffer.remaining());
+                position += view.remaining();
+                buffer.put(view);
+            }
+            return;
+        }
+
+        while (buffer.hasRemaining()) {
+            int result = myChannel.read(buffer, position);
+            if (result < 0) {
+                throw new IOException("unexpected end of file");
+            }
+            position += result;
+        }
+    }
+
+    void write(ByteBuffer buffer, long position) throws IOException {
+        assert position + buffer.remaining() <= fileSize;
+        if (myMapping != null) {
+            final int limit = buffer.limit();
+            while (buffer.hasRemaining()) {
+                ByteBuffer view = segmentView(position, buffer.remaining());
+                position += view.remaining();
+                buffer.limit(buffer.position() + view.remaining());
+                view.put(buffer);
+                buffer.limit(limit);
+            }
+            return;
+        }
+
+        while (buffer.hasRemaining()) {
+            position += myChannel.write(buffer, position);
+        }
+    }
+
+    // part of the mapping from position up to length bytes, which fits in a single segment;
+    // the view belongs to the calling thread and stays valid until its next transfer
+    private ByteBuffer segmentView(long position, int length) {
+        int inSegment = (int) (position % MAPPING_SEGMENT_SIZE);
+        ByteBuffer view = myViews.get()[(int) (position / MAPPING_SEGMENT_SIZE)];
+        view.clear();
+        view.position(inSegment);
+        view.limit((int) Math.min(view.capacity(), inSegment + (long) length));
+        return view;
+    }
+
     private long inodeOffset(int inodeId) throws JFSException {
 
         if (inodeId <= 0 || inodeId > myTotalInodes) {
@@ -160,7 +622,7 @@ abstract public class FileAccessorBase {
             throw new JFSException("inodeId=" + Integer.toString(inodeId) + " not in " + range);
         }
 
-        return Parameters.HEADER_SIZE + (inodeId - 1) * Parameters.INODE_SIZE;
+        return myHeaderSize + (inodeId - 1) * (long) Parameters.INODE_SIZE;
     }
 
     private long blockOffset(int blockId) throws JFSException {
@@ -168,8 +630,6 @@ abstract public class FileAccessorBase {
             String range = "[1; " + Integer.toString(myTotalBlocks) + "]";
             throw new JFSException("blockId=" + Integer.toString(blockId) + " not in " + range);
         }
-        return Parameters.HEADER_SIZE
-                + myTotalInodes * Parameters.INODE_SIZE
-                + (blockId - 1) * Parameters.DATA_BLOCK_SIZE;
+        return dataOffset() + (blockId - 1) * (long) Parameters.DATA_BLOCK_SIZE;
     }
 }
@@ -0,0 +1,158 @@
+package org.kshmakov.jfs.io;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.kshmakov.jfs.TestCommon;
+import org.kshmakov.jfs.driver.JFSException;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class FileAccessorTest {
+    private FileAccessor accessor = null;
+
+    @Before
+    public void initialization() throws IOException, JFSException {
+        accessor = TestCommon.createAccessor(200000);
+    }
+
+    private static void checkVectoredTransfer(FileAccessor writer, FileAccessor reader) throws JFSException {
+        checkVectoredTransfer(writer, reader, new int[]{0, 3, 4, 5, 9, 10, 2}, 1);
+    }
+
+    private static void checkVectoredTransfer(FileAccessor writer, FileAccessor reader, int[] ids, int from)
+            throws JFSException {
+        int count = ids.length - from;
+
+        byte[] bytes = new byte[count * Parameters.DATA_BLOCK_SIZE];
+        for (int i = 0; i < bytes.length; ++i) {
+            bytes[i] = (byte) (i / Parameters.DATA_BLOCK_SIZE + i);
+        }
+
+        writer.writeBlocks(ids, from, count, ByteBuffer.wrap(bytes));
+        writer.flush();
+
+        byte[] result = new byte[bytes.length];
+        reader.readBlocks(ids, from, count, ByteBuffer.wrap(result));
+        assertArrayEquals(bytes, result);
+
+        for (int i = 0; i < count; ++i) {
+            byte[] block = reader.readBlock(ids[i + from]);
+            for (int j = 0; j < block.length; ++j) {
+                assertEquals(bytes[i * Parameters.DATA_BLOCK_SIZE + j], block[j]);
+            }
+        }
+    }
+
+    @Test
+    public void test00() throws IOException, JFSException {
+        /**
+         * Checks vectored block transfers over plain channel.
+         */
+        checkVectoredTransfer(accessor, accessor);
+    }
+
+    @Test
+    public void test01() throws IOException, JFSException {
+        /**
+         * Checks vectored block transfers through block cache and memory mapping.
+         */
+        checkVectoredTransfer(TestCommon.createCachedAccessor(new BlockCache(3 * Parameters.DATA_BLOCK_SIZE)), accessor);
+        checkVectoredTransfer(TestCommon.createMappedAccessor(), accessor);
+    }
+
+    @Test(expected = JFSException.class)
+    public void test02() throws IOException, JFSException {
+        int[] ids = new int[]{47, 48, 49};
+        accessor.readBlocks(ids, 0, ids.length, ByteBuffer.allocate(ids.length * Parameters.DATA_BLOCK_SIZE));
+    }
+
+    @Test
+    public void test03() throws IOException, JFSException {
+        /**
+         * Checks blocks past 2 GB of wide volume are reachable with plain and segmented mapped access.
+         */
+        TestCommon.createFile(3L << 30);
+        TestCommon.formatFile((short) (Features.WIDE | Features.LAZY_FORMAT));
+        accessor = TestCommon.openAccessor();
+
+        final int lastId = accessor.getTotalBlocks();
+        assertTrue(lastId > Integer.MAX_VALUE / Parameters.DATA_BLOCK_SIZE);
+
+        // first block starting below 2 GB runs across the border of mapping segments
+        long dataOffset = Parameters.EXTENDED_HEADER_SIZE + (long) accessor.getTotalInodes() * Parameters.INODE_SIZE;
+        int borderId = (int) (((2L << 30) - dataOffset) / Parameters.DATA_BLOCK_SIZE) + 1;
+
+        int[] ids = new int[]{borderId, borderId + 1, lastId - 1, lastId};
+        checkVectoredTransfer(accessor, TestCommon.createMappedAccessor(), ids, 0);
+        checkVectoredTransfer(TestCommon.createMappedAccessor(), accessor, ids, 0);
+    }
+
+    // every thread keeps writing and reading back its own blocks and inodes through the shared accessor
+    private static void checkConcurrentTransfers(FileAccessor shared) throws Exception {
+        final int threads = 4;
+        final int blocksPerThread = 8;
+        final int inodesPerThread = 4;
+        AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Thread[] workers = new Thread[threads];
+
+        for (int t = 0; t < threads; ++t) {
+            final int firstBlock = 1 + t * blocksPerThread;
+            final int firstInode = 1 + t * inodesPerThread;
+            workers[t] = new Thread(() -> {
+                try {
+                    int[] ids = new int[blocksPerThread];
+                    for (int i = 0; i < ids.length; ++i) {
+                        ids[i] = firstBlock + i;
+                    }
+
+                    byte[] bytes = new byte[blocksPerThread * Parameters.DATA_BLOCK_SIZE];
+                    byte[] result = new byte[bytes.length];
+                    for (int iteration = 0; iteration < 200; ++iteration) {
+                        Arrays.fill(bytes, (byte) (firstBlock + iteration));
+                        shared.writeBlocks(ids, 0, ids.length, ByteBuffer.wrap(bytes));
+                        for (int i = 0; i < inodesPerThread; ++i) {
+                            shared.writeInodeInt(iteration * firstInode + i, firstInode + i, InodeOffsets.OBJECT_SIZE);
+                        }
+
+                        shared.readBlocks(ids, 0, ids.length, ByteBuffer.wrap(result));
+                        assertArrayEquals(bytes, result);
+                        assertArrayEquals(Arrays.copyOf(bytes, Parameters.DATA_BLOCK_SIZE), shared.readBlock(ids[iteration % ids.length]));
+                        for (int i = 0; i < inodesPerThread; ++i) {
+                            assertEquals(iteration * firstInode + i, shared.readInodeInt(firstInode + i, InodeOffsets.OBJECT_SIZE));
+                        }
+                    }
+                } catch (Throwable e) {
+                    failure.set(e);
+                }
+            });
+            workers[t].start();
+        }
+
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        assertNull(failure.get());
+    }
+
+    @Test
+    public void test04() throws Exception {
+        /**
+         * Checks single accessor serves concurrent transfers of different threads over plain channel,
+         * memory mapping and block cache.
+         */
+        checkConcurrentTransfers(accessor);
+        checkConcurrentTransfers(TestCommon.createMappedAccessor());
+        checkConcurrentTransfers(TestCommon.createCachedAccessor(new BlockCache(16 * Parameters.DATA_BLOCK_SIZE)));
+    }
+
+    @After
+    public void cleanUp() {
+        TestCommon.cleanUp();
+    }
+}
@@ -4,53 +4,121 @@ import org.kshmakov.jfs.driver.JFSException;
 import org.kshmakov.jfs.io.primitives.AllocatedInode;
 import org.kshmakov.jfs.io.primitives.BlockBase;
 import org.kshmakov.jfs.io.primitives.DirectoryBlock;
+import org.kshmakov.jfs.io.primitives.DirectoryIndexBlock;
 import org.kshmakov.jfs.io.primitives.InodeBase;
 
+import java.nio.ByteBuffer;
+import java.util.Random;
+
 public class FileFormatter extends FileAccessorBase {
 
     @Override
     protected int getTotalInodes() {
-        assert fileSize >= Parameters.MIN_FS_SIZE && fileSize <= Parameters.MAX_FS_SIZE;
+        assert fileSize >= Parameters.MIN_FS_SIZE && fileSize <= Features.maxSize(features);
         // heuristic rule, see https://en.wikipedia.org/wiki/Inode#Details
-        return Math.max(1, (int) (fileSize / (100 * Parameters.INODE_SIZE)));
+        return (int) Math.max(1, Math.min(Parameters.MAX_INODES, fileSize / (100 * Parameters.INODE_SIZE)));
     }
 
     @Override
     protected int getTotalBlocks() {
-        assert fileSize >= Parameters.MIN_FS_SIZE && fileSize <= Parameters.MAX_FS_SIZE;
-        long inodesSize = getTotalInodes() * Parameters.INODE_SIZE;
-        long sizeLeft = fileSize - Parameters.HEADER_SIZE - inodesSize;
+        assert fileSize >= Parameters.MIN_FS_SIZE && fileSize <= Features.maxSize(features);
+        long inodesSize = getTotalInodes() * (long) Parameters.INODE_SIZE;
+        long sizeLeft = fileSize - myHeaderSize - inodesSize;
         return (int) (sizeLeft / Parameters.DATA_BLOCK_SIZE);
     }
 
     public FileFormatter(String fileName) throws JFSBadFileException {
-        super(fileName);
+        this(fileName, Parameters.FILE_SYSTEM_VERSION);
+    }
+
+    public FileFormatter(String fileName, short features) throws JFSBadFileException {
+        super(fileName, features);
     }
 
     public void format() throws JFSException {
-        resetHeader();
-        resetInodes();
-        resetBlocks();
+        // blocks preceding root directory block are reserved for allocator bitmap followed by journal
+        final int bitmapBlocks = Features.has(features, Features.BITMAP_ALLOCATOR)
+                ? BlocksBitmap.bitmapBlocks(myTotalBlocks)
+                : 0;
+        final int journalBlocks = Features.has(features, Features.JOURNAL) ? Journal.blocksFor(myTotalBlocks) : 0;
+        final int rootBlockId = bitmapBlocks + journalBlocks + 1;
+        // hashed root directory starts with index block followed by its only leaf
+        final int lastRootBlockId = Features.has(features, Features.HASHED_DIRECTORIES) ? rootBlockId + 1 : rootBlockId;
+
+        if (lastRootBlockId > myTotalBlocks) {
+            throw new JFSBadFileException("file is too small for requested features");
+        }
+
+        resetHeader(lastRootBlockId);
+
+        // lazily formatted volume hands out never used ids past high-water marks instead of linked lists
+        if (!Features.has(features, Features.LAZY_FORMAT)) {
+            resetInodes();
+        }
+
+        if (Features.has(features, Features.BITMAP_ALLOCATOR)) {
+            resetBitmap(bitmapBlocks, lastRootBlockId);
+        } else if (!Features.has(features, Features.LAZY_FORMAT)) {
+            resetBlocks();
+        }
 
+        if (Features.has(features, Features.JOURNAL)) {
+            resetJournal(bitmapBlocks + 1, journalBlocks);
+        }
+
+        final int rootBlocks = lastRootBlockId - rootBlockId + 1;
         AllocatedInode inode = new AllocatedInode(Parameters.EntryType.DIRECTORY, Parameters.ROOT_INODE_ID);
-        inode.objectSize = Parameters.DATA_BLOCK_SIZE;
-        inode.directPointers[0] = 1;
+        inode.objectSize = rootBlocks * Parameters.DATA_BLOCK_SIZE;
+        if (Features.has(features, Features.EXTENTS)) {
+            ExtentBlockMap.initialize(inode, rootBlockId, rootBlocks);
+        } else {
+            for (int i = 0; i < rootBlocks; ++i) {
+                inode.directPointers[i] = rootBlockId + i;
+            }
+        }
         writeInode(inode, Parameters.ROOT_INODE_ID);
 
-        writeBlock(DirectoryBlock.emptyDirectoryBlock(Parameters.ROOT_INODE_ID, Parameters.ROOT_INODE_ID), 1);
+        if (Features.has(features, Features.HASHED_DIRECTORIES)) {
+            writeBlock(new DirectoryIndexBlock(1), rootBlockId);
+        }
+
+        writeBlock(DirectoryBlock.emptyDirectoryBlock(Parameters.ROOT_INODE_ID, Parameters.ROOT_INODE_ID), lastRootBlockId);
     }
 
-    private void resetHeader() throws JFSBadFileException {
+    // blocks up to the last one of root directory are allocated
+    private void resetHeader(int lastRootBlockId) throws JFSException {
+        for (int offset = Parameters.HEADER_SIZE; offset < myHeaderSize; offset += 4) {
+            writeHeaderInt(0, (byte) offset);
+        }
+
         writeHeaderInt(Parameters.MAGIC_NUMBER, HeaderOffsets.MAGIC_NUMBER);
-        int versionAndBlockSize = ((Parameters.FILE_SYSTEM_VERSION) << 16) + Parameters.DATA_BLOCK_SIZE;
+        int versionAndBlockSize = (features << 16) + Parameters.DATA_BLOCK_SIZE;
         writeHeaderInt(versionAndBlockSize, HeaderOffsets.VERSION_AND_BLOCK_SIZE);
         writeHeaderInt(myTotalInodes, HeaderOffsets.TOTAL_INODES);
         writeHeaderInt(myTotalBlocks, HeaderOffsets.TOTAL_BLOCKS);
         writeHeaderInt(myTotalInodes - 1, HeaderOffsets.TOTAL_UNALLOCATED_INODES);
-        writeHeaderInt(myTotalBlocks - 1, HeaderOffsets.TOTAL_UNALLOCATED_BLOCKS);
+        writeHeaderInt(myTotalBlocks - lastRootBlockId, HeaderOffsets.TOTAL_UNALLOCATED_BLOCKS);
+
+        if (Features.has(features, Features.LAZY_FORMAT)) {
+            writeHeaderInt(0, HeaderOffsets.FIRST_UNALLOCATED_INODE_ID);
+            writeHeaderInt(0, HeaderOffsets.FIRST_UNALLOCATED_BLOCK_ID);
+            writeHeaderInt(Parameters.ROOT_INODE_ID, HeaderOffsets.INODES_HIGH_WATER_MARK);
+            writeHeaderInt(lastRootBlockId, HeaderOffsets.BLOCKS_HIGH_WATER_MARK);
+            return;
+        }
 
         writeHeaderInt(myTotalInodes > 1 ? 2 : 0, HeaderOffsets.FIRST_UNALLOCATED_INODE_ID);
-        writeHeaderInt(myTotalBlocks > 1 ? 2 : 0, HeaderOffsets.FIRST_UNALLOCATED_BLOCK_ID);
+        // bitmap allocator does not link unallocated blocks into a list
+        boolean linked = !Features.has(features, Features.BITMAP_ALLOCATOR) && myTotalBlocks > lastRootBlockId;
+        writeHeaderInt(linked ? lastRootBlockId + 1 : 0, HeaderOffsets.FIRST_UNALLOCATED_BLOCK_ID);
+    }
+
+    // journal starts empty, random id keeps records left by earlier formats of the same file from matching
+    private void resetJournal(int firstBlockId, int blocks) throws JFSException {
+        writeHeaderInt(firstBlockId, HeaderOffsets.JOURNAL_FIRST_BLOCK_ID);
+        writeHeaderInt(blocks, HeaderOffsets.JOURNAL_BLOCKS);
+        writeHeaderInt(new Random().nextInt(), HeaderOffsets.JOURNAL_ID);
+        writeBlock(Journal.superblock(1), firstBlockId);
     }
 
     private void resetInodes() throws JFSException {
@@ -59,6 +127,22 @@ public class FileFormatter extends FileAccessorBase {
         }
     }
 
+    private void resetBitmap(int bitmapBlocks, int lastRootBlockId) throws JFSException {
+        byte[] bits = new byte[bitmapBlocks * Parameters.DATA_BLOCK_SIZE];
+        int[] bitmapIds = new int[bitmapBlocks];
+
+        for (int blockId = 1; blockId <= lastRootBlockId; ++blockId) {
+            bits[(blockId - 1) >>> 3] |= 0x80 >>> ((blockId - 1) & 7);
+        }
+
+        for (int bitmapId = 1; bitmapId <= bitmapBlocks; ++bitmapId) {
+            bitmapIds[bitmapId - 1] = bitmapId;
+        }
+
+        // adjacent bitmap blocks go with a single write
+        writeBlocks(bitmapIds, 0, bitmapBlocks, ByteBuffer.wrap(bits));
+    }
+
     private void resetBlocks() throws JFSException {
         for (int blockId = 1; blockId <= myTotalBlocks; ++blockId) {
             writeBlock(new BlockBase((blockId + 1) % (myTotalBlocks + 1)), blockId);
@@ -61,6 +61,39 @@ public class FileFormatterTest {
         assertEquals(100, accessor.readHeaderInt(HeaderOffsets.TOTAL_BLOCKS));
     }
 
+    @Test(expected = JFSBadFileException.class)
+    public void test04() throws Exception {
+        TestCommon.createAccessor((int) Parameters.MIN_FS_SIZE, Features.BITMAP_ALLOCATOR);
+    }
+
+    @Test
+    public void test05() throws Exception {
+        /**
+         * Checks lazy format leaves unallocated lists empty and tracks high-water marks instead.
+         */
+        int size = (int) Parameters.MIN_FS_SIZE + 100 * Parameters.DATA_BLOCK_SIZE
+                + Parameters.EXTENDED_HEADER_SIZE - Parameters.HEADER_SIZE;
+        FileAccessor accessor = TestCommon.createAccessor(size, Features.LAZY_FORMAT);
+        assertEquals((Features.LAZY_FORMAT << 16) + Parameters.DATA_BLOCK_SIZE,
+                accessor.readHeaderInt(HeaderOffsets.VERSION_AND_BLOCK_SIZE));
+        assertEquals(0, accessor.readHeaderInt(HeaderOffsets.FIRST_UNALLOCATED_INODE_ID));
+        assertEquals(0, accessor.readHeaderInt(HeaderOffsets.FIRST_UNALLOCATED_BLOCK_ID));
+        assertEquals(1, accessor.readHeaderInt(HeaderOffsets.INODES_HIGH_WATER_MARK));
+        assertEquals(1, accessor.readHeaderInt(HeaderOffsets.BLOCKS_HIGH_WATER_MARK));
+
+        assertEquals(63, accessor.readHeaderInt(HeaderOffsets.TOTAL_UNALLOCATED_INODES));
+        assertEquals(99, accessor.readHeaderInt(HeaderOffsets.TOTAL_UNALLOCATED_BLOCKS));
+
+        assertEquals(64, accessor.readHeaderInt(HeaderOffsets.TOTAL_INODES));
+        assertEquals(100, accessor.readHeaderInt(HeaderOffsets.TOTAL_BLOCKS));
+    }
+
+    @Test(expected = JFSBadFileException.class)
+    public void test06() throws Exception {
+        TestCommon.createFile(Parameters.MAX_FS_SIZE + Parameters.DATA_BLOCK_SIZE);
+        TestCommon.formatFile(Features.LAZY_FORMAT);
+    }
+
     @After
     public void cleanUp() {
         TestCommon.cleanUp();
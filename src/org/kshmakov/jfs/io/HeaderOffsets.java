@@ -11,4 +11,19 @@ public interface HeaderOffsets {
 
     byte FIRST_UNALLOCATED_INODE_ID = 24;
     byte FIRST_UNALLOCATED_BLOCK_ID = 28;
+
+    // extended header fields
+
+    // ids past high-water marks have never been used and are not linked into unallocated lists
+    byte INODES_HIGH_WATER_MARK = 32;
+    byte BLOCKS_HIGH_WATER_MARK = 36;
+
+    // run of data blocks reserved for the journal, journaled volumes only
+    byte JOURNAL_FIRST_BLOCK_ID = 40;
+    byte JOURNAL_BLOCKS = 44;
+    // random number chosen on format, mixed into record checksums
+    byte JOURNAL_ID = 48;
+
+    // block listing removed directories not reclaimed yet, 0 if there are none
+    byte ORPHANS_BLOCK_ID = 52;
 }
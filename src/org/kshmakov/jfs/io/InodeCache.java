@@ -0,0 +1,143 @@
+package org.kshmakov.jfs.io;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+import org.kshmakov.jfs.driver.JFSException;
+import org.kshmakov.jfs.io.primitives.AllocatedInode;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps decoded allocated inodes in memory, writes go through to the inode table.
+ *
+ * Returned objects are shared: callers modify them only while holding the inode lock
+ * and persist modifications with {@link #write(AllocatedInode, int)}.
+ */
+@ThreadSafe
+public class InodeCache {
+    // missing inodes this close to each other are read together with the slots in between
+    public static final int MAX_RUN_GAP = 16;
+
+    private final FileAccessor myAccessor;
+
+    private final Object myLock = new Object();
+
+    @GuardedBy("myLock")
+    private final LinkedHashMap<Integer, AllocatedInode> myInodes;
+    // changes with every write, so that inodes loaded concurrently with some write are not kept
+    @GuardedBy("myLock")
+    private long myGeneration = 0;
+
+    public InodeCache(FileAccessor accessor, final int capacity) {
+        myAccessor = accessor;
+        myInodes = new LinkedHashMap<Integer, AllocatedInode>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, AllocatedInode> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    public AllocatedInode get(int inodeId) throws JFSException {
+        final long generation;
+        synchronized (myLock) {
+            AllocatedInode inode = myInodes.get(inodeId);
+            if (inode != null) {
+                return inode;
+            }
+            generation = myGeneration;
+        }
+
+        AllocatedInode inode = new AllocatedInode(myAccessor.readInode(inodeId));
+
+        synchronized (myLock) {
+            AllocatedInode raced = myInodes.get(inodeId);
+            if (raced != null) {
+                return raced;
+            }
+
+            if (generation == myGeneration) {
+                myInodes.put(inodeId, inode);
+            }
+            return inode;
+        }
+    }
+
+    /**
+     * Returns inodes for all the given ids, which may repeat and come in any order.
+     * Missing inodes are read in runs of neighbouring slots, one read per run.
+     */
+    public AllocatedInode[] getAll(int[] inodeIds) throws JFSException {
+        AllocatedInode[] result = new AllocatedInode[inodeIds.length];
+
+        // missing ones are packed as id in high and position in low half to be sorted by id
+        long[] missing = new long[inodeIds.length];
+        int missingNumber = 0;
+        final long generation;
+
+        synchronized (myLock) {
+            generation = myGeneration;
+            for (int i = 0; i < inodeIds.length; ++i) {
+                result[i] = myInodes.get(inodeIds[i]);
+                if (result[i] == null) {
+                    missing[missingNumber++] = ((long) inodeIds[i] << 32) | i;
+                }
+            }
+        }
+
+        Arrays.sort(missing, 0, missingNumber);
+
+        for (int runStart = 0, runEnd; runStart < missingNumber; runStart = runEnd) {
+            final int firstId = (int) (missing[runStart] >>> 32);
+            int lastId = firstId;
+            for (runEnd = runStart + 1; runEnd < missingNumber; ++runEnd) {
+                int nextId = (int) (missing[runEnd] >>> 32);
+                if (nextId - lastId > MAX_RUN_GAP) {
+                    break;
+                }
+                lastId = nextId;
+            }
+
+            ByteBuffer buffer = myAccessor.readInodes(firstId, lastId - firstId + 1);
+
+            synchronized (myLock) {
+                for (int i = runStart; i < runEnd; ++i) {
+                    int inodeId = (int) (missing[i] >>> 32);
+                    int position = (int) missing[i];
+
+                    AllocatedInode inode = myInodes.get(inodeId);
+                    if (inode == null) {
+                        buffer.position((inodeId - firstId) * Parameters.INODE_SIZE);
+                        inode = new AllocatedInode(buffer);
+                        if (generation == myGeneration) {
+                            myInodes.put(inodeId, inode);
+                        }
+                    }
+
+                    result[position] = inode;
+                }
+            }
+        }
+
+        return result;
+    }
+
+    public void write(AllocatedInode inode, int inodeId) throws JFSException {
+        myAccessor.writeInode(inode, inodeId);
+
+        synchronized (myLock) {
+            ++myGeneration;
+            myInodes.put(inodeId, inode);
+        }
+    }
+
+    public void invalidate(int inodeId) {
+        synchronized (myLock) {
+            ++myGeneration;
+            myInodes.remove(inodeId);
+        }
+    }
+}
@@ -7,4 +7,6 @@ public interface InodeOffsets {
     byte[] DIRECT_POINTERS = {
             8, 12, 16, 20, 24, 28, 32, 36, 40, 44, 48, 52
     };
+    byte SINGLY_INDIRECT_POINTER = 56;
+    byte DOUBLY_INDIRECT_POINTER = 60;
 }
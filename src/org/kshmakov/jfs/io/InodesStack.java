@@ -1,52 +1,171 @@
 package org.kshmakov.jfs.io;
 
+import com.sun.istack.internal.Nullable;
 import net.jcip.annotations.GuardedBy;
 import net.jcip.annotations.ThreadSafe;
 import org.kshmakov.jfs.driver.JFSException;
 import org.kshmakov.jfs.driver.tools.DriverHelper;
 import org.kshmakov.jfs.io.primitives.InodeBase;
 
+import java.util.ArrayList;
+
 @ThreadSafe
 public class InodesStack {
     private FileAccessor myAccessor;
+    private InodeCache myCache;
     private int myUnallocatedInodes;
     private int myFirstUnallocatedId;
+    // inodes past the mark are unallocated without being linked, lazily formatted volumes only
+    private int myHighWaterMark;
+    private final boolean myLazy;
 
     private final Object myLock = new Object();
 
-    public InodesStack(FileAccessor accessor) throws JFSBadFileException {
+    // per-thread stocks of reserved ids, null when every allocation goes through the list
+    @Nullable
+    private final Magazines myMagazines;
+
+    public InodesStack(FileAccessor accessor, InodeCache cache) throws JFSBadFileException {
+        this(accessor, cache, 0, 0);
+    }
+
+    public InodesStack(FileAccessor accessor, InodeCache cache, int magazines, int magazineSize)
+            throws JFSBadFileException {
         myAccessor = accessor;
+        myCache = cache;
         myUnallocatedInodes = accessor.readHeaderInt(HeaderOffsets.TOTAL_UNALLOCATED_INODES);
         myFirstUnallocatedId = accessor.readHeaderInt(HeaderOffsets.FIRST_UNALLOCATED_INODE_ID);
-    }
+        myLazy = Features.has(accessor.features, Features.LAZY_FORMAT);
+        myHighWaterMark = myLazy
+                ? accessor.readHeaderInt(HeaderOffsets.INODES_HIGH_WATER_MARK)
+                : accessor.getTotalInodes();
 
-    @GuardedBy("myLock")
-    private boolean empty() {
-        return myUnallocatedInodes == 0;
+        myMagazines = magazines > 0 && magazineSize > 0
+                ? new Magazines(new Magazines.Source() {
+                    @Override
+                    public ArrayList<Integer> reserve(int amount) throws JFSException {
+                        return InodesStack.this.reserve(amount);
+                    }
+
+                    @Override
+                    public void giveBack(ArrayList<Integer> ids) throws JFSException {
+                        push(ids);
+                    }
+                }, magazines, magazineSize)
+                : null;
     }
 
     public int pop(InodeBase inode) throws JFSException {
-        synchronized (myLock) {
-            DriverHelper.refuseIf(empty(), "no unallocated inodes left");
+        ArrayList<InodeBase> inodes = new ArrayList<InodeBase>(1);
+        inodes.add(inode);
+        return pop(inodes).get(0);
+    }
+
+    /**
+     * Allocates an inode for each of given ones and writes them into allocated slots.
+     */
+    public ArrayList<Integer> pop(ArrayList<? extends InodeBase> inodes) throws JFSException {
+        ArrayList<Integer> result = null;
+        if (myMagazines != null && inodes.size() <= myMagazines.capacity) {
+            result = myMagazines.take(inodes.size(), 0);
+        }
+
+        if (result == null) {
+            try {
+                result = reserve(inodes.size());
+            } catch (JFSException e) {
+                if (myMagazines == null) {
+                    throw e;
+                }
+
+                // inodes may be stuck in magazines of other threads
+                myMagazines.drain();
+                result = reserve(inodes.size());
+            }
+        }
+
+        // reserved slots belong to the caller, so they are written without the lock
+        for (int i = 0; i < result.size(); ++i) {
+            myCache.invalidate(result.get(i));
+            myAccessor.writeInode(inodes.get(i), result.get(i));
+        }
+
+        return result;
+    }
 
-            int resultId = myFirstUnallocatedId;
+    // unlinks given amount of inodes from the list without writing them
+    private ArrayList<Integer> reserve(int amount) throws JFSException {
+        synchronized (myLock) {
+            DriverHelper.refuseIf(myUnallocatedInodes < amount, "no unallocated inodes left");
+            ArrayList<Integer> result = new ArrayList<Integer>(amount);
 
-            myFirstUnallocatedId = myAccessor.readInodeInt(resultId, InodeOffsets.NEXT_INODE);
-            myAccessor.writeHeaderInt(myFirstUnallocatedId, HeaderOffsets.FIRST_UNALLOCATED_INODE_ID);
-            myAccessor.writeHeaderInt(--myUnallocatedInodes, HeaderOffsets.TOTAL_UNALLOCATED_INODES);
+            // walks the list in memory, header is updated once per batch
+            int firstId = myFirstUnallocatedId;
+            int highWaterMark = myHighWaterMark;
+            for (int i = 0; i < amount; ++i) {
+                if (firstId != 0) {
+                    result.add(firstId);
+                    firstId = myAccessor.readInodeInt(firstId, InodeOffsets.NEXT_INODE);
+                } else {
+                    result.add(++highWaterMark);
+                }
+            }
 
-            myAccessor.writeInode(inode, resultId);
+            updateHeader(firstId, myUnallocatedInodes - amount);
+            updateHighWaterMark(highWaterMark);
+            return result;
+        }
+    }
 
-            return resultId;
+    /**
+     * Returns inodes reserved for future allocations, if any, to the list.
+     */
+    public void drain() throws JFSException {
+        if (myMagazines != null) {
+            myMagazines.drain();
         }
     }
 
     public void push(int inodeId) throws JFSException {
+        ArrayList<Integer> ids = new ArrayList<Integer>(1);
+        ids.add(inodeId);
+        push(ids);
+    }
+
+    public void push(ArrayList<Integer> ids) throws JFSException {
         synchronized (myLock) {
-            myAccessor.writeInodeInt(myFirstUnallocatedId, inodeId, InodeOffsets.NEXT_INODE);
-            myAccessor.writeHeaderInt(inodeId, HeaderOffsets.FIRST_UNALLOCATED_INODE_ID);
-            myAccessor.writeHeaderInt(++myUnallocatedInodes, HeaderOffsets.TOTAL_UNALLOCATED_INODES);
-            myFirstUnallocatedId = inodeId;
+            if (ids.isEmpty()) {
+                return;
+            }
+
+            int nextId = myFirstUnallocatedId;
+            for (int i = ids.size() - 1; i >= 0; --i) {
+                myCache.invalidate(ids.get(i));
+                myAccessor.writeInodeInt(nextId, ids.get(i), InodeOffsets.NEXT_INODE);
+                nextId = ids.get(i);
+            }
+
+            updateHeader(nextId, myUnallocatedInodes + ids.size());
+        }
+    }
+
+    @GuardedBy("myLock")
+    private void updateHeader(int firstUnallocatedId, int unallocatedInodes) throws JFSException {
+        if (firstUnallocatedId != myFirstUnallocatedId) {
+            myAccessor.writeHeaderInt(firstUnallocatedId, HeaderOffsets.FIRST_UNALLOCATED_INODE_ID);
+            myFirstUnallocatedId = firstUnallocatedId;
+        }
+
+        myAccessor.writeHeaderInt(unallocatedInodes, HeaderOffsets.TOTAL_UNALLOCATED_INODES);
+        myUnallocatedInodes = unallocatedInodes;
+    }
+
+    @GuardedBy("myLock")
+    private void updateHighWaterMark(int highWaterMark) throws JFSException {
+        if (highWaterMark != myHighWaterMark) {
+            assert myLazy;
+            myAccessor.writeHeaderInt(highWaterMark, HeaderOffsets.INODES_HIGH_WATER_MARK);
+            myHighWaterMark = highWaterMark;
         }
     }
 }
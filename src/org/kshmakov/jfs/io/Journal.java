@@ -0,0 +1,597 @@
+package org.kshmakov.jfs.io;
+
+import com.sun.istack.internal.Nullable;
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+import org.kshmakov.jfs.driver.JFSException;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead journal of metadata, kept in a run of data blocks reserved on format.
+ *
+ * Metadata is modified in memory, as images of whole units: 4 KB pages of header and inode table
+ * or single data blocks. Operations group their modifications between {@link #start()} and
+ * {@link #stop(boolean)}; all operations which run concurrently join the same transaction. On commit
+ * images of the transaction go to the journal with a single record and a single force of the file,
+ * only then they are written in place. Records are replayed on mount, the first record with broken
+ * checksum ends the replay.
+ *
+ * The first block of the journal keeps sequence number of the transaction whose record is expected
+ * to follow it. Journal is started over once the next record does not fit: after a force makes
+ * everything stored in place durable, the first block is advanced to the next transaction, so older
+ * records are never replayed again. Transaction bigger than the whole journal is written in place
+ * between forces, it is not atomic.
+ */
+@ThreadSafe
+public class Journal {
+    static final int MAGIC = 0x4A4E4C52;
+    static final int SUPERBLOCK_MAGIC = 0x4A4E4C53;
+
+    public static final int MIN_BLOCKS = 16;
+    public static final int MAX_BLOCKS = 1024;
+
+    // magic, 8 byte sequence number, number of units and checksum precede positions of units
+    private static final int DESCRIPTOR_HEADER_SIZE = 20;
+    private static final byte SEQUENCE_OFFSET = 4;
+    private static final byte COUNT_OFFSET = 12;
+    private static final byte CHECKSUM_OFFSET = 16;
+
+    private static final int UNIT_SIZE = Parameters.DATA_BLOCK_SIZE;
+
+    // image of a unit which might differ from the one stored in place
+    private static final class Unit {
+        final long position;
+        final byte[] image;
+
+        // last transaction to modify the unit
+        @GuardedBy("this")
+        long sequence = 0;
+        // dropped after checkpoint, writers have to look the unit up again
+        @GuardedBy("this")
+        boolean detached = false;
+
+        Unit(long position, int length) {
+            this.position = position;
+            this.image = new byte[length];
+        }
+    }
+
+    private static final class Transaction {
+        final long sequence;
+        final Set<Unit> units = ConcurrentHashMap.newKeySet();
+        // handles not stopped yet
+        int handles = 0;
+        // run by the committing thread once the transaction is durable
+        final ArrayList<Runnable> actions = new ArrayList<Runnable>();
+
+        Transaction(long sequence) {
+            this.sequence = sequence;
+        }
+    }
+
+    private static final class Handle {
+        final Transaction transaction;
+        int depth = 1;
+
+        Handle(Transaction transaction) {
+            this.transaction = transaction;
+        }
+    }
+
+    private final FileAccessorBase myAccessor;
+    private final long myDataOffset;
+    private final long myOffset;
+    private final int myBlocks;
+    private final int myId;
+    // running transaction with so many units is committed without waiting for an explicit commit
+    private final int myCommitThreshold;
+
+    private final ConcurrentHashMap<Long, Unit> myUnits = new ConcurrentHashMap<Long, Unit>();
+    // units with records since the journal was started over, file contents written there go through
+    // the journal as well, so that replay of older records can not overwrite them
+    private final Set<Long> myJournaled = ConcurrentHashMap.newKeySet();
+    private final ThreadLocal<Handle> myHandles = new ThreadLocal<Handle>();
+
+    private final Object myLock = new Object();
+    @GuardedBy("myLock")
+    private Transaction myRunning;
+    // set while committing thread snapshots units, no handles are started meanwhile
+    @GuardedBy("myLock")
+    private boolean myLockedDown = false;
+    @GuardedBy("myLock")
+    private boolean myCommitting = false;
+    @GuardedBy("myLock")
+    private long myCommitted;
+    @GuardedBy("myLock")
+    private long myCommits = 0;
+    @GuardedBy("myLock")
+    @Nullable
+    private JFSException myFailure = null;
+
+    // block of the next record, touched only by the committing thread
+    private int myHead = 1;
+
+    public static int blocksFor(int totalBlocks) {
+        return Math.min(MAX_BLOCKS, Math.max(MIN_BLOCKS, totalBlocks / 64));
+    }
+
+    // first block of the journal, magic and sequence number of the transaction to be replayed first
+    static ByteBuffer superblock(long sequence) {
+        ByteBuffer result = FileAccessorBase.newBuffer(Parameters.DATA_BLOCK_SIZE);
+        result.putInt(0, SUPERBLOCK_MAGIC);
+        result.putLong(SEQUENCE_OFFSET, sequence);
+        return result;
+    }
+
+    Journal(FileAccessorBase accessor) throws JFSBadFileException {
+        myAccessor = accessor;
+        myDataOffset = accessor.dataOffset();
+
+        int firstBlockId = accessor.readHeaderInt(HeaderOffsets.JOURNAL_FIRST_BLOCK_ID);
+        myBlocks = accessor.readHeaderInt(HeaderOffsets.JOURNAL_BLOCKS);
+        if (firstBlockId <= 0 || myBlocks <= 0 || firstBlockId - 1 > accessor.myTotalBlocks - myBlocks) {
+            throw new JFSBadFileException("journal is out of data blocks");
+        }
+
+        myOffset = myDataOffset + (firstBlockId - 1) * (long) Parameters.DATA_BLOCK_SIZE;
+        myId = accessor.readHeaderInt(HeaderOffsets.JOURNAL_ID);
+        myCommitThreshold = Math.max(1, myBlocks / 4);
+
+        long sequence = replay();
+        myCommitted = sequence - 1;
+        myRunning = new Transaction(sequence);
+    }
+
+    public long commits() {
+        synchronized (myLock) {
+            return myCommits;
+        }
+    }
+
+    /**
+     * Joins the running transaction, waits while a commit takes its snapshot. Nested calls of
+     * the same thread join the transaction of the outermost one.
+     */
+    public void start() {
+        Handle handle = myHandles.get();
+        if (handle != null) {
+            ++handle.depth;
+            return;
+        }
+
+        boolean interrupted = false;
+        synchronized (myLock) {
+            while (myLockedDown) {
+                interrupted |= await();
+            }
+
+            ++myRunning.handles;
+            handle = new Handle(myRunning);
+        }
+
+        myHandles.set(handle);
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Leaves the transaction, when {@code synchronous} is set waits until it is committed.
+     */
+    public void stop(boolean synchronous) throws JFSException {
+        Handle handle = myHandles.get();
+        assert handle != null;
+        if (--handle.depth > 0) {
+            return;
+        }
+
+        myHandles.remove();
+        final Transaction transaction = handle.transaction;
+        boolean commit;
+
+        synchronized (myLock) {
+            if (--transaction.handles == 0) {
+                myLock.notifyAll();
+            }
+            commit = synchronous || transaction.units.size() >= myCommitThreshold;
+        }
+
+        if (commit) {
+            commit(transaction.sequence);
+        }
+    }
+
+    /**
+     * Makes everything modified so far durable.
+     */
+    public void commit() throws JFSException {
+        long sequence;
+        synchronized (myLock) {
+            sequence = myRunning.sequence;
+        }
+
+        commit(sequence);
+    }
+
+    /**
+     * Commits and starts the journal over, so that nothing is replayed on the next mount.
+     */
+    public void close() throws JFSException {
+        commit();
+
+        long sequence;
+        synchronized (myLock) {
+            sequence = myRunning.sequence;
+        }
+
+        restart(sequence);
+    }
+
+    /**
+     * Runs the action once modifications made so far on behalf of the calling thread are durable.
+     * Action is run by the committing thread, it must not start handles or wait for commits.
+     */
+    public void afterCommit(Runnable action) {
+        Handle handle = myHandles.get();
+        synchronized (myLock) {
+            (handle != null ? handle.transaction : myRunning).actions.add(action);
+        }
+    }
+
+    // units are aligned pages before data blocks and blocks after, the last page is cut by the first block
+    long unitStart(long position) {
+        return position < myDataOffset
+                ? position - position % UNIT_SIZE
+                : position - (position - myDataOffset) % UNIT_SIZE;
+    }
+
+    long unitEnd(long position) {
+        long start = unitStart(position);
+        return start < myDataOffset ? Math.min(start + UNIT_SIZE, myDataOffset) : start + UNIT_SIZE;
+    }
+
+    boolean holds(long position) {
+        return !myUnits.isEmpty() && myUnits.containsKey(unitStart(position));
+    }
+
+    boolean tracks(long position) {
+        return holds(position) || myJournaled.contains(unitStart(position));
+    }
+
+    /**
+     * Fills the buffer from image of the unit if there is one, range has to lie within a single unit.
+     */
+    boolean read(long position, ByteBuffer destination) {
+        if (myUnits.isEmpty()) {
+            return false;
+        }
+
+        Unit unit = myUnits.get(unitStart(position));
+        if (unit == null) {
+            return false;
+        }
+
+        assert position + destination.remaining() <= unit.position + unit.image.length;
+        synchronized (unit) {
+            destination.put(unit.image, (int) (position - unit.position), destination.remaining());
+        }
+
+        return true;
+    }
+
+    /**
+     * Applies remaining bytes of the buffer to images of units they fall into on behalf of
+     * the transaction of the calling thread.
+     */
+    void write(long position, ByteBuffer source) throws JFSException {
+        Handle handle = myHandles.get();
+
+        while (source.hasRemaining()) {
+            final int length = (int) Math.min(source.remaining(), unitEnd(position) - position);
+            Unit unit = unit(unitStart(position));
+
+            synchronized (unit) {
+                if (unit.detached) {
+                    continue;
+                }
+
+                source.get(unit.image, (int) (position - unit.position), length);
+
+                Transaction transaction = handle != null ? handle.transaction : running();
+                if (unit.sequence != transaction.sequence) {
+                    unit.sequence = transaction.sequence;
+                    transaction.units.add(unit);
+                }
+            }
+
+            position += length;
+        }
+    }
+
+    private Transaction running() {
+        synchronized (myLock) {
+            return myRunning;
+        }
+    }
+
+    private Unit unit(long start) throws JFSException {
+        Unit unit = myUnits.get(start);
+        if (unit != null) {
+            return unit;
+        }
+
+        Unit loaded = new Unit(start, (int) (unitEnd(start) - start));
+        myAccessor.readStored(ByteBuffer.wrap(loaded.image), start);
+        unit = myUnits.putIfAbsent(start, loaded);
+        return unit != null ? unit : loaded;
+    }
+
+    // waits ignoring interrupts, tells whether there was one
+    @GuardedBy("myLock")
+    private boolean await() {
+        try {
+            myLock.wait();
+            return false;
+        } catch (InterruptedException e) {
+            return true;
+        }
+    }
+
+    // commits the running transaction unless the given one is committed already or gets committed
+    // by another thread meanwhile, which is how concurrent operations share a single force
+    private void commit(long sequence) throws JFSException {
+        assert myHandles.get() == null;
+        boolean interrupted = false;
+        Transaction transaction;
+
+        synchronized (myLock) {
+            while (myCommitting && myCommitted < sequence && myFailure == null) {
+                interrupted |= await();
+            }
+
+            if (myFailure != null || myCommitted >= sequence) {
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+                if (myFailure != null) {
+                    throw myFailure;
+                }
+                return;
+            }
+
+            myCommitting = true;
+            myLockedDown = true;
+            transaction = myRunning;
+            while (transaction.handles > 0) {
+                interrupted |= await();
+            }
+
+            // empty transaction keeps running, as every sequence number has to get a record for
+            // replay to go past it
+            if (transaction.units.isEmpty()) {
+                myCommitting = false;
+                myLockedDown = false;
+                myLock.notifyAll();
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+                return;
+            }
+        }
+
+        ArrayList<Unit> units = new ArrayList<Unit>(transaction.units);
+        units.sort(Comparator.comparingLong(unit -> unit.position));
+        byte[][] images = new byte[units.size()][];
+        for (int i = 0; i < images.length; ++i) {
+            synchronized (units.get(i)) {
+                images[i] = units.get(i).image.clone();
+            }
+        }
+
+        synchronized (myLock) {
+            myRunning = new Transaction(transaction.sequence + 1);
+            myLockedDown = false;
+            myLock.notifyAll();
+        }
+
+        JFSException failure = null;
+        try {
+            // first block of the journal is not for records
+            if (descriptorBlocks(units.size()) + units.size() > myBlocks - 1) {
+                storeOversized(transaction.sequence, units, images);
+            } else {
+                writeRecord(transaction.sequence, units, images);
+                checkpoint(transaction.sequence, units, images);
+            }
+
+            ArrayList<Runnable> actions;
+            synchronized (myLock) {
+                actions = transaction.actions;
+            }
+            for (Runnable action : actions) {
+                action.run();
+            }
+        } catch (JFSException e) {
+            failure = e;
+            throw e;
+        } finally {
+            synchronized (myLock) {
+                myCommitting = false;
+                if (failure == null) {
+                    myCommitted = transaction.sequence;
+                    ++myCommits;
+                } else {
+                    myFailure = failure;
+                }
+                myLock.notifyAll();
+            }
+
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static int descriptorBlocks(int count) {
+        return (DESCRIPTOR_HEADER_SIZE + 8 * count + Parameters.DATA_BLOCK_SIZE - 1) / Parameters.DATA_BLOCK_SIZE;
+    }
+
+    private int checksum(ByteBuffer record) {
+        CRC32 crc = new CRC32();
+        crc.update(FileAccessorBase.newBuffer(4).putInt(0, myId).array());
+        crc.update(record.array(), 0, record.capacity());
+        return (int) crc.getValue();
+    }
+
+    private void writeRecord(long sequence, ArrayList<Unit> units, byte[][] images) throws JFSException {
+        final int descriptorBlocks = descriptorBlocks(units.size());
+        final int blocks = descriptorBlocks + units.size();
+
+        if (myHead + blocks > myBlocks) {
+            restart(sequence);
+        }
+
+        ByteBuffer record = FileAccessorBase.newBuffer(blocks * Parameters.DATA_BLOCK_SIZE);
+        record.putInt(0, MAGIC);
+        record.putLong(SEQUENCE_OFFSET, sequence);
+        record.putInt(COUNT_OFFSET, units.size());
+        for (int i = 0; i < units.size(); ++i) {
+            record.putLong(DESCRIPTOR_HEADER_SIZE + 8 * i, units.get(i).position);
+            System.arraycopy(images[i], 0, record.array(), (descriptorBlocks + i) * Parameters.DATA_BLOCK_SIZE,
+                    images[i].length);
+        }
+        record.putInt(CHECKSUM_OFFSET, checksum(record));
+
+        writeJournal(record, myHead);
+        myAccessor.force();
+
+        for (Unit unit : units) {
+            myJournaled.add(unit.position);
+        }
+        myHead += blocks;
+    }
+
+    // stores committed images in place, units not modified since are dropped from memory
+    private void checkpoint(long sequence, ArrayList<Unit> units, byte[][] images) throws JFSException {
+        for (int i = 0; i < images.length; ++i) {
+            Unit unit = units.get(i);
+            synchronized (unit) {
+                myAccessor.writeStored(ByteBuffer.wrap(images[i]), unit.position);
+                if (unit.sequence == sequence) {
+                    unit.detached = true;
+                    myUnits.remove(unit.position, unit);
+                }
+            }
+        }
+    }
+
+    private void storeOversized(long sequence, ArrayList<Unit> units, byte[][] images) throws JFSException {
+        restart(sequence + 1);
+        checkpoint(sequence, units, images);
+        myAccessor.force();
+    }
+
+    // drops all records, which are durable in place after the first force, so that the next record
+    // goes right after the first block and is the only one replayed
+    private void restart(long sequence) throws JFSException {
+        myAccessor.force();
+        writeJournal(superblock(sequence), 0);
+        myAccessor.force();
+        myJournaled.clear();
+        myHead = 1;
+    }
+
+    private void writeJournal(ByteBuffer buffer, int block) throws JFSBadFileException {
+        try {
+            myAccessor.write(buffer, myOffset + block * (long) Parameters.DATA_BLOCK_SIZE);
+        } catch (IOException e) {
+            throw new JFSBadFileException("could not write journal: " + e.getMessage());
+        }
+    }
+
+    private void readJournal(ByteBuffer buffer, int block) throws JFSBadFileException {
+        try {
+            myAccessor.read(buffer, myOffset + block * (long) Parameters.DATA_BLOCK_SIZE);
+        } catch (IOException e) {
+            throw new JFSBadFileException("could not read journal: " + e.getMessage());
+        }
+    }
+
+    // record starting at the given block if it is complete, null otherwise
+    @Nullable
+    private ByteBuffer readRecord(int block) throws JFSBadFileException {
+        ByteBuffer descriptor = FileAccessorBase.newBuffer(Parameters.DATA_BLOCK_SIZE);
+        readJournal(descriptor, block);
+
+        final int count = descriptor.getInt(COUNT_OFFSET);
+        if (descriptor.getInt(0) != MAGIC || count <= 0 || count > myBlocks
+                || block + descriptorBlocks(count) + count > myBlocks) {
+            return null;
+        }
+
+        ByteBuffer record = FileAccessorBase.newBuffer((descriptorBlocks(count) + count) * Parameters.DATA_BLOCK_SIZE);
+        readJournal(record, block);
+
+        final int checksum = record.getInt(CHECKSUM_OFFSET);
+        record.putInt(CHECKSUM_OFFSET, 0);
+        return checksum(record) == checksum ? record : null;
+    }
+
+    // applies records of consecutive transactions following the first block, returns sequence number
+    // of the next transaction
+    private long replay() throws JFSBadFileException {
+        ByteBuffer first = FileAccessorBase.newBuffer(Parameters.DATA_BLOCK_SIZE);
+        readJournal(first, 0);
+        if (first.getInt(0) != SUPERBLOCK_MAGIC) {
+            throw new JFSBadFileException("journal is corrupted");
+        }
+
+        long sequence = first.getLong(SEQUENCE_OFFSET);
+        int block = 1;
+        int replayed = 0;
+
+        for (ByteBuffer record = readRecord(block); record != null; record = readRecord(block)) {
+            final long recordSequence = record.getLong(SEQUENCE_OFFSET);
+            if (recordSequence != sequence) {
+                break;
+            }
+
+            final int count = record.getInt(COUNT_OFFSET);
+            final int descriptorBlocks = descriptorBlocks(count);
+            for (int i = 0; i < count; ++i) {
+                long position = record.getLong(DESCRIPTOR_HEADER_SIZE + 8 * i);
+                if (position < 0 || position >= myDataOffset + myAccessor.myTotalBlocks * (long) UNIT_SIZE
+                        || unitStart(position) != position) {
+                    throw new JFSBadFileException("journal record refers to invalid position");
+                }
+
+                try {
+                    myAccessor.write(ByteBuffer.wrap(record.array(), (descriptorBlocks + i) * Parameters.DATA_BLOCK_SIZE,
+                            (int) (unitEnd(position) - position)), position);
+                } catch (IOException e) {
+                    throw new JFSBadFileException("could not replay journal: " + e.getMessage());
+                }
+            }
+
+            sequence = recordSequence + 1;
+            block += descriptorBlocks + count;
+            ++replayed;
+        }
+
+        // block cache is empty yet, forcing the file is enough
+        if (replayed > 0) {
+            myAccessor.forceFile();
+            writeJournal(superblock(sequence), 0);
+            myAccessor.forceFile();
+        }
+
+        return sequence;
+    }
+}
@@ -0,0 +1,368 @@
+package org.kshmakov.jfs.io;
+
+import org.junit.After;
+import org.junit.Test;
+import org.kshmakov.jfs.TestCommon;
+import org.kshmakov.jfs.driver.DataFrame;
+import org.kshmakov.jfs.driver.DirectoryDescriptor;
+import org.kshmakov.jfs.driver.FileDescriptor;
+import org.kshmakov.jfs.driver.FileSystemDriver;
+import org.kshmakov.jfs.driver.MountOptions;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class JournalTest {
+    // position and size of the journal region of the image
+    private static int[] journalRegion(byte[] image) {
+        ByteBuffer header = FileAccessorBase.newBuffer(image);
+        long dataOffset = dataOffset(image);
+        int firstBlockId = header.getInt(HeaderOffsets.JOURNAL_FIRST_BLOCK_ID);
+        int blocks = header.getInt(HeaderOffsets.JOURNAL_BLOCKS);
+        return new int[]{(int) (dataOffset + (firstBlockId - 1) * (long) Parameters.DATA_BLOCK_SIZE),
+                blocks * Parameters.DATA_BLOCK_SIZE};
+    }
+
+    private static long dataOffset(byte[] image) {
+        int totalInodes = FileAccessorBase.newBuffer(image).getInt(HeaderOffsets.TOTAL_INODES);
+        return Parameters.EXTENDED_HEADER_SIZE + totalInodes * (long) Parameters.INODE_SIZE;
+    }
+
+    // image as if nothing but the journal reached the disk after it was formatted
+    private static byte[] crashedImage(byte[] formatted, byte[] journal) {
+        byte[] result = formatted.clone();
+        int[] region = journalRegion(formatted);
+        System.arraycopy(journal, region[0], result, region[0], region[1]);
+        return result;
+    }
+
+    @Test
+    public void test00() throws Exception {
+        /**
+         * Checks format reserves journal blocks right after allocator bitmap and the root directory follows them.
+         */
+        FileAccessor accessor = TestCommon.createAccessor(4 << 20, (short) (Features.JOURNAL | Features.BITMAP_ALLOCATOR));
+        final int totalBlocks = accessor.getTotalBlocks();
+        final int bitmapBlocks = BlocksBitmap.bitmapBlocks(totalBlocks);
+        final int journalBlocks = Journal.blocksFor(totalBlocks);
+
+        assertNotNull(accessor.getJournal());
+        assertEquals(bitmapBlocks + 1, accessor.readHeaderInt(HeaderOffsets.JOURNAL_FIRST_BLOCK_ID));
+        assertEquals(journalBlocks, accessor.readHeaderInt(HeaderOffsets.JOURNAL_BLOCKS));
+        assertEquals(totalBlocks - bitmapBlocks - journalBlocks - 1,
+                accessor.readHeaderInt(HeaderOffsets.TOTAL_UNALLOCATED_BLOCKS));
+        assertEquals(bitmapBlocks + journalBlocks + 1,
+                accessor.readInodeInt(Parameters.ROOT_INODE_ID, InodeOffsets.DIRECT_POINTERS[0]));
+    }
+
+    @Test
+    public void test01() throws Exception {
+        /**
+         * Checks committed operations are replayed when nothing written in place survived,
+         * and that replay restores header and inode table exactly.
+         */
+        TestCommon.createFile(4 << 20);
+        TestCommon.formatFile(Features.JOURNAL);
+        byte[] formatted = TestCommon.readImage();
+
+        FileSystemDriver driver = TestCommon.openDriver(new MountOptions());
+        DirectoryDescriptor dir = driver.tryAddDirectory(driver.rootInode(), "dir");
+        // commit with nothing to write in between must not break the chain of records
+        driver.flush();
+        FileDescriptor file = driver.tryAddFile(dir, "file");
+        driver.tryWriteIntoFile(file, new DataFrame(new byte[10000]), 0);
+        driver.tryAddFile(driver.rootInode(), "other");
+        driver.tryRemoveFile(driver.rootInode(), "other");
+        byte[] written = TestCommon.readImage();
+
+        TestCommon.writeImage(crashedImage(formatted, written));
+        driver = TestCommon.openDriver(new MountOptions());
+        final int dataOffset = (int) dataOffset(written);
+        assertArrayEquals(Arrays.copyOf(written, dataOffset), Arrays.copyOf(TestCommon.readImage(), dataOffset));
+
+        dir = driver.getDirectory(driver.rootInode(), "dir");
+        assertNotNull(dir);
+        assertEquals(10000, driver.getFileSize(driver.getFile(dir, "file")));
+        assertNull(driver.getFile(driver.rootInode(), "other"));
+        driver.close();
+
+        driver = TestCommon.openDriver(new MountOptions());
+        assertEquals(10000, driver.getFileSize(driver.resolveFile("/dir/file")));
+    }
+
+    @Test
+    public void test02() throws Exception {
+        /**
+         * Checks torn record of the last transaction is discarded as a whole while earlier ones are replayed.
+         */
+        TestCommon.createFile(4 << 20);
+        TestCommon.formatFile((short) (Features.JOURNAL | Features.HASHED_DIRECTORIES));
+        byte[] formatted = TestCommon.readImage();
+
+        FileSystemDriver driver = TestCommon.openDriver(new MountOptions());
+        driver.tryAddFile(driver.rootInode(), "first");
+        driver.tryAddFile(driver.rootInode(), "second");
+        byte[] before = TestCommon.readImage();
+        driver.tryRemoveFile(driver.rootInode(), "first");
+        byte[] crashed = crashedImage(formatted, TestCommon.readImage());
+
+        // the last byte of the last record did not make it
+        int[] region = journalRegion(formatted);
+        int last = region[0] + region[1] - 1;
+        while (crashed[last] == before[last]) {
+            --last;
+        }
+        crashed[last] = before[last];
+
+        TestCommon.writeImage(crashed);
+        driver = TestCommon.openDriver(new MountOptions());
+        assertNotNull(driver.getFile(driver.rootInode(), "first"));
+        assertNotNull(driver.getFile(driver.rootInode(), "second"));
+        assertEquals(2, driver.getFiles(driver.rootInode()).size());
+    }
+
+    @Test
+    public void test03() throws Exception {
+        /**
+         * Checks asynchronous commit groups many operations into a single record,
+         * and concurrent synchronous operations all survive remount.
+         */
+        TestCommon.createFile(64 << 20);
+        TestCommon.formatFile((short) (Features.JOURNAL | Features.LAZY_FORMAT));
+
+        MountOptions options = new MountOptions();
+        options.synchronousCommit = false;
+        FileSystemDriver driver = TestCommon.openDriver(options);
+        for (int i = 0; i < 100; ++i) {
+            driver.tryAddFile(driver.rootInode(), "file" + i);
+        }
+        Journal journal = driver.getJournal();
+        assertEquals(0, journal.commits());
+        driver.flush();
+        assertEquals(1, journal.commits());
+        driver.close();
+
+        driver = TestCommon.openDriver(new MountOptions());
+        assertEquals(100, driver.getFiles(driver.rootInode()).size());
+
+        final FileSystemDriver shared = driver;
+        final int threads = 4;
+        final int filesPerThread = 50;
+        AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; ++t) {
+            final String prefix = "thread" + t + "_";
+            workers[t] = new Thread(() -> {
+                try {
+                    DirectoryDescriptor dir = shared.tryAddDirectory(shared.rootInode(), prefix);
+                    for (int i = 0; i < filesPerThread; ++i) {
+                        FileDescriptor file = shared.tryAddFile(dir, prefix + i);
+                        shared.tryAppendToFile(file, new DataFrame(new byte[i]));
+                    }
+                } catch (Throwable e) {
+                    failure.set(e);
+                }
+            });
+            workers[t].start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        assertNull(failure.get());
+        assertTrue(driver.getJournal().commits() <= threads * (2 * filesPerThread + 1));
+        driver.close();
+
+        driver = TestCommon.openDriver(new MountOptions());
+        for (int t = 0; t < threads; ++t) {
+            DirectoryDescriptor dir = driver.getDirectory(driver.rootInode(), "thread" + t + "_");
+            assertEquals(filesPerThread, driver.getFiles(dir).size());
+            assertEquals(filesPerThread - 1, driver.getFileSize(driver.getFile(dir, "thread" + t + "_" + (filesPerThread - 1))));
+        }
+    }
+
+    private static void checkRestarts(MountOptions options) throws Exception {
+        TestCommon.createFile(4 << 20);
+        TestCommon.formatFile(Features.JOURNAL);
+        FileSystemDriver driver = TestCommon.openDriver(options);
+        final int unallocatedBlocks = TestCommon.openAccessor().readHeaderInt(HeaderOffsets.TOTAL_UNALLOCATED_BLOCKS);
+
+        for (int i = 0; i < 200; ++i) {
+            FileDescriptor file = driver.tryAddFile(driver.rootInode(), "file" + i);
+            driver.tryAppendToFile(file, new DataFrame(new byte[]{(byte) i}));
+        }
+
+        // freeing blocks of the big file links each of them into the list of unallocated ones
+        FileDescriptor big = driver.tryAddFile(driver.rootInode(), "big");
+        driver.tryWriteIntoFile(big, new DataFrame(new byte[1 << 20]), 0);
+        driver.tryRemoveFile(driver.rootInode(), "big");
+
+        for (int i = 0; i < 200; i += 2) {
+            driver.tryRemoveFile(driver.rootInode(), "file" + i);
+        }
+        driver.close();
+
+        driver = TestCommon.openDriver(options);
+        assertEquals(100, driver.getFiles(driver.rootInode()).size());
+        for (int i = 1; i < 200; i += 2) {
+            FileDescriptor file = driver.getFile(driver.rootInode(), "file" + i);
+            assertArrayEquals(new byte[]{(byte) i}, driver.tryReadFromFile(file, 0, 1));
+        }
+
+        for (int i = 1; i < 200; i += 2) {
+            driver.tryRemoveFile(driver.rootInode(), "file" + i);
+        }
+        driver.close();
+
+        assertEquals(unallocatedBlocks, TestCommon.openAccessor().readHeaderInt(HeaderOffsets.TOTAL_UNALLOCATED_BLOCKS));
+    }
+
+    @Test
+    public void test04() throws Exception {
+        /**
+         * Checks journal keeps working after it is started over many times and after a transaction
+         * too big for it, with plain channel as well as memory mapping and block cache,
+         * and that freed blocks are accounted exactly.
+         */
+        checkRestarts(new MountOptions());
+
+        MountOptions options = new MountOptions();
+        options.memoryMapped = true;
+        options.cacheSize = 16 * Parameters.DATA_BLOCK_SIZE;
+        checkRestarts(options);
+    }
+
+    @Test
+    public void test05() throws Exception {
+        /**
+         * Checks blocks freed by a commit, whose links are checkpointed into the block cache only,
+         * are popped correctly before the next commit forces the cache.
+         */
+        TestCommon.createFile(4 << 20);
+        TestCommon.formatFile(Features.JOURNAL);
+
+        MountOptions options = new MountOptions();
+        options.cacheSize = 64 * Parameters.DATA_BLOCK_SIZE;
+        FileSystemDriver driver = TestCommon.openDriver(options);
+        final int unallocatedBlocks = TestCommon.openAccessor().readHeaderInt(HeaderOffsets.TOTAL_UNALLOCATED_BLOCKS);
+
+        byte[] bytes = new byte[3 * Parameters.DATA_BLOCK_SIZE];
+        Arrays.fill(bytes, (byte) 0x7F);
+        FileDescriptor removed = driver.tryAddFile(driver.rootInode(), "removed");
+        driver.tryWriteIntoFile(removed, new DataFrame(bytes), 0);
+        FileDescriptor grown = driver.tryAddFile(driver.rootInode(), "grown");
+        driver.flush();
+        driver.tryRemoveFile(driver.rootInode(), "removed");
+
+        bytes = new byte[5 * Parameters.DATA_BLOCK_SIZE];
+        Arrays.fill(bytes, (byte) 7);
+        driver.tryAppendToFile(grown, new DataFrame(bytes));
+        assertArrayEquals(bytes, driver.tryReadFromFile(grown, 0, bytes.length));
+        driver.close();
+
+        driver = TestCommon.openDriver(options);
+        grown = driver.getFile(driver.rootInode(), "grown");
+        assertArrayEquals(bytes, driver.tryReadFromFile(grown, 0, bytes.length));
+        driver.tryRemoveFile(driver.rootInode(), "grown");
+        driver.close();
+
+        assertEquals(unallocatedBlocks, TestCommon.openAccessor().readHeaderInt(HeaderOffsets.TOTAL_UNALLOCATED_BLOCKS));
+    }
+
+    @Test
+    public void test06() throws Exception {
+        /**
+         * Checks removed directory is recorded along with its detaching, and reclaiming of its subtree
+         * lost in a crash is finished on the next mount.
+         */
+        TestCommon.createFile(64 << 20);
+        TestCommon.formatFile(Features.JOURNAL);
+        FileAccessor accessor = TestCommon.openAccessor();
+        final int unallocatedInodes = accessor.readHeaderInt(HeaderOffsets.TOTAL_UNALLOCATED_INODES);
+        final int unallocatedBlocks = accessor.readHeaderInt(HeaderOffsets.TOTAL_UNALLOCATED_BLOCKS);
+
+        FileSystemDriver driver = TestCommon.openDriver(new MountOptions());
+        DirectoryDescriptor removed = driver.tryAddDirectory(driver.rootInode(), "removed");
+        for (int i = 0; i < 3; ++i) {
+            DirectoryDescriptor dir = driver.tryAddDirectory(removed, "dir" + i);
+            for (int j = 0; j < 4; ++j) {
+                driver.tryAppendToFile(driver.tryAddFile(dir, "file" + j), new DataFrame(new byte[j * 3000]));
+            }
+        }
+        driver.flush();
+        byte[] before = TestCommon.readImage();
+
+        // only detaching is committed synchronously, reclaiming stays in the running transaction
+        driver.tryRemoveDirectory(driver.rootInode(), "removed");
+        TestCommon.writeImage(crashedImage(before, TestCommon.readImage()));
+
+        accessor = TestCommon.openAccessor();
+        final int orphansBlockId = accessor.readHeaderInt(HeaderOffsets.ORPHANS_BLOCK_ID);
+        assertNotEquals(0, orphansBlockId);
+        ByteBuffer orphans = FileAccessorBase.newBuffer(accessor.readBlock(orphansBlockId));
+        assertEquals(1, orphans.getInt(0));
+        assertTrue(orphans.getInt(4) > Parameters.ROOT_INODE_ID);
+
+        driver = TestCommon.openDriver(new MountOptions());
+        assertNull(driver.getDirectory(driver.rootInode(), "removed"));
+        driver.close();
+
+        accessor = TestCommon.openAccessor();
+        assertEquals(0, accessor.readHeaderInt(HeaderOffsets.ORPHANS_BLOCK_ID));
+        assertEquals(unallocatedInodes, accessor.readHeaderInt(HeaderOffsets.TOTAL_UNALLOCATED_INODES));
+        assertEquals(unallocatedBlocks, accessor.readHeaderInt(HeaderOffsets.TOTAL_UNALLOCATED_BLOCKS));
+    }
+
+    @Test
+    public void test07() throws Exception {
+        /**
+         * Checks blocks freed by a transaction not committed yet are not written in place by another file,
+         * and are reused once the transaction is committed.
+         */
+        TestCommon.createFile(4 << 20);
+        TestCommon.formatFile((short) (Features.JOURNAL | Features.BITMAP_ALLOCATOR));
+        final int unallocatedBlocks = TestCommon.openAccessor().readHeaderInt(HeaderOffsets.TOTAL_UNALLOCATED_BLOCKS);
+
+        MountOptions options = new MountOptions();
+        options.synchronousCommit = false;
+        FileSystemDriver driver = TestCommon.openDriver(options);
+        byte[] addedBytes = new byte[Parameters.DATA_BLOCK_SIZE];
+        Arrays.fill(addedBytes, (byte) 0x11);
+        FileDescriptor added = driver.tryAddFile(driver.rootInode(), "added");
+        driver.tryWriteIntoFile(added, new DataFrame(addedBytes), 0);
+        byte[] removedBytes = new byte[3 * Parameters.DATA_BLOCK_SIZE];
+        Arrays.fill(removedBytes, (byte) 0x7F);
+        driver.tryWriteIntoFile(driver.tryAddFile(driver.rootInode(), "removed"), new DataFrame(removedBytes), 0);
+        driver.flush();
+
+        // blocks of the removed file follow the last block of the added one, nothing but data
+        // written in place reaches the disk before the commit
+        driver.tryRemoveFile(driver.rootInode(), "removed");
+        driver.tryAppendToFile(added, new DataFrame(addedBytes));
+        byte[] crashed = TestCommon.readImage();
+        driver.flush();
+
+        driver.tryAppendToFile(added, new DataFrame(removedBytes));
+        driver.close();
+
+        assertEquals(unallocatedBlocks - 5, TestCommon.openAccessor().readHeaderInt(HeaderOffsets.TOTAL_UNALLOCATED_BLOCKS));
+        driver = TestCommon.openDriver(new MountOptions());
+        added = driver.getFile(driver.rootInode(), "added");
+        assertEquals(2 * addedBytes.length + removedBytes.length, driver.getFileSize(added));
+        assertArrayEquals(removedBytes, driver.tryReadFromFile(added, 2 * addedBytes.length, removedBytes.length));
+        driver.close();
+
+        TestCommon.writeImage(crashed);
+        driver = TestCommon.openDriver(new MountOptions());
+        assertEquals(addedBytes.length, driver.getFileSize(driver.getFile(driver.rootInode(), "added")));
+        FileDescriptor removed = driver.getFile(driver.rootInode(), "removed");
+        assertArrayEquals(removedBytes, driver.tryReadFromFile(removed, 0, removedBytes.length));
+    }
+
+    @After
+    public void cleanUp() {
+        TestCommon.cleanUp();
+    }
+}
@@ -0,0 +1,117 @@
+package org.kshmakov.jfs.io;
+
+import com.sun.istack.internal.Nullable;
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+import org.kshmakov.jfs.driver.JFSException;
+
+import java.util.ArrayList;
+
+/**
+ * Small per-thread stocks of ids reserved from a shared allocator.
+ *
+ * Threads are spread over a fixed number of slots, each slot holds up to {@code capacity} ids,
+ * which are reserved from the source in bulk and handed out in the order they came. Reserved ids
+ * look allocated in the header counters until they are given back with {@link #drain()}.
+ */
+@ThreadSafe
+public class Magazines {
+    public interface Source {
+        ArrayList<Integer> reserve(int amount) throws JFSException;
+
+        void giveBack(ArrayList<Integer> ids) throws JFSException;
+    }
+
+    private static final class Magazine {
+        @GuardedBy("this")
+        final int[] ids;
+        @GuardedBy("this")
+        int head = 0;
+        @GuardedBy("this")
+        int size = 0;
+
+        Magazine(int capacity) {
+            ids = new int[capacity];
+        }
+    }
+
+    private final Source mySource;
+    private final Magazine[] mySlots;
+    public final int capacity;
+
+    public Magazines(Source source, int slots, int capacity) {
+        assert slots > 0 && capacity > 0;
+        mySource = source;
+        this.capacity = capacity;
+        mySlots = new Magazine[slots];
+        for (int i = 0; i < slots; ++i) {
+            mySlots[i] = new Magazine(capacity);
+        }
+    }
+
+    /**
+     * Takes {@code amount} ids from the magazine of the calling thread, refilling it if needed.
+     * Returns null if the source has not enough ids, or if {@code expectedFirst} is not zero
+     * and the first id at hand differs from it.
+     */
+    @Nullable
+    public ArrayList<Integer> take(int amount, int expectedFirst) throws JFSException {
+        assert amount <= capacity;
+        Magazine magazine = mySlots[(int) (Thread.currentThread().getId() % mySlots.length)];
+
+        synchronized (magazine) {
+            if (magazine.size < amount) {
+                if (expectedFirst != 0) {
+                    return null;
+                }
+
+                ArrayList<Integer> ids;
+                try {
+                    ids = mySource.reserve(capacity - magazine.size);
+                } catch (JFSException e) {
+                    return null;
+                }
+
+                // remaining ids are moved to the front, so that new ones are appended after them
+                System.arraycopy(magazine.ids, magazine.head, magazine.ids, 0, magazine.size);
+                magazine.head = 0;
+                for (int id : ids) {
+                    magazine.ids[magazine.size++] = id;
+                }
+            }
+
+            if (expectedFirst != 0 && magazine.ids[magazine.head] != expectedFirst) {
+                return null;
+            }
+
+            ArrayList<Integer> result = new ArrayList<Integer>(amount);
+            for (int i = 0; i < amount; ++i) {
+                result.add(magazine.ids[magazine.head++]);
+            }
+            magazine.size -= amount;
+            return result;
+        }
+    }
+
+    /**
+     * Gives all the reserved ids back to the source.
+     */
+    public void drain() throws JFSException {
+        for (Magazine magazine : mySlots) {
+            synchronized (magazine) {
+                if (magazine.size == 0) {
+                    continue;
+                }
+
+                ArrayList<Integer> ids = new ArrayList<Integer>(magazine.size);
+                for (int i = 0; i < magazine.size; ++i) {
+                    ids.add(magazine.ids[magazine.head + i]);
+                }
+
+                mySource.giveBack(ids);
+                magazine.head = 0;
+                magazine.size = 0;
+            }
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package org.kshmakov.jfs.io;
+
+import org.junit.After;
+import org.junit.Test;
+import org.kshmakov.jfs.TestCommon;
+import org.kshmakov.jfs.driver.JFSException;
+import org.kshmakov.jfs.io.primitives.InodeBase;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class MagazinesTest {
+    private static ArrayList<Integer> ids(Integer... ids) {
+        return new ArrayList<Integer>(Arrays.asList(ids));
+    }
+
+    @Test
+    public void test00() throws IOException, JFSException {
+        /**
+         * Checks blocks are reserved in bulk, continue runs of neighbours and are given back by drain.
+         */
+        FileAccessor accessor = TestCommon.createAccessor(200000, Features.BITMAP_ALLOCATOR);
+        BlocksAllocator allocator = new BlockMagazines(new BlocksBitmap(accessor), true, 4, 8);
+
+        assertEquals(ids(3), allocator.pop(1));
+        assertEquals(38, accessor.readHeaderInt(HeaderOffsets.TOTAL_UNALLOCATED_BLOCKS));
+        assertEquals(ids(4, 5), allocator.pop(2, 3));
+
+        // magazine cannot continue run after other block, so that the bitmap serves it
+        assertEquals(ids(12), allocator.pop(1, 11));
+        assertEquals(37, accessor.readHeaderInt(HeaderOffsets.TOTAL_UNALLOCATED_BLOCKS));
+
+        allocator.push(ids(3, 4, 5, 12));
+        allocator.drain();
+        assertEquals(46, accessor.readHeaderInt(HeaderOffsets.TOTAL_UNALLOCATED_BLOCKS));
+    }
+
+    @Test
+    public void test01() throws Exception {
+        /**
+         * Checks inodes stuck in magazine of other thread are given back once the list runs out.
+         */
+        FileAccessor accessor = TestCommon.createAccessor(200000);
+        InodesStack stack = new InodesStack(accessor, new InodeCache(accessor, 16), 2, 16);
+        final int unallocated = accessor.readHeaderInt(HeaderOffsets.TOTAL_UNALLOCATED_INODES);
+
+        AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Thread other = new Thread(() -> {
+            try {
+                stack.pop(new InodeBase(0));
+            } catch (Throwable e) {
+                failure.set(e);
+            }
+        });
+
+        // slots of this and the other thread differ as the number of slots is two
+        while ((other.getId() - Thread.currentThread().getId()) % 2 == 0) {
+            other = new Thread(other);
+        }
+        other.start();
+        other.join();
+        assertNull(failure.get());
+        assertEquals(unallocated - 16, accessor.readHeaderInt(HeaderOffsets.TOTAL_UNALLOCATED_INODES));
+
+        ArrayList<InodeBase> inodes = new ArrayList<InodeBase>();
+        for (int i = 0; i < unallocated - 1; ++i) {
+            inodes.add(new InodeBase(0));
+        }
+        assertEquals(unallocated - 1, stack.pop(inodes).size());
+        assertEquals(0, accessor.readHeaderInt(HeaderOffsets.TOTAL_UNALLOCATED_INODES));
+    }
+
+    @After
+    public void cleanUp() {
+        TestCommon.cleanUp();
+    }
+}
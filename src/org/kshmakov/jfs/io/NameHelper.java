@@ -10,6 +10,11 @@ public interface NameHelper {
     short MAX_NAME_SIZE = 255;
 
     static void inspect(String name) throws JFSException {
+        toBytes(name);
+    }
+
+    // encoded name, which is checked to be a valid entry name
+    static byte[] toBytes(String name) throws JFSException {
         if (name.isEmpty()) {
             throw new JFSException("entry name must not be empty");
         }
@@ -18,18 +23,16 @@ public interface NameHelper {
             throw new JFSException("entry name must not contain separator character");
         }
 
-        try {
-            if (name.getBytes(CHARSET).length > MAX_NAME_SIZE) {
-                throw new JFSException("entry name length limit exceeded");
-            }
-        } catch (UnsupportedEncodingException e) {
-            throw new JFSException("jfs requires " + CHARSET + " support to be turned on");
+        byte[] bytes = encode(name);
+        if (bytes.length > MAX_NAME_SIZE) {
+            throw new JFSException("entry name length limit exceeded");
         }
-    }
 
-    static byte[] toBytes(String name) throws JFSException {
-        inspect(name);
+        return bytes;
+    }
 
+    // encoded name without any checks, suitable for lookups only
+    static byte[] encode(String name) throws JFSException {
         try {
             return name.getBytes(NameHelper.CHARSET);
         } catch (UnsupportedEncodingException e) {
@@ -37,6 +40,17 @@ public interface NameHelper {
         }
     }
 
+    // FNV-1a of the encoded name, kept non-negative; it is stored on disk by hashed directories and must not change
+    static int hash(byte[] bytes) {
+        int result = 0x811C9DC5;
+        for (byte b : bytes) {
+            result ^= b & 0xFF;
+            result *= 0x01000193;
+        }
+
+        return result & 0x7FFFFFFF;
+    }
+
     static String fromBytes(byte[] bytes) throws JFSException {
         try {
             return new String(bytes, NameHelper.CHARSET);
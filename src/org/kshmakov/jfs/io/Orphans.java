@@ -0,0 +1,114 @@
+package org.kshmakov.jfs.io;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+import org.kshmakov.jfs.driver.JFSException;
+import org.kshmakov.jfs.driver.tools.DriverHelper;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/**
+ * Keeps ids of removed directories whose subtrees are not reclaimed yet, so that reclaiming is
+ * finished on the next mount after a crash.
+ *
+ * Ids are stored in a single data block, which is allocated with the first orphan and released
+ * with the last one; the block starts with the number of ids followed by the ids themselves.
+ * Only volumes with extended header have room for the block id, others keep nothing.
+ */
+@ThreadSafe
+public class Orphans {
+    public static final int CAPACITY = Parameters.DATA_BLOCK_SIZE / 4 - 1;
+
+    private final FileAccessor myAccessor;
+    private final BlocksAllocator myAllocator;
+    private final boolean myPersistent;
+
+    private final Object myLock = new Object();
+    @GuardedBy("myLock")
+    private int myBlockId;
+    @GuardedBy("myLock")
+    private final ArrayList<Integer> myIds = new ArrayList<Integer>();
+
+    public Orphans(FileAccessor accessor, BlocksAllocator allocator) throws JFSException {
+        myAccessor = accessor;
+        myAllocator = allocator;
+        myPersistent = Features.has(accessor.features, Features.EXTENDED_HEADER);
+        myBlockId = myPersistent ? accessor.readHeaderInt(HeaderOffsets.ORPHANS_BLOCK_ID) : 0;
+
+        if (myBlockId != 0) {
+            ByteBuffer block = FileAccessor.newBuffer(accessor.readBlock(myBlockId));
+            final int count = block.getInt(0);
+            if (count < 0 || count > CAPACITY) {
+                throw new JFSBadFileException("list of removed directories is corrupted");
+            }
+
+            for (int i = 1; i <= count; ++i) {
+                myIds.add(block.getInt(4 * i));
+            }
+        }
+    }
+
+    public ArrayList<Integer> list() {
+        synchronized (myLock) {
+            return new ArrayList<Integer>(myIds);
+        }
+    }
+
+    /**
+     * Records removed directory, has to be done before it is detached from its parent.
+     */
+    public void add(int inodeId) throws JFSException {
+        if (!myPersistent) {
+            return;
+        }
+
+        synchronized (myLock) {
+            DriverHelper.refuseIf(myIds.size() == CAPACITY, "too many removed directories are not reclaimed yet");
+            if (myBlockId == 0) {
+                myBlockId = myAllocator.pop(1).get(0);
+                myAccessor.writeHeaderInt(myBlockId, HeaderOffsets.ORPHANS_BLOCK_ID);
+            }
+
+            myIds.add(inodeId);
+            persist();
+        }
+    }
+
+    /**
+     * Forgets directory once its whole subtree is reclaimed.
+     */
+    public void remove(int inodeId) throws JFSException {
+        if (!myPersistent) {
+            return;
+        }
+
+        synchronized (myLock) {
+            boolean removed = myIds.remove(Integer.valueOf(inodeId));
+            assert removed;
+
+            if (!myIds.isEmpty()) {
+                persist();
+                return;
+            }
+
+            ArrayList<Integer> block = new ArrayList<Integer>(1);
+            block.add(myBlockId);
+            myAllocator.push(block);
+            myAccessor.writeHeaderInt(0, HeaderOffsets.ORPHANS_BLOCK_ID);
+            myBlockId = 0;
+        }
+    }
+
+    @GuardedBy("myLock")
+    private void persist() throws JFSException {
+        ByteBuffer block = FileAccessor.newBuffer(Parameters.DATA_BLOCK_SIZE);
+        block.putInt(myIds.size());
+        for (int inodeId : myIds) {
+            block.putInt(inodeId);
+        }
+
+        block.clear();
+        myAccessor.writeBlock(block, myBlockId);
+    }
+}
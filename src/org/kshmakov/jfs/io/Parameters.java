@@ -2,20 +2,30 @@ package org.kshmakov.jfs.io;
 
 public interface Parameters {
     short HEADER_SIZE = 32;
+    // header of volumes with features which keep extra fields, see Features.EXTENDED_HEADER
+    short EXTENDED_HEADER_SIZE = 64;
     short DATA_BLOCK_SIZE = 0x1000;
     short INODE_SIZE = 64;
 
     long MIN_FS_SIZE = HEADER_SIZE + DATA_BLOCK_SIZE + INODE_SIZE;
     long MAX_FS_SIZE = Integer.MAX_VALUE - DATA_BLOCK_SIZE;
+    // volumes with 64-bit addressing are limited by 32-bit data block ids
+    long MAX_WIDE_FS_SIZE = (long) Integer.MAX_VALUE * DATA_BLOCK_SIZE;
 
     int MAGIC_NUMBER = 0xAABBCCDD;
 
     short FILE_SYSTEM_VERSION = 0x0000;
 
     int ROOT_INODE_ID = 1;
+    // parent inode id takes 3 bytes of inode
+    int MAX_INODES = (1 << 24) - 1;
     int DIRECT_POINTERS_NUMBER = 12;
 
-    int MAX_FILE_SIZE = DATA_BLOCK_SIZE * DIRECT_POINTERS_NUMBER; // TODO: support double and triple pointers
+    int POINTERS_PER_BLOCK = DATA_BLOCK_SIZE / 4;
+
+    // direct, singly indirect and doubly indirect pointers address more than 4 GB,
+    // signed object size field limits files to whole blocks below 2 GB
+    int MAX_FILE_SIZE = Integer.MAX_VALUE / DATA_BLOCK_SIZE * DATA_BLOCK_SIZE;
 
     enum EntryType {
         UNALLOCATED,
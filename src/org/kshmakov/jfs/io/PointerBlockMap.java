@@ -0,0 +1,228 @@
+package org.kshmakov.jfs.io;
+
+import org.kshmakov.jfs.driver.JFSException;
+import org.kshmakov.jfs.io.primitives.AllocatedInode;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Maps logical block indices of an inode to data block ids through direct,
+ * singly indirect and doubly indirect pointers.
+ *
+ * Pointer blocks are looked up through {@link PointerBlocksCache}, so sequential access
+ * decodes every pointer block once. Callers are expected to hold the lock of the inode.
+ */
+public class PointerBlockMap implements BlockMap {
+    private static final int DIRECT = Parameters.DIRECT_POINTERS_NUMBER;
+    private static final int PER_BLOCK = Parameters.POINTERS_PER_BLOCK;
+    private static final int SINGLY_END = DIRECT + PER_BLOCK;
+
+    private final PointerBlocksCache myPointers;
+    private final BlocksAllocator myAllocator;
+
+    public PointerBlockMap(PointerBlocksCache pointers, BlocksAllocator allocator) {
+        myPointers = pointers;
+        myAllocator = allocator;
+    }
+
+    // number of pointer blocks needed to address given number of data blocks
+    public static int pointerBlocksFor(int blocks) {
+        assert blocks >= 0;
+        if (blocks <= DIRECT) {
+            return 0;
+        } else if (blocks <= SINGLY_END) {
+            return 1;
+        }
+
+        return 2 + (blocks - SINGLY_END + PER_BLOCK - 1) / PER_BLOCK;
+    }
+
+    @Override
+    public int[] blockIds(AllocatedInode inode, int from, int count) throws JFSException {
+        int[] result = new int[count];
+        int[] pointers = null;
+        int pointersIndex = -1;
+
+        for (int i = 0; i < count; ++i) {
+            int index = from + i;
+            if (index < DIRECT) {
+                result[i] = inode.directPointers[index];
+                continue;
+            }
+
+            // one lookup per pointer block, not per data block
+            int blockIndex = pointerBlockIndex(index);
+            if (blockIndex != pointersIndex) {
+                pointers = myPointers.get(pointerBlockId(inode, blockIndex));
+                pointersIndex = blockIndex;
+            }
+
+            result[i] = pointers[pointerSlot(index)];
+        }
+
+        return result;
+    }
+
+    // number of blocks to allocate for growing a file from blocksHave by blocksAdd data blocks
+    public static int blocksToGrow(int blocksHave, int blocksAdd) {
+        return blocksAdd + pointerBlocksFor(blocksHave + blocksAdd) - pointerBlocksFor(blocksHave);
+    }
+
+    @Override
+    public void grow(AllocatedInode inode, int blocksHave, int blocksAdd) throws JFSException {
+        final int lastBlockId = blocksHave > 0 ? blockIds(inode, blocksHave - 1, 1)[0] : 0;
+        append(inode, blocksHave, blocksAdd, myAllocator.pop(blocksToGrow(blocksHave, blocksAdd), lastBlockId));
+    }
+
+    /**
+     * Attaches {@code blocksAdd} data blocks after the first {@code blocksHave} blocks of the inode.
+     * Leading ids become data blocks and trailing ones become pointer blocks,
+     * so that adjacent data blocks stay adjacent on disk.
+     */
+    public void append(AllocatedInode inode, int blocksHave, int blocksAdd, ArrayList<Integer> ids) throws JFSException {
+        assert ids.size() == blocksToGrow(blocksHave, blocksAdd);
+
+        int nextPointerBlock = blocksAdd;
+        LinkedHashMap<Integer, int[]> modified = new LinkedHashMap<Integer, int[]>();
+
+        for (int i = 0; i < blocksAdd; ++i) {
+            int index = blocksHave + i;
+            int blockId = ids.get(i);
+
+            if (index < DIRECT) {
+                inode.directPointers[index] = blockId;
+                continue;
+            }
+
+            if (index >= SINGLY_END && inode.doublyIndirectPointer == 0) {
+                inode.doublyIndirectPointer = ids.get(nextPointerBlock++);
+                modified.put(inode.doublyIndirectPointer, new int[PER_BLOCK]);
+            }
+
+            int[] parent = null;
+            int parentSlot = 0;
+            if (index < SINGLY_END) {
+                if (inode.singlyIndirectPointer == 0) {
+                    inode.singlyIndirectPointer = ids.get(nextPointerBlock++);
+                    modified.put(inode.singlyIndirectPointer, new int[PER_BLOCK]);
+                }
+            } else {
+                parent = pointers(modified, inode.doublyIndirectPointer);
+                parentSlot = (index - SINGLY_END) / PER_BLOCK;
+                if (parent[parentSlot] == 0) {
+                    parent[parentSlot] = ids.get(nextPointerBlock++);
+                    modified.put(inode.doublyIndirectPointer, parent);
+                    modified.put(parent[parentSlot], new int[PER_BLOCK]);
+                }
+            }
+
+            int pointersId = parent == null ? inode.singlyIndirectPointer : parent[parentSlot];
+            int[] pointers = pointers(modified, pointersId);
+            pointers[pointerSlot(index)] = blockId;
+            modified.put(pointersId, pointers);
+        }
+
+        assert nextPointerBlock == ids.size();
+
+        for (Map.Entry<Integer, int[]> entry : modified.entrySet()) {
+            myPointers.write(entry.getValue(), entry.getKey());
+        }
+    }
+
+    // released data blocks go first, pointer blocks follow them
+    @Override
+    public ArrayList<Integer> truncate(AllocatedInode inode, int blocksHave, int count) throws JFSException {
+        final int blocksLeft = blocksHave - count;
+        assert blocksLeft >= 0;
+
+        ArrayList<Integer> result = new ArrayList<Integer>(count + pointerBlocksFor(blocksHave));
+        int[] dataIds = blockIds(inode, blocksLeft, count);
+        for (int blockId : dataIds) {
+            result.add(blockId);
+        }
+
+        for (int index = blocksLeft; index < Math.min(blocksHave, DIRECT); ++index) {
+            inode.directPointers[index] = 0;
+        }
+
+        LinkedHashMap<Integer, int[]> modified = new LinkedHashMap<Integer, int[]>();
+        ArrayList<Integer> released = new ArrayList<Integer>();
+
+        if (blocksHave > SINGLY_END) {
+            int[] parent = myPointers.get(inode.doublyIndirectPointer);
+            int firstSlot = Math.max(0, blocksLeft - SINGLY_END);
+            int lastSlot = blocksHave - SINGLY_END - 1;
+
+            for (int parentSlot = firstSlot / PER_BLOCK; parentSlot <= lastSlot / PER_BLOCK; ++parentSlot) {
+                int pointersId = parent[parentSlot];
+                if (firstSlot <= parentSlot * PER_BLOCK) {
+                    released.add(pointersId);
+                    parent[parentSlot] = 0;
+                    modified.put(inode.doublyIndirectPointer, parent);
+                } else {
+                    int[] pointers = myPointers.get(pointersId);
+                    for (int slot = firstSlot % PER_BLOCK; slot < PER_BLOCK; ++slot) {
+                        pointers[slot] = 0;
+                    }
+                    modified.put(pointersId, pointers);
+                }
+            }
+
+            if (blocksLeft <= SINGLY_END) {
+                released.add(inode.doublyIndirectPointer);
+                inode.doublyIndirectPointer = 0;
+            }
+        }
+
+        if (blocksHave > DIRECT && blocksLeft < SINGLY_END) {
+            if (blocksLeft <= DIRECT) {
+                released.add(inode.singlyIndirectPointer);
+                inode.singlyIndirectPointer = 0;
+            } else {
+                int[] pointers = myPointers.get(inode.singlyIndirectPointer);
+                for (int slot = blocksLeft - DIRECT; slot < PER_BLOCK; ++slot) {
+                    pointers[slot] = 0;
+                }
+                modified.put(inode.singlyIndirectPointer, pointers);
+            }
+        }
+
+        for (int pointersId : released) {
+            modified.remove(pointersId);
+            myPointers.invalidate(pointersId);
+        }
+
+        for (Map.Entry<Integer, int[]> entry : modified.entrySet()) {
+            myPointers.write(entry.getValue(), entry.getKey());
+        }
+
+        result.addAll(released);
+        assert result.size() == count + pointerBlocksFor(blocksHave) - pointerBlocksFor(blocksLeft);
+        return result;
+    }
+
+    private int[] pointers(Map<Integer, int[]> modified, int blockId) throws JFSException {
+        int[] pointers = modified.get(blockId);
+        return pointers != null ? pointers : myPointers.get(blockId);
+    }
+
+    // 0 for singly indirect block, k + 1 for k-th block below doubly indirect one
+    private static int pointerBlockIndex(int index) {
+        assert index >= DIRECT;
+        return index < SINGLY_END ? 0 : (index - SINGLY_END) / PER_BLOCK + 1;
+    }
+
+    private static int pointerSlot(int index) {
+        return index < SINGLY_END ? index - DIRECT : (index - SINGLY_END) % PER_BLOCK;
+    }
+
+    private int pointerBlockId(AllocatedInode inode, int blockIndex) throws JFSException {
+        if (blockIndex == 0) {
+            return inode.singlyIndirectPointer;
+        }
+
+        return myPointers.get(inode.doublyIndirectPointer)[blockIndex - 1];
+    }
+}
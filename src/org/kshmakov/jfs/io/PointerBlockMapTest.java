@@ -0,0 +1,93 @@
+package org.kshmakov.jfs.io;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.kshmakov.jfs.TestCommon;
+import org.kshmakov.jfs.driver.JFSException;
+import org.kshmakov.jfs.io.primitives.AllocatedInode;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class PointerBlockMapTest {
+    private FileAccessor accessor = null;
+    private BlocksStack blocks = null;
+
+    @Before
+    public void initialization() throws IOException, JFSException {
+        accessor = TestCommon.createAccessor(16 << 20);
+        blocks = new BlocksStack(accessor);
+    }
+
+    private int[] grow(PointerBlockMap map, AllocatedInode inode, int blocksHave, int blocksAdd) throws JFSException {
+        ArrayList<Integer> ids = blocks.pop(PointerBlockMap.blocksToGrow(blocksHave, blocksAdd));
+        map.append(inode, blocksHave, blocksAdd, ids);
+
+        int[] result = new int[blocksAdd];
+        for (int i = 0; i < blocksAdd; ++i) {
+            result[i] = ids.get(i);
+        }
+
+        return result;
+    }
+
+    @Test
+    public void test00() throws IOException, JFSException {
+        /**
+         * Checks pointer blocks needed for file sizes around indirection boundaries.
+         */
+        assertEquals(0, PointerBlockMap.pointerBlocksFor(0));
+        assertEquals(0, PointerBlockMap.pointerBlocksFor(12));
+        assertEquals(1, PointerBlockMap.pointerBlocksFor(13));
+        assertEquals(1, PointerBlockMap.pointerBlocksFor(12 + 1024));
+        assertEquals(3, PointerBlockMap.pointerBlocksFor(12 + 1024 + 1));
+        assertEquals(4, PointerBlockMap.pointerBlocksFor(12 + 1024 + 1025));
+        assertEquals(1 + 2, PointerBlockMap.blocksToGrow(12 + 1024, 1));
+    }
+
+    @Test
+    public void test01() throws IOException, JFSException {
+        /**
+         * Checks mapping survives growing and shrinking across indirection boundaries.
+         */
+        PointerBlockMap map = new PointerBlockMap(new PointerBlocksCache(accessor, 4), blocks);
+        AllocatedInode inode = new AllocatedInode(Parameters.EntryType.FILE, 1);
+        final int unallocated = accessor.readHeaderInt(HeaderOffsets.TOTAL_UNALLOCATED_BLOCKS);
+
+        int[] first = grow(map, inode, 0, 10);
+        int[] second = grow(map, inode, 10, 2100);
+        assertEquals(unallocated - 2110 - 4, accessor.readHeaderInt(HeaderOffsets.TOTAL_UNALLOCATED_BLOCKS));
+
+        int[] expected = Arrays.copyOf(first, 2110);
+        System.arraycopy(second, 0, expected, 10, second.length);
+        assertArrayEquals(expected, map.blockIds(inode, 0, 2110));
+
+        // fresh cache has to see the same pointers on disk
+        PointerBlockMap reread = new PointerBlockMap(new PointerBlocksCache(accessor, 4), blocks);
+        assertArrayEquals(Arrays.copyOfRange(expected, 1000, 2110), reread.blockIds(inode, 1000, 1110));
+
+        // drops last block below doubly indirect one together with it
+        ArrayList<Integer> released = map.truncate(inode, 2110, 2110 - 2060);
+        assertEquals(2110 - 2060 + 1, released.size());
+        blocks.push(released);
+        assertArrayEquals(Arrays.copyOf(expected, 2060), map.blockIds(inode, 0, 2060));
+
+        // drops doubly indirect subtree
+        blocks.push(map.truncate(inode, 2060, 2060 - 500));
+        assertEquals(0, inode.doublyIndirectPointer);
+        assertArrayEquals(Arrays.copyOf(expected, 500), reread.blockIds(inode, 0, 500));
+
+        blocks.push(map.truncate(inode, 500, 500));
+        assertEquals(0, inode.singlyIndirectPointer);
+        assertEquals(unallocated, accessor.readHeaderInt(HeaderOffsets.TOTAL_UNALLOCATED_BLOCKS));
+    }
+
+    @After
+    public void cleanUp() {
+        TestCommon.cleanUp();
+    }
+}
@@ -0,0 +1,82 @@
+package org.kshmakov.jfs.io;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+import org.kshmakov.jfs.driver.JFSException;
+
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps decoded indirect pointer blocks in memory, writes go through to the underlying file.
+ *
+ * Returned arrays are shared: callers modify them only while holding the lock of the owning inode
+ * and persist modifications with {@link #write(int[], int)}.
+ */
+@ThreadSafe
+public class PointerBlocksCache {
+    private final FileAccessor myAccessor;
+
+    private final Object myLock = new Object();
+
+    @GuardedBy("myLock")
+    private final LinkedHashMap<Integer, int[]> myBlocks;
+    // changes with every write, so that blocks loaded concurrently with some write are not kept
+    @GuardedBy("myLock")
+    private long myGeneration = 0;
+
+    public PointerBlocksCache(FileAccessor accessor, final int capacity) {
+        myAccessor = accessor;
+        myBlocks = new LinkedHashMap<Integer, int[]>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, int[]> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    public int[] get(int blockId) throws JFSException {
+        final long generation;
+        synchronized (myLock) {
+            int[] pointers = myBlocks.get(blockId);
+            if (pointers != null) {
+                return pointers;
+            }
+            generation = myGeneration;
+        }
+
+        int[] pointers = new int[Parameters.POINTERS_PER_BLOCK];
+        FileAccessorBase.newBuffer(myAccessor.readBlock(blockId)).asIntBuffer().get(pointers);
+
+        synchronized (myLock) {
+            int[] raced = myBlocks.get(blockId);
+            if (raced != null) {
+                return raced;
+            }
+
+            if (generation == myGeneration) {
+                myBlocks.put(blockId, pointers);
+            }
+            return pointers;
+        }
+    }
+
+    public void write(int[] pointers, int blockId) throws JFSException {
+        ByteBuffer buffer = FileAccessorBase.newBuffer(Parameters.DATA_BLOCK_SIZE);
+        buffer.asIntBuffer().put(pointers);
+        myAccessor.writeBlock(buffer, blockId);
+
+        synchronized (myLock) {
+            ++myGeneration;
+            myBlocks.put(blockId, pointers);
+        }
+    }
+
+    public void invalidate(int blockId) {
+        synchronized (myLock) {
+            ++myGeneration;
+            myBlocks.remove(blockId);
+        }
+    }
+}
@@ -29,13 +29,13 @@ public class AllocatedInode extends InodeBase {
 
         type = Parameters.byteToType(buffer.get());
         int hightPart = (int) buffer.get() & 0xFF;
-        parentId = (hightPart << 16) + (int) buffer.getShort() & 0xFFFF;
+        parentId = (hightPart << 16) + ((int) buffer.getShort() & 0xFFFF);
 
         objectSize = buffer.getInt();
         buffer.asIntBuffer().get(directPointers);
         buffer.position(buffer.position() + Parameters.DIRECT_POINTERS_NUMBER * 4);
-        buffer.getInt(singlyIndirectPointer);
-        buffer.getInt(doublyIndirectPointer);
+        singlyIndirectPointer = buffer.getInt();
+        doublyIndirectPointer = buffer.getInt();
     }
 
     public ByteBuffer toBuffer() {
@@ -1,5 +1,6 @@
 package org.kshmakov.jfs.io.primitives;
 
+import com.sun.istack.internal.Nullable;
 import org.kshmakov.jfs.driver.JFSException;
 import org.kshmakov.jfs.io.Parameters;
 
@@ -36,6 +37,35 @@ public class DirectoryBlock extends BlockBase {
         }
     }
 
+    /**
+     * Finds entry with given encoded name in encoded block, only the found entry is decoded.
+     */
+    @Nullable
+    public static DirectoryEntry find(byte[] bytes, byte[] nameBytes) throws JFSException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        final int end = Parameters.DATA_BLOCK_SIZE - buffer.getShort();
+
+        for (int position = HEADER_SIZE; position < end; position += DirectoryEntry.sizeAt(bytes, position)) {
+            if (DirectoryEntry.hasNameAt(bytes, position, nameBytes)) {
+                buffer.position(position);
+                return new DirectoryEntry(buffer);
+            }
+        }
+
+        return null;
+    }
+
+    public boolean remove(String name) {
+        for (int i = 0; i < entries.size(); ++i) {
+            if (entries.get(i).name.equals(name)) {
+                myUnusedSize += entries.remove(i).size();
+                return true;
+            }
+        }
+
+        return false;
+    }
+
     public boolean tryInsert(DirectoryEntry entry) {
         if (entry.size() > myUnusedSize)
             return false;
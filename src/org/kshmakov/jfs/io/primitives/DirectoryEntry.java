@@ -17,10 +17,15 @@ public class DirectoryEntry {
     private final byte[] myNameBytes;
 
     public DirectoryEntry(int inodeId, Parameters.EntryType type, String name) throws JFSException {
+        this(inodeId, type, name, NameHelper.toBytes(name));
+    }
+
+    // nameBytes are expected to be obtained with NameHelper.toBytes(name)
+    public DirectoryEntry(int inodeId, Parameters.EntryType type, String name, byte[] nameBytes) {
         this.inodeId = inodeId;
         this.type = type;
         this.name = name;
-        myNameBytes = NameHelper.toBytes(name);
+        myNameBytes = nameBytes;
     }
 
     public DirectoryEntry(ByteBuffer buffer) throws JFSException {
@@ -31,6 +36,30 @@ public class DirectoryEntry {
         name = NameHelper.fromBytes(myNameBytes);
     }
 
+    // size of the encoded entry starting at given position
+    static int sizeAt(byte[] bytes, int position) {
+        return ENTRY_HEADER_SIZE + ((int) bytes[position + 5] & 0xFF);
+    }
+
+    // compares name of the encoded entry starting at given position without decoding it
+    static boolean hasNameAt(byte[] bytes, int position, byte[] nameBytes) {
+        if (((int) bytes[position + 5] & 0xFF) != nameBytes.length) {
+            return false;
+        }
+
+        for (int i = 0; i < nameBytes.length; ++i) {
+            if (bytes[position + ENTRY_HEADER_SIZE + i] != nameBytes[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    public int nameHash() {
+        return NameHelper.hash(myNameBytes);
+    }
+
     public short size() {
         return (short) (ENTRY_HEADER_SIZE + myNameBytes.length);
     }
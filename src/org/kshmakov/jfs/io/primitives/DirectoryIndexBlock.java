@@ -0,0 +1,96 @@
+package org.kshmakov.jfs.io.primitives;
+
+import org.kshmakov.jfs.io.FileAccessor;
+import org.kshmakov.jfs.io.Parameters;
+
+import java.nio.ByteBuffer;
+
+/**
+ * First block of hashed directory, sorted pairs {@code (lowest name hash, logical block)} of its leaf blocks.
+ * First pair always starts from hash 0, so that every name hash falls into some leaf.
+ */
+public class DirectoryIndexBlock extends BlockBase {
+    private final static short HEADER_SIZE = 2;
+    private final static short PAIR_SIZE = 8;
+
+    public final static int CAPACITY = (Parameters.DATA_BLOCK_SIZE - HEADER_SIZE) / PAIR_SIZE;
+
+    private final int[] myHashes = new int[CAPACITY];
+    private final int[] myBlocks = new int[CAPACITY];
+    private int mySize;
+
+    // index of a directory with the only leaf
+    public DirectoryIndexBlock(int leafBlock) {
+        super(0);
+        myHashes[0] = 0;
+        myBlocks[0] = leafBlock;
+        mySize = 1;
+    }
+
+    public DirectoryIndexBlock(byte[] bytes) {
+        super(bytes);
+
+        ByteBuffer buffer = FileAccessor.newBuffer(bytes);
+        mySize = buffer.getShort();
+        for (int i = 0; i < mySize; ++i) {
+            myHashes[i] = buffer.getInt();
+            myBlocks[i] = buffer.getInt();
+        }
+    }
+
+    public int size() {
+        return mySize;
+    }
+
+    // logical block of the leaf which is responsible for given hash
+    public int find(int hash) {
+        return myBlocks[position(hash)];
+    }
+
+    public boolean tryInsert(int lowestHash, int leafBlock) {
+        if (mySize == CAPACITY) {
+            return false;
+        }
+
+        int position = position(lowestHash) + 1;
+        assert myHashes[position - 1] < lowestHash;
+
+        System.arraycopy(myHashes, position, myHashes, position + 1, mySize - position);
+        System.arraycopy(myBlocks, position, myBlocks, position + 1, mySize - position);
+        myHashes[position] = lowestHash;
+        myBlocks[position] = leafBlock;
+        ++mySize;
+        return true;
+    }
+
+    // position of the last pair with lowest hash not greater than given one
+    private int position(int hash) {
+        int low = 0;
+        int high = mySize - 1;
+
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (myHashes[middle] <= hash) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+
+        return low;
+    }
+
+    @Override
+    public byte[] toBytes() {
+        byte[] result = super.toBytes();
+
+        ByteBuffer buffer = FileAccessor.newBuffer(result);
+        buffer.putShort((short) mySize);
+        for (int i = 0; i < mySize; ++i) {
+            buffer.putInt(myHashes[i]);
+            buffer.putInt(myBlocks[i]);
+        }
+
+        return result;
+    }
+}